@@ -0,0 +1,119 @@
+package edu.uob.benchmarks;
+
+import edu.uob.DBServer;
+import edu.uob.DBSession;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * A server with a freshly created database of its own, for one benchmark trial. Tables are filled
+ * with LOAD DATA from a generated file, and the data is generated from a fixed seed so every run
+ * measures the same rows. The server is closed and the database deleted again in {@link #drop()}.
+ */
+final class BenchmarkDatabase {
+    static final int VALUE_COLUMNS = 10;
+    // LOAD DATA only reads from the server's import directory; this is the same property and default
+    static final Path IMPORT_DIRECTORY = Paths.get(System.getProperty("cwdb.import.directory", "import"));
+    static final String COLUMN_LIST;
+
+    static {
+        StringBuilder columns = new StringBuilder();
+        for (int i = 0; i < VALUE_COLUMNS; i++) {
+            columns.append(i == 0 ? "" : ", ").append('c').append(i);
+        }
+        COLUMN_LIST = columns.toString();
+    }
+
+    private final DBServer server = new DBServer();
+    private final String name = "bench_" + UUID.randomUUID().toString().replace("-", "");
+
+    BenchmarkDatabase() {
+        expectOk(server.handleCommand("CREATE DATABASE " + name + ";"));
+    }
+
+    DBServer getServer() {
+        return server;
+    }
+
+    // A session that is already using this database; each benchmark thread should have its own
+    DBSession newSession() {
+        DBSession session = new DBSession();
+        expectOk(server.handleCommand(session, "USE " + name + ";"));
+        return session;
+    }
+
+    void createTable(String tableName, int rowCount) throws IOException {
+        DBSession session = newSession();
+        expectOk(server.handleCommand(session, "CREATE TABLE " + tableName + " (" + COLUMN_LIST + ");"));
+        if (rowCount == 0) {
+            return;
+        }
+        Files.createDirectories(IMPORT_DIRECTORY);
+        Path source = Files.createTempFile(IMPORT_DIRECTORY, "cwdb-bench-", ".tsv");
+        try {
+            Random random = new Random(42);
+            try (BufferedWriter writer = Files.newBufferedWriter(source)) {
+                for (int row = 0; row < rowCount; row++) {
+                    writer.write(valueRow(random));
+                    writer.newLine();
+                }
+            }
+            expectOk(server.handleCommand(session, "LOAD DATA INFILE '" + source.getFileName() + "' INTO TABLE " + tableName + ";"));
+        } finally {
+            Files.deleteIfExists(source);
+        }
+    }
+
+    // c1 holds a number below 1000 so that range conditions on it have a predictable selectivity
+    static String valueRow(Random random) {
+        StringBuilder row = new StringBuilder();
+        for (int column = 1; column <= VALUE_COLUMNS; column++) {
+            if (column > 1) {
+                row.append('\t');
+            }
+            if (column == 1) {
+                row.append(random.nextInt(1000));
+            } else {
+                row.append("value").append(random.nextInt(100_000));
+            }
+        }
+        return row.toString();
+    }
+
+    // Closes the server first, so nothing is still writing to the files being deleted
+    void drop() throws IOException {
+        server.close();
+        Path dbPath = Paths.get("data", name);
+        if (!Files.exists(dbPath)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dbPath)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    static void run(DBServer server, DBSession session, String command, Writer out) {
+        try {
+            server.handleCommand(session, command, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(command, e);
+        }
+    }
+
+    static void expectOk(String response) {
+        if (!response.startsWith("[OK]")) {
+            throw new IllegalStateException("Benchmark setup failed: " + response);
+        }
+    }
+}
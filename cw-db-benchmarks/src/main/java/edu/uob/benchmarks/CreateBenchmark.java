@@ -0,0 +1,60 @@
+package edu.uob.benchmarks;
+
+import edu.uob.DBSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CREATE TABLE, from one thread and from several at once. Every call creates a new table file,
+ * so iterations are kept short to stop the database directory from growing too large.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Dcwdb.log.level=WARNING"})
+@State(Scope.Benchmark)
+public class CreateBenchmark {
+    private final AtomicLong nextTable = new AtomicLong();
+    private BenchmarkDatabase database;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = new BenchmarkDatabase();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.drop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        DBSession session;
+
+        @Setup(Level.Trial)
+        public void setUp(CreateBenchmark benchmark) {
+            session = benchmark.database.newSession();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String createTableOneThread(Client client) {
+        return createTable(client);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String createTableFourThreads(Client client) {
+        return createTable(client);
+    }
+
+    private String createTable(Client client) {
+        String command = "CREATE TABLE t" + nextTable.getAndIncrement() + " (" + BenchmarkDatabase.COLUMN_LIST + ");";
+        return database.getServer().handleCommand(client.session, command);
+    }
+}
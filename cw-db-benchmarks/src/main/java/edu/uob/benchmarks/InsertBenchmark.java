@@ -0,0 +1,58 @@
+package edu.uob.benchmarks;
+
+import edu.uob.DBSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-row INSERTs into one table, from one thread and from several at once. With more threads
+ * the write-ahead log commits several inserts per sync, so the per-insert time should drop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Dcwdb.log.level=WARNING"})
+@State(Scope.Benchmark)
+public class InsertBenchmark {
+    private BenchmarkDatabase database;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        database = new BenchmarkDatabase();
+        database.createTable("bench", 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.drop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        DBSession session;
+        String command;
+
+        @Setup(Level.Trial)
+        public void setUp(InsertBenchmark benchmark) {
+            session = benchmark.database.newSession();
+            String values = "'" + BenchmarkDatabase.valueRow(new Random(7)).replace("\t", "', '") + "'";
+            command = "INSERT INTO bench VALUES (" + values + ");";
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String insertOneThread(Client client) {
+        return database.getServer().handleCommand(client.session, client.command);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String insertEightThreads(Client client) {
+        return database.getServer().handleCommand(client.session, client.command);
+    }
+}
@@ -0,0 +1,75 @@
+package edu.uob.benchmarks;
+
+import edu.uob.DBSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SELECTs over tables of different sizes, returning one column or all of them. Results are written
+ * to a discarding Writer, so what is measured is reading, filtering and formatting the rows.
+ * The 10M row table takes a while (and about 1GB of disk) to set up; use -p rows=... to skip it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Dcwdb.log.level=WARNING"})
+@State(Scope.Benchmark)
+public class SelectBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"narrow", "wide"})
+    public String projection;
+
+    private BenchmarkDatabase database;
+    private String scanCommand;
+    private String filterCommand;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        database = new BenchmarkDatabase();
+        database.createTable("bench", rows);
+        String columns = projection.equals("narrow") ? "c2" : "*";
+        scanCommand = "SELECT " + columns + " FROM bench;";
+        // About 1% of the rows match
+        filterCommand = "SELECT " + columns + " FROM bench WHERE c1 < 10;";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.drop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        DBSession session;
+        final Writer out = Writer.nullWriter();
+
+        @Setup(Level.Trial)
+        public void setUp(SelectBenchmark benchmark) {
+            session = benchmark.database.newSession();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void scanOneThread(Client client) {
+        BenchmarkDatabase.run(database.getServer(), client.session, scanCommand, client.out);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void scanFourThreads(Client client) {
+        BenchmarkDatabase.run(database.getServer(), client.session, scanCommand, client.out);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void filterOneThread(Client client) {
+        BenchmarkDatabase.run(database.getServer(), client.session, filterCommand, client.out);
+    }
+}
@@ -0,0 +1,364 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Evaluates a SELECT with aggregate functions and/or GROUP BY. Rows are folded into a {@link Partial},
+ * a hash table of groups with one set of running totals per group. Large scans are split into ranges
+ * that are aggregated on separate threads of the common fork-join pool, each into its own Partial,
+ * and the partials are merged at the end, so no lock is taken per row.
+ */
+public class Aggregation {
+    // Ranges smaller than this are not worth a thread of their own
+    private static final long MIN_RANGE_BYTES = 1024 * 1024;
+    private static final int MIN_RANGE_ROWS = 16 * 1024;
+
+    private final List<Statement.Aggregate> items;
+    private final int[] itemColumns;
+    private final int[] groupColumns;
+    private final Condition condition;
+
+    /**
+     * @param items        one entry per output column, null where the column is a GROUP BY column
+     * @param itemColumns  the row index each output column reads, or -1 for COUNT(*)
+     * @param groupColumns the row indices of the GROUP BY columns
+     * @param condition    the bound WHERE condition, or null
+     */
+    public Aggregation(List<Statement.Aggregate> items, int[] itemColumns, int[] groupColumns, Condition condition) {
+        this.items = items;
+        this.itemColumns = itemColumns;
+        this.groupColumns = groupColumns;
+        this.condition = condition;
+    }
+
+    public Partial newPartial() {
+        return new Partial();
+    }
+
+    // The columns the aggregate and its WHERE condition read
+    public BitSet getColumns() {
+        BitSet columns = new BitSet();
+        for (int column : itemColumns) {
+            if (column >= 0) {
+                columns.set(column);
+            }
+        }
+        for (int column : groupColumns) {
+            columns.set(column);
+        }
+        if (condition != null) {
+            condition.addColumns(columns);
+        }
+        return columns;
+    }
+
+    /**
+     * Aggregates the live rows in the first endOffset bytes of a table file, split into byte ranges across
+     * up to parallelism threads that all read through the same channel. bytesRead is increased by the
+     * bytes read.
+     */
+    public Partial aggregateFile(FileChannel channel, long endOffset, long[] dead, int parallelism, AtomicLong bytesRead) throws IOException {
+        int ranges = (int) Math.max(1, Math.min(parallelism, endOffset / MIN_RANGE_BYTES));
+        try {
+            return IntStream.range(0, ranges).parallel().mapToObj(range -> {
+                Partial partial = new Partial();
+                try {
+                    bytesRead.addAndGet(TableFileReader.readRange(channel, endOffset * range / ranges, endOffset * (range + 1) / ranges, dead,
+                            (row, offset) -> partial.visit(row)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return partial;
+            }).reduce(Partial::merge).orElseGet(Partial::new);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Aggregates rows that are already in memory, split into slices across up to parallelism threads
+    public Partial aggregateRows(List<String[]> rows, int parallelism) {
+        return aggregateRows(rows.size(), rows::get, parallelism);
+    }
+
+    /**
+     * Aggregates rows 0 to rowCount - 1, as returned by rowAt, split into slices across up to parallelism
+     * threads. rowAt is called from several threads at once and returns null for a row to leave out.
+     */
+    public Partial aggregateRows(int rowCount, IntFunction<String[]> rowAt, int parallelism) {
+        int slices = Math.max(1, Math.min(parallelism, rowCount / MIN_RANGE_ROWS));
+        return IntStream.range(0, slices).parallel().mapToObj(slice -> {
+            Partial partial = new Partial();
+            for (int i = (int) ((long) rowCount * slice / slices), end = (int) ((long) rowCount * (slice + 1) / slices); i < end; i++) {
+                String[] row = rowAt.apply(i);
+                if (row != null) {
+                    partial.visit(row);
+                }
+            }
+            return partial;
+        }).reduce(Partial::merge).orElseGet(Partial::new);
+    }
+
+    public final class Partial implements RowVisitor {
+        private final Map<String, Group> groups = new HashMap<>();
+        private long rowsScanned;
+
+        @Override
+        public void visit(String[] row) {
+            rowsScanned++;
+            if (condition != null && !condition.matches(row)) {
+                return;
+            }
+            String key = groupKey(row);
+            Group group = groups.get(key);
+            if (group == null) {
+                if (key == null) {
+                    // A GROUP BY column is missing from this row
+                    return;
+                }
+                group = new Group(row);
+                groups.put(key, group);
+            }
+            group.add(row);
+        }
+
+        // Folds other into this partial and returns this
+        public Partial merge(Partial other) {
+            rowsScanned += other.rowsScanned;
+            for (Map.Entry<String, Group> entry : other.groups.entrySet()) {
+                Group group = groups.putIfAbsent(entry.getKey(), entry.getValue());
+                if (group != null) {
+                    group.merge(entry.getValue());
+                }
+            }
+            return this;
+        }
+
+        public long getRowsScanned() {
+            return rowsScanned;
+        }
+
+        // As writeTo(out, types) for rows whose columns are all VARCHAR
+        public long writeTo(Writer out) throws IOException {
+            return writeTo(out, null);
+        }
+
+        /**
+         * Writes one row per group, ordered by the GROUP BY values, through {@link RowWriter}; columnTypes
+         * are the types of the aggregated rows' columns, which give the types of the results. Without
+         * GROUP BY there is always exactly one row, even if no rows matched. Returns the number of rows written.
+         */
+        public long writeTo(Writer out, ColumnType[] columnTypes) throws IOException {
+            List<Group> sorted = new ArrayList<>(groups.values());
+            if (sorted.isEmpty()) {
+                if (groupColumns.length > 0) {
+                    return 0;
+                }
+                sorted.add(new Group(null));
+            }
+            sorted.sort(Aggregation::compareGroups);
+            RowWriter rows = RowWriter.of(out);
+            rows.startRows(resultTypes(columnTypes));
+            for (Group group : sorted) {
+                String[] values = new String[items.size()];
+                for (int i = 0; i < values.length; i++) {
+                    Statement.Aggregate item = items.get(i);
+                    values[i] = item == null ? group.values[i] : group.accumulators[i].result(item.getFunction());
+                }
+                rows.writeRow(values);
+            }
+            return sorted.size();
+        }
+    }
+
+    /**
+     * The type of each output column: a GROUP BY column, MIN and MAX keep the type of the column they read,
+     * COUNT is a BIGINT and AVG a DOUBLE, and SUM is a BIGINT or DOUBLE if the column it adds up is a number
+     * column of that kind. Anything else, such as the SUM of a VARCHAR column, is a VARCHAR.
+     */
+    private ColumnType[] resultTypes(ColumnType[] columnTypes) {
+        ColumnType[] types = new ColumnType[items.size()];
+        for (int i = 0; i < types.length; i++) {
+            Statement.Aggregate item = items.get(i);
+            ColumnType column = columnTypes != null && itemColumns[i] >= 0 && itemColumns[i] < columnTypes.length
+                    ? columnTypes[itemColumns[i]] : ColumnType.VARCHAR;
+            if (item == null) {
+                types[i] = column;
+                continue;
+            }
+            switch (item.getFunction()) {
+                case COUNT:
+                    types[i] = ColumnType.BIGINT;
+                    break;
+                case AVG:
+                    types[i] = ColumnType.DOUBLE;
+                    break;
+                case SUM:
+                    types[i] = column == ColumnType.INT || column == ColumnType.BIGINT ? ColumnType.BIGINT
+                            : column == ColumnType.DOUBLE ? ColumnType.DOUBLE : ColumnType.VARCHAR;
+                    break;
+                default:
+                    types[i] = column;
+                    break;
+            }
+        }
+        return types;
+    }
+
+    // The GROUP BY values joined with tabs (which values never contain), or null if the row is too short
+    private String groupKey(String[] row) {
+        if (groupColumns.length == 0) {
+            return "";
+        }
+        if (groupColumns.length == 1) {
+            return groupColumns[0] < row.length ? row[groupColumns[0]] : null;
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < groupColumns.length; i++) {
+            if (groupColumns[i] >= row.length) {
+                return null;
+            }
+            if (i > 0) {
+                key.append('\t');
+            }
+            key.append(row[groupColumns[i]]);
+        }
+        return key.toString();
+    }
+
+    private static int compareGroups(Group left, Group right) {
+        for (int i = 0; i < left.groupValues.length; i++) {
+            int order = Condition.compareValues(left.groupValues[i], right.groupValues[i]);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return 0;
+    }
+
+    private final class Group {
+        final String[] groupValues = new String[groupColumns.length];
+        // The values of the output columns that are not aggregates
+        final String[] values = new String[items.size()];
+        final Accumulator[] accumulators = new Accumulator[items.size()];
+
+        // firstRow is null for the single empty group of an aggregate over no rows
+        Group(String[] firstRow) {
+            for (int i = 0; i < groupColumns.length; i++) {
+                groupValues[i] = firstRow == null ? "" : firstRow[groupColumns[i]];
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (items.get(i) == null) {
+                    values[i] = firstRow == null || itemColumns[i] >= firstRow.length ? "" : firstRow[itemColumns[i]];
+                } else {
+                    accumulators[i] = new Accumulator();
+                }
+            }
+        }
+
+        void add(String[] row) {
+            for (int i = 0; i < accumulators.length; i++) {
+                if (accumulators[i] != null) {
+                    int column = itemColumns[i];
+                    if (column < 0) {
+                        accumulators[i].count++;
+                    } else if (column < row.length) {
+                        accumulators[i].add(row[column]);
+                    }
+                }
+            }
+        }
+
+        void merge(Group other) {
+            for (int i = 0; i < accumulators.length; i++) {
+                if (accumulators[i] != null) {
+                    accumulators[i].merge(other.accumulators[i]);
+                }
+            }
+        }
+    }
+
+    // Running totals for one aggregate in one group. NULL values are skipped, as in SQL
+    private static final class Accumulator {
+        long count;
+        long numericCount;
+        long longSum;
+        double doubleSum;
+        boolean integral = true;
+        String min;
+        String max;
+
+        void add(String value) {
+            if (value.equals(ColumnType.NULL)) {
+                return;
+            }
+            count++;
+            if (Condition.isNumeric(value)) {
+                numericCount++;
+                doubleSum += Double.parseDouble(value);
+                if (integral) {
+                    try {
+                        longSum = Math.addExact(longSum, Long.parseLong(value));
+                    } catch (NumberFormatException | ArithmeticException e) {
+                        integral = false;
+                    }
+                }
+            }
+            if (min == null || Condition.compareValues(value, min) < 0) {
+                min = value;
+            }
+            if (max == null || Condition.compareValues(value, max) > 0) {
+                max = value;
+            }
+        }
+
+        void merge(Accumulator other) {
+            count += other.count;
+            numericCount += other.numericCount;
+            doubleSum += other.doubleSum;
+            if (integral && other.integral) {
+                try {
+                    longSum = Math.addExact(longSum, other.longSum);
+                } catch (ArithmeticException e) {
+                    integral = false;
+                }
+            } else {
+                integral = false;
+            }
+            if (other.min != null && (min == null || Condition.compareValues(other.min, min) < 0)) {
+                min = other.min;
+            }
+            if (other.max != null && (max == null || Condition.compareValues(other.max, max) > 0)) {
+                max = other.max;
+            }
+        }
+
+        String result(Statement.Aggregate.Function function) {
+            switch (function) {
+                case COUNT:
+                    return Long.toString(count);
+                case SUM:
+                    if (numericCount == 0) {
+                        return ColumnType.NULL;
+                    }
+                    return integral ? Long.toString(longSum) : ColumnType.formatDouble(doubleSum);
+                case AVG:
+                    return numericCount == 0 ? ColumnType.NULL : ColumnType.formatDouble(doubleSum / numericCount);
+                case MIN:
+                    return min == null ? ColumnType.NULL : min;
+                default:
+                    return max == null ? ColumnType.NULL : max;
+            }
+        }
+    }
+}
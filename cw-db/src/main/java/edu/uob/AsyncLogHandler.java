@@ -0,0 +1,127 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A logging handler that hands records to a background thread instead of writing them itself, so
+ * request threads never wait for log I/O. Records go into a bounded queue; when it is full they are
+ * dropped and counted, and the count is written to the log once there is room again. Messages
+ * longer than maxMessageChars are cut short before they are queued.
+ */
+public class AsyncLogHandler extends Handler {
+    private static final LogRecord SHUTDOWN = new LogRecord(Level.OFF, "");
+
+    private final BlockingQueue<LogRecord> queue;
+    private final Handler[] delegates;
+    private final int maxMessageChars;
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public AsyncLogHandler(int capacity, int maxMessageChars, Handler... delegates) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.delegates = delegates;
+        this.maxMessageChars = maxMessageChars;
+        this.writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        String message = record.getMessage();
+        if (message != null && message.length() > maxMessageChars) {
+            record.setMessage(message.substring(0, maxMessageChars) + "... (" + (message.length() - maxMessageChars) + " more characters)");
+        }
+        // Otherwise the formatter would walk the writer thread's stack to find the caller
+        record.setSourceClassName(record.getLoggerName());
+        record.setSourceMethodName(null);
+        if (!queue.offer(record)) {
+            droppedRecords.incrementAndGet();
+        }
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    private void writeLoop() {
+        List<LogRecord> batch = new ArrayList<>();
+        long reportedDrops = 0;
+        try {
+            while (true) {
+                LogRecord first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                long dropped = droppedRecords.get();
+                if (dropped > reportedDrops) {
+                    LogRecord report = new LogRecord(Level.WARNING, (dropped - reportedDrops) + " log records dropped because the log queue was full");
+                    report.setLoggerName(AsyncLogHandler.class.getName());
+                    report.setSourceClassName(AsyncLogHandler.class.getName());
+                    batch.add(report);
+                    reportedDrops = dropped;
+                }
+                boolean shutdown = false;
+                for (LogRecord record : batch) {
+                    if (record == SHUTDOWN) {
+                        shutdown = true;
+                        continue;
+                    }
+                    for (Handler delegate : delegates) {
+                        delegate.publish(record);
+                    }
+                }
+                batch.clear();
+                flushDelegates();
+                if (shutdown) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushDelegates() {
+        for (Handler delegate : delegates) {
+            delegate.flush();
+        }
+    }
+
+    // Records are flushed by the writer thread whenever the queue runs empty
+    @Override
+    public void flush() {
+    }
+
+    // Waits for everything already queued to be written, then closes the delegates
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(SHUTDOWN);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Handler delegate : delegates) {
+            delegate.close();
+        }
+    }
+}
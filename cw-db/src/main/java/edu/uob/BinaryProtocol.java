@@ -0,0 +1,335 @@
+package edu.uob;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary framing a client can switch its connection to by sending HANDSHAKE (or HANDSHAKE_COMPRESSED)
+ * as its first command; the text protocol, where each response ends with an EOT line, stays the default.
+ * Commands are still sent as lines of text. Each response is sent as a series of frames, each a kind byte
+ * and a 4-byte big-endian payload length followed by the payload, and ends with an END frame.
+ *
+ * <p>A SELECT result (one the server writes through {@link RowWriter}) is sent as ROWS frames instead of
+ * text: a varint row count, then for each row a varint value count and the values. Each value is encoded
+ * by the type its column is declared with, so numbers travel as numbers and the client does not have to
+ * split or parse anything; a value that is not in its type's canonical form (see {@link ColumnType#normalize})
+ * is sent as a string, so the text can always be put back together exactly. Every other response is sent
+ * as TEXT frames of UTF-8, and so is the error that ends a result cut short, after its ROWS frames. On
+ * a compressed connection payloads of COMPRESS_MIN_BYTES or more are deflated, which the kind byte marks
+ * with COMPRESSED.
+ */
+public final class BinaryProtocol {
+    public static final String HANDSHAKE = "PROTOCOL BINARY";
+    public static final String HANDSHAKE_COMPRESSED = "PROTOCOL BINARY COMPRESSED";
+
+    public static final byte FRAME_TEXT = 1;
+    public static final byte FRAME_ROWS = 2;
+    public static final byte FRAME_END = 3;
+    public static final byte COMPRESSED = (byte) 0x80;
+    public static final int COMPRESS_MIN_BYTES = 1024;
+    static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_TRUE = 1;
+    private static final byte VALUE_FALSE = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_DOUBLE = 4;
+    private static final byte VALUE_STRING = 5;
+
+    private BinaryProtocol() {
+    }
+
+    // Whether a command asks for the binary protocol, compressed or not
+    static boolean isHandshake(String command) {
+        return command.trim().equalsIgnoreCase(HANDSHAKE) || isCompressedHandshake(command);
+    }
+
+    static boolean isCompressedHandshake(String command) {
+        return command.trim().equalsIgnoreCase(HANDSHAKE_COMPRESSED);
+    }
+
+    // The text a typed value was sent as
+    public static String formatValue(Object value) {
+        if (value == null) {
+            return ColumnType.display(ColumnType.NULL);
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "TRUE" : "FALSE";
+        }
+        if (value instanceof Double) {
+            return ColumnType.formatDouble((Double) value);
+        }
+        return value.toString();
+    }
+
+    // Digits without a leading zero, optionally negative, and few enough to fit in a long
+    private static boolean isCanonicalLong(String value) {
+        int start = value.startsWith("-") ? 1 : 0;
+        int digits = value.length() - start;
+        if (digits < 1 || digits > 18 || (value.charAt(start) == '0' && (digits > 1 || start == 1))) {
+            return false;
+        }
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds frame payloads. Only the thread writing a response uses one, so it does without the locking
+     * of a ByteArrayOutputStream.
+     */
+    static final class FrameBuffer {
+        private byte[] bytes = new byte[4096];
+        private int length;
+
+        int length() {
+            return length;
+        }
+
+        void clear() {
+            length = 0;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeBuffer(FrameBuffer other) {
+            writeBytes(other.bytes, 0, other.length);
+        }
+
+        void writeBytes(byte[] source, int offset, int count) {
+            ensure(count);
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        /**
+         * Writes a value of a column declared as type: the tag, then the value in that type's encoding.
+         * NULL is NULL in a column of any type, and a value not in the type's canonical form is a string.
+         */
+        void writeValue(String value, ColumnType type) {
+            if (value.equals(ColumnType.NULL)) {
+                writeByte(VALUE_NULL);
+                return;
+            }
+            switch (type) {
+                case INT:
+                case BIGINT:
+                    if (isCanonicalLong(value)) {
+                        long number = Long.parseLong(value);
+                        writeByte(VALUE_LONG);
+                        writeVarLong((number << 1) ^ (number >> 63));
+                        return;
+                    }
+                    break;
+                case DOUBLE:
+                    if (ColumnType.DOUBLE.isCanonical(value)) {
+                        writeByte(VALUE_DOUBLE);
+                        long bits = Double.doubleToLongBits(Double.parseDouble(value));
+                        ensure(8);
+                        for (int shift = 56; shift >= 0; shift -= 8) {
+                            bytes[length++] = (byte) (bits >>> shift);
+                        }
+                        return;
+                    }
+                    break;
+                case BOOLEAN:
+                    if (value.equals("TRUE") || value.equals("FALSE")) {
+                        writeByte(value.equals("TRUE") ? VALUE_TRUE : VALUE_FALSE);
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeByte(VALUE_STRING);
+            writeVarLong(utf8.length);
+            writeBytes(utf8, 0, utf8.length);
+        }
+
+        /**
+         * The frame holding this buffer as its payload, deflated first if a deflater is given and the
+         * payload is big enough to be worth it.
+         */
+        ByteBuffer toFrame(byte kind, Deflater deflater) {
+            if (deflater == null || length < COMPRESS_MIN_BYTES) {
+                ByteBuffer frame = ByteBuffer.allocate(5 + length);
+                frame.put(kind).putInt(length).put(bytes, 0, length).flip();
+                return frame;
+            }
+            deflater.reset();
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            // Room for the uncompressed length, and for data that does not compress
+            byte[] compressed = new byte[4 + length + length / 16 + 64];
+            ByteBuffer.wrap(compressed).putInt(length);
+            int compressedLength = 4;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            ByteBuffer frame = ByteBuffer.allocate(5 + compressedLength);
+            frame.put((byte) (kind | COMPRESSED)).putInt(compressedLength).put(compressed, 0, compressedLength).flip();
+            return frame;
+        }
+
+        private void ensure(int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+        }
+    }
+
+    /**
+     * Reads one response, or returns null if the stream ends before it starts. TEXT frames are joined into
+     * the response's text; ROWS frames are decoded into rows of typed values, and text after them is kept
+     * as what followed the rows.
+     */
+    static DBClient.Response readResponse(DataInputStream in, Inflater inflater) throws IOException {
+        StringBuilder text = null;
+        List<Object[]> rows = null;
+        boolean first = true;
+        while (true) {
+            int kind = first ? in.read() : in.readUnsignedByte();
+            if (kind < 0) {
+                return null;
+            }
+            first = false;
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_BYTES) {
+                throw new IOException("Bad frame length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if ((kind & COMPRESSED) != 0) {
+                payload = inflate(payload, inflater);
+            }
+            switch ((byte) (kind & ~COMPRESSED)) {
+                case FRAME_TEXT:
+                    if (text == null) {
+                        text = new StringBuilder();
+                    }
+                    text.append(new String(payload, StandardCharsets.UTF_8));
+                    break;
+                case FRAME_ROWS:
+                    if (rows == null) {
+                        rows = new ArrayList<>();
+                    }
+                    try {
+                        decodeRows(ByteBuffer.wrap(payload), rows);
+                    } catch (BufferUnderflowException e) {
+                        throw new EOFException("Rows frame ended early");
+                    }
+                    break;
+                case FRAME_END:
+                    if (rows != null) {
+                        return DBClient.Response.ofRows(rows, text == null ? null : text.toString());
+                    }
+                    return DBClient.Response.ofTextFrames(text == null ? "" : text.toString());
+                default:
+                    throw new IOException("Unknown frame kind " + kind);
+            }
+        }
+    }
+
+    private static byte[] inflate(byte[] payload, Inflater inflater) throws IOException {
+        if (payload.length < 4) {
+            throw new EOFException("Compressed frame too short");
+        }
+        int length = ByteBuffer.wrap(payload).getInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad uncompressed frame length " + length);
+        }
+        byte[] inflated = new byte[length];
+        inflater.reset();
+        inflater.setInput(payload, 4, payload.length - 4);
+        try {
+            int done = 0;
+            while (done < length) {
+                int count = inflater.inflate(inflated, done, length - done);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException("Compressed frame ended early");
+                }
+                done += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame", e);
+        }
+        return inflated;
+    }
+
+    private static void decodeRows(ByteBuffer payload, List<Object[]> rows) throws IOException {
+        long rowCount = readVarLong(payload);
+        for (long row = 0; row < rowCount; row++) {
+            Object[] values = new Object[(int) readVarLong(payload)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(payload);
+            }
+            rows.add(values);
+        }
+    }
+
+    private static Object readValue(ByteBuffer payload) throws IOException {
+        byte tag = payload.get();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_LONG:
+                long zigzag = readVarLong(payload);
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            case VALUE_DOUBLE:
+                return payload.getDouble();
+            case VALUE_STRING:
+                int length = (int) readVarLong(payload);
+                String value = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+                payload.position(payload.position() + length);
+                return value;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static long readVarLong(ByteBuffer payload) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = payload.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
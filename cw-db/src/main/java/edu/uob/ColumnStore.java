@@ -0,0 +1,542 @@
+package edu.uob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * One table stored column by column in &lt;table&gt;.columns/, for the {@link ColumnarStorageEngine}.
+ * Every file is memory-mapped and grows in place as rows are appended, so reading a column is plain
+ * memory access and a scan only touches the columns it needs. Each column gets one of three encodings,
+ * chosen from its values when the store is built:
+ * <ul>
+ * <li>LONG: every value is an integer as Long.toString writes it, stored in 8 bytes;</li>
+ * <li>DICTIONARY: few distinct values, stored as a 4-byte code into the list of values in c&lt;n&gt;.dict;</li>
+ * <li>STRING: anything else, stored as the 8-byte end offset of its UTF-8 bytes in c&lt;n&gt;.dat.</li>
+ * </ul>
+ * offsets.col holds the offset of each row's line in the .tsv file, which is what tombstones and index
+ * lookups refer to rows by. A value that does not fit its column's encoding cannot be appended, and the
+ * engine builds the store again instead. Rows shorter than the header read back padded with empty values.
+ *
+ * <p>The files are only appended to, under the table's write lock, so a reader that captures the row
+ * count and the mapped buffers under the read lock sees exactly those rows however many are added later.
+ * meta records how many rows the files held, and how much of the .tsv file they cover, at the last
+ * {@link #save}, along with the .tsv file's identity: a store left behind by a table file that has since
+ * been compacted is built again rather than read.
+ */
+public final class ColumnStore implements Closeable {
+    enum Encoding { LONG, DICTIONARY, STRING }
+
+    private static final String META_FILE = "meta";
+    private static final String ROW_OFFSETS_FILE = "offsets.col";
+    private static final long INITIAL_FILE_BYTES = 64 * 1024;
+    // Columns with at most this many distinct values are always worth a dictionary
+    private static final int SMALL_DICTIONARY_ENTRIES = 16;
+
+    private final Path directory;
+    private final String fileKey;
+    private final int maxDictionaryEntries;
+    private final String[] columns;
+    private final Encoding[] encodings;
+    private final MappedFile rowOffsets;
+    private final MappedFile[] values;
+    private final MappedFile[] data;
+    private final Dictionary[] dictionaries;
+    private int rowCount;
+    private long coveredBytes;
+
+    private ColumnStore(Path directory, String fileKey, int maxDictionaryEntries, String[] columns, Encoding[] encodings,
+                        int rowCount, long coveredBytes) throws IOException {
+        this.directory = directory;
+        this.fileKey = fileKey;
+        this.maxDictionaryEntries = maxDictionaryEntries;
+        this.columns = columns;
+        this.encodings = encodings;
+        this.rowCount = rowCount;
+        this.coveredBytes = coveredBytes;
+        this.rowOffsets = new MappedFile(directory.resolve(ROW_OFFSETS_FILE));
+        this.values = new MappedFile[columns.length];
+        this.data = new MappedFile[columns.length];
+        this.dictionaries = new Dictionary[columns.length];
+        for (int column = 0; column < columns.length; column++) {
+            values[column] = new MappedFile(directory.resolve("c" + column + ".col"));
+            if (encodings[column] == Encoding.STRING) {
+                data[column] = new MappedFile(directory.resolve("c" + column + ".dat"));
+            } else if (encodings[column] == Encoding.DICTIONARY) {
+                dictionaries[column] = new Dictionary(directory.resolve("c" + column + ".dict"));
+            }
+        }
+    }
+
+    /**
+     * Builds a store in directory from the table file, replacing whatever was there. Must be called
+     * under the table's read lock. Reads the file twice: once to pick the encodings, once to fill the columns.
+     */
+    public static ColumnStore build(Path tablePath, Path directory, int maxDictionaryEntries) throws IOException {
+        delete(directory);
+        Files.createDirectories(directory);
+        String[] columns;
+        boolean[] integers;
+        List<Set<String>> distinct = new ArrayList<>();
+        int rows = 0;
+        try (TableFileReader reader = new TableFileReader(tablePath)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("Table file has no header: " + tablePath);
+            }
+            columns = header.split("\t");
+            integers = new boolean[columns.length];
+            Arrays.fill(integers, true);
+            for (int column = 0; column < columns.length; column++) {
+                distinct.add(new HashSet<>());
+            }
+            String[] row;
+            while ((row = reader.readRow()) != null) {
+                if (Tombstones.isTombstone(row[0])) {
+                    continue;
+                }
+                rows++;
+                for (int column = 0; column < columns.length; column++) {
+                    String value = valueOf(row, column);
+                    integers[column] &= isLong(value);
+                    Set<String> seen = distinct.get(column);
+                    if (seen != null && seen.add(value) && seen.size() > maxDictionaryEntries) {
+                        distinct.set(column, null);
+                    }
+                }
+            }
+        }
+        Encoding[] encodings = new Encoding[columns.length];
+        for (int column = 0; column < columns.length; column++) {
+            Set<String> seen = distinct.get(column);
+            if (rows > 0 && integers[column]) {
+                encodings[column] = Encoding.LONG;
+            } else if (seen != null && (seen.size() <= SMALL_DICTIONARY_ENTRIES || seen.size() * 4L <= rows)) {
+                encodings[column] = Encoding.DICTIONARY;
+            } else {
+                encodings[column] = Encoding.STRING;
+            }
+        }
+        ColumnStore store = new ColumnStore(directory, fileKey(tablePath), maxDictionaryEntries, columns, encodings, 0, 0);
+        try (TableFileReader reader = new TableFileReader(tablePath)) {
+            reader.readLine();
+            String[] row;
+            while ((row = reader.readRow()) != null) {
+                if (!Tombstones.isTombstone(row[0]) && !store.append(row, reader.getLineOffset())) {
+                    throw new IOException("The table file changed while its columns were built");
+                }
+            }
+            store.coveredBytes = reader.getBytesRead();
+            store.save();
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * The store saved in directory, caught up with the rows appended to the table file since it was last
+     * saved, or null if there is none that can be used. Must be called under the table's read lock.
+     */
+    public static ColumnStore open(Path tablePath, Path directory, int maxDictionaryEntries) throws IOException {
+        Path metaPath = directory.resolve(META_FILE);
+        if (!Files.exists(metaPath)) {
+            return null;
+        }
+        List<String> meta = Files.readAllLines(metaPath, StandardCharsets.UTF_8);
+        String fileKey = fileKey(tablePath);
+        if (meta.size() < 4 || fileKey == null || !meta.get(0).equals(fileKey)) {
+            return null;
+        }
+        String[] counts = meta.get(1).split("\t");
+        long coveredBytes = Long.parseLong(counts[1]);
+        if (coveredBytes > Files.size(tablePath)) {
+            return null;
+        }
+        Encoding[] encodings = Arrays.stream(meta.get(3).split("\t")).map(Encoding::valueOf).toArray(Encoding[]::new);
+        ColumnStore store = new ColumnStore(directory, fileKey, maxDictionaryEntries, meta.get(2).split("\t"), encodings,
+                Integer.parseInt(counts[0]), coveredBytes);
+        try (TableFileReader reader = new TableFileReader(tablePath, coveredBytes, Long.MAX_VALUE)) {
+            String[] row;
+            while ((row = reader.readRow()) != null) {
+                if (!Tombstones.isTombstone(row[0]) && !store.append(row, reader.getLineOffset())) {
+                    store.close();
+                    return null;
+                }
+            }
+            store.coveredBytes += reader.getBytesRead();
+        }
+        return store;
+    }
+
+    /**
+     * Appends a row whose line starts at offset in the table file, or returns false, changing nothing,
+     * if one of its values does not fit its column's encoding. Must be called under the table's write lock
+     * (or, while the store is being built, its read lock).
+     */
+    public boolean append(String[] row, long offset) throws IOException {
+        for (int column = 0; column < columns.length; column++) {
+            String value = valueOf(row, column);
+            if (encodings[column] == Encoding.LONG && !isLong(value)
+                    || encodings[column] == Encoding.DICTIONARY && !dictionaries[column].canAdd(value, maxDictionaryEntries)) {
+                return false;
+            }
+        }
+        int index = rowCount;
+        rowOffsets.ensureCapacity(8L * (index + 1)).putLong(8 * index, offset);
+        for (int column = 0; column < columns.length; column++) {
+            String value = valueOf(row, column);
+            switch (encodings[column]) {
+                case LONG:
+                    values[column].ensureCapacity(8L * (index + 1)).putLong(8 * index, Long.parseLong(value));
+                    break;
+                case DICTIONARY:
+                    values[column].ensureCapacity(4L * (index + 1)).putInt(4 * index, dictionaries[column].codeOf(value));
+                    break;
+                default:
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer ends = values[column].ensureCapacity(8L * (index + 1));
+                    long start = index == 0 ? 0 : ends.getLong(8 * (index - 1));
+                    data[column].ensureCapacity(start + bytes.length).put((int) start, bytes);
+                    ends.putLong(8 * index, start + bytes.length);
+            }
+        }
+        rowCount++;
+        return true;
+    }
+
+    // Records that the store now covers the table file up to endOffset; called under the table's write lock
+    public void covered(long endOffset) {
+        coveredBytes = Math.max(coveredBytes, endOffset);
+    }
+
+    // A reader of the rows the store has now. Must be called under the table's read lock
+    public StorageEngine.TableReader reader() {
+        return new Reader();
+    }
+
+    // Syncs the files and writes meta. Must be called under the table's read lock
+    public void save() throws IOException {
+        rowOffsets.force();
+        for (int column = 0; column < columns.length; column++) {
+            values[column].force();
+            if (data[column] != null) {
+                data[column].force();
+            }
+            if (dictionaries[column] != null) {
+                dictionaries[column].force();
+            }
+        }
+        String meta = (fileKey == null ? "" : fileKey) + "\n"
+                + rowCount + "\t" + coveredBytes + "\n"
+                + String.join("\t", columns) + "\n"
+                + String.join("\t", Arrays.stream(encodings).map(Encoding::name).toArray(String[]::new)) + "\n";
+        // Written to a temporary file first so a crash never leaves a half-written meta behind
+        Path tempPath = directory.resolve(META_FILE + ".tmp");
+        Files.writeString(tempPath, meta, StandardCharsets.UTF_8);
+        Files.move(tempPath, directory.resolve(META_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        rowOffsets.close();
+        for (int column = 0; column < columns.length; column++) {
+            values[column].close();
+            if (data[column] != null) {
+                data[column].close();
+            }
+            if (dictionaries[column] != null) {
+                dictionaries[column].close();
+            }
+        }
+    }
+
+    // Deletes a store's directory, if there is one. Readers that have the files mapped can go on reading them
+    public static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // Identifies the table file itself, not its name, so a store can tell the file has been replaced; null if the platform cannot
+    private static String fileKey(Path tablePath) throws IOException {
+        Object key = Files.readAttributes(tablePath, BasicFileAttributes.class).fileKey();
+        return key == null ? null : key.toString();
+    }
+
+    private static String valueOf(String[] row, int column) {
+        return column < row.length ? row[column] : "";
+    }
+
+    // Whether the value reads back the same after a round trip through a long
+    static boolean isLong(String value) {
+        int length = value.length();
+        int start = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+        if (length == start || length - start > 19 || value.charAt(start) == '0' && length - start > 1 || value.equals("-0")) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private final class Reader implements StorageEngine.TableReader {
+        private final int rowCount = ColumnStore.this.rowCount;
+        private final ByteBuffer offsets = rowOffsets.buffer();
+        private final ByteBuffer[] columnValues = new ByteBuffer[columns.length];
+        private final ByteBuffer[] columnData = new ByteBuffer[columns.length];
+        private final String[][] dictionaryValues = new String[columns.length][];
+        private long rowsScanned;
+
+        Reader() {
+            for (int column = 0; column < columns.length; column++) {
+                columnValues[column] = values[column].buffer();
+                if (data[column] != null) {
+                    columnData[column] = data[column].buffer();
+                }
+                if (dictionaries[column] != null) {
+                    dictionaryValues[column] = dictionaries[column].values;
+                }
+            }
+        }
+
+        @Override
+        public long forEachRow(long[] rowOffsets, long[] dead, BitSet columnSet, Condition condition, OffsetRowVisitor visitor) throws IOException {
+            int[] wanted = wanted(columnSet);
+            long visited = 0;
+            if (rowOffsets != null) {
+                for (long offset : rowOffsets) {
+                    if (visitor.isDone()) {
+                        break;
+                    }
+                    int index = indexOf(offset);
+                    if (index >= 0) {
+                        visit(row(index, wanted), offset, condition, visitor);
+                        visited++;
+                    }
+                }
+                return visited * rowBytes(wanted);
+            }
+            for (int index = 0; index < rowCount && !visitor.isDone(); index++) {
+                long offset = offsets.getLong(8 * index);
+                if (!Tombstones.isDead(dead, offset)) {
+                    visit(row(index, wanted), offset, condition, visitor);
+                    visited++;
+                }
+            }
+            return 8L * rowCount + visited * rowBytes(wanted);
+        }
+
+        private void visit(String[] row, long offset, Condition condition, OffsetRowVisitor visitor) throws IOException {
+            rowsScanned++;
+            if (condition == null || condition.matches(row)) {
+                visitor.visit(row, offset);
+            }
+        }
+
+        @Override
+        public long getRowsScanned() {
+            return rowsScanned;
+        }
+
+        // The slices share the buffers, which is safe since every read from them is an absolute get
+        @Override
+        public Aggregation.Partial aggregate(Aggregation aggregation, long[] dead, int parallelism, AtomicLong bytesRead) {
+            int[] wanted = wanted(aggregation.getColumns());
+            bytesRead.addAndGet(rowCount * (8 + rowBytes(wanted)));
+            return aggregation.aggregateRows(rowCount,
+                    index -> Tombstones.isDead(dead, offsets.getLong(8 * index)) ? null : row(index, wanted), parallelism);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private int[] wanted(BitSet columnSet) {
+            if (columnSet == null) {
+                int[] all = new int[columns.length];
+                Arrays.setAll(all, column -> column);
+                return all;
+            }
+            return columnSet.stream().filter(column -> column < columns.length).toArray();
+        }
+
+        // The bytes read per row from the wanted columns, leaving out the contents of STRING values
+        private long rowBytes(int[] wanted) {
+            long bytes = 0;
+            for (int column : wanted) {
+                bytes += encodings[column] == Encoding.DICTIONARY ? 4 : 8;
+            }
+            return bytes;
+        }
+
+        private int indexOf(long offset) {
+            int low = 0;
+            int high = rowCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long value = offsets.getLong(8 * middle);
+                if (value < offset) {
+                    low = middle + 1;
+                } else if (value > offset) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        private String[] row(int index, int[] wanted) {
+            String[] row = new String[columns.length];
+            for (int column : wanted) {
+                ByteBuffer buffer = columnValues[column];
+                switch (encodings[column]) {
+                    case LONG:
+                        row[column] = Long.toString(buffer.getLong(8 * index));
+                        break;
+                    case DICTIONARY:
+                        row[column] = dictionaryValues[column][buffer.getInt(4 * index)];
+                        break;
+                    default:
+                        int start = index == 0 ? 0 : (int) buffer.getLong(8 * (index - 1));
+                        byte[] bytes = new byte[(int) buffer.getLong(8 * index) - start];
+                        columnData[column].get(start, bytes);
+                        row[column] = new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+            return row;
+        }
+    }
+
+    // A file mapped read-write, mapped again larger (which grows the file) whenever it fills up
+    private static final class MappedFile implements Closeable {
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        MappedFile(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_FILE_BYTES, channel.size()));
+        }
+
+        ByteBuffer buffer() {
+            return buffer;
+        }
+
+        // The buffer, with at least the first size bytes of the file mapped
+        ByteBuffer ensureCapacity(long size) throws IOException {
+            if (size > buffer.capacity()) {
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Column file would be larger than 2GB");
+                }
+                long capacity = Math.min(Integer.MAX_VALUE, Math.max(size, 2L * buffer.capacity()));
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            return buffer;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // The distinct values of a DICTIONARY column in code order, also appended to its file one per line
+    private static final class Dictionary implements Closeable {
+        private final FileChannel file;
+        private final Map<String, Integer> codes = new HashMap<>();
+        // Readers keep the array they were given and only look up the codes it had then; it is copied when it fills up
+        private String[] values;
+        private int size;
+
+        Dictionary(Path path) throws IOException {
+            List<String> saved = new ArrayList<>();
+            if (Files.exists(path)) {
+                String text = Files.readString(path, StandardCharsets.UTF_8);
+                int start = 0;
+                int end;
+                while ((end = text.indexOf('\n', start)) >= 0) {
+                    saved.add(text.substring(start, end));
+                    start = end + 1;
+                }
+            }
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // Anything after the last complete line was cut short by a crash
+            file.truncate(saved.stream().mapToLong(value -> value.getBytes(StandardCharsets.UTF_8).length + 1L).sum());
+            file.position(file.size());
+            values = new String[Math.max(16, saved.size())];
+            for (String value : saved) {
+                codes.putIfAbsent(value, size);
+                values[size++] = value;
+            }
+        }
+
+        boolean canAdd(String value, int maxEntries) {
+            return size < maxEntries || codes.containsKey(value);
+        }
+
+        int codeOf(String value) throws IOException {
+            Integer code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            ByteBuffer line = ByteBuffer.wrap((value + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                file.write(line);
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = value;
+            codes.put(value, size);
+            return size++;
+        }
+
+        void force() throws IOException {
+            file.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package edu.uob;
+
+import java.math.BigDecimal;
+
+/**
+ * The type a column is declared with in CREATE TABLE; a column declared without one is a VARCHAR, and the
+ * id column is always an INT. Values are still written to the .tsv file as text, but only in one canonical
+ * form per value (see {@link #normalize}), so that a cached {@link Table} can hold the column in a
+ * primitive array and give back exactly the text that was stored.
+ */
+public enum ColumnType {
+    INT, BIGINT, DOUBLE, BOOLEAN, VARCHAR;
+
+    /**
+     * NULL is allowed in a column of any type. It is held and stored as a NUL character, which no value
+     * can contain, so that the text 'NULL' stays text; {@link #display} shows it to clients as NULL.
+     */
+    public static final String NULL = "\0";
+
+    // How a value is shown to a client
+    public static String display(String value) {
+        return NULL.equals(value) ? "NULL" : value;
+    }
+
+    // The type named in a CREATE TABLE, in any case
+    public static ColumnType named(String name) {
+        for (ColumnType type : values()) {
+            if (type.name().equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column type " + name);
+    }
+
+    /**
+     * The form value is stored in, or null if it is not a value of this type: integers as Long.toString
+     * writes them, doubles as {@link #formatDouble} does, and booleans as TRUE or FALSE.
+     */
+    public String normalize(String value) {
+        if (this == VARCHAR || value.equals(NULL)) {
+            return this == VARCHAR ? value : NULL;
+        }
+        try {
+            switch (this) {
+                case INT:
+                    return Integer.toString(Integer.parseInt(value.trim()));
+                case BIGINT:
+                    return Long.toString(Long.parseLong(value.trim()));
+                case DOUBLE:
+                    return Condition.isNumeric(value.trim()) ? formatDouble(Double.parseDouble(value.trim())) : null;
+                default:
+                    if (value.equalsIgnoreCase("TRUE") || value.equalsIgnoreCase("FALSE")) {
+                        return value.toUpperCase();
+                    }
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Double.toString, but never in scientific notation, which Condition would not take for a number
+    static String formatDouble(double value) {
+        String text = Double.toString(value);
+        return text.indexOf('E') < 0 ? text : BigDecimal.valueOf(value).toPlainString();
+    }
+
+    // Whether value is already in the form normalize gives, so that a primitive column can hold it
+    public boolean isCanonical(String value) {
+        return !value.equals(NULL) && value.equals(normalize(value));
+    }
+}
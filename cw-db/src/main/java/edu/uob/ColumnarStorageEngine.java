@@ -0,0 +1,140 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+/**
+ * Reads tables from a {@link ColumnStore} per table, so that a SELECT of a few columns of a wide table
+ * decodes just those columns rather than splitting every .tsv line. A table's store is opened (or built
+ * from its .tsv file) the first time it is read and kept up to date as rows are appended; when a new
+ * value does not fit a column's encoding, or a compaction replaces the .tsv file, it is dropped and built
+ * again on the next read. A table that cannot be stored in columns is read through the fallback engine.
+ */
+public class ColumnarStorageEngine implements StorageEngine {
+    private static final Logger LOGGER = Logger.getLogger(ColumnarStorageEngine.class.getName());
+    private static final String DIRECTORY_SUFFIX = ".columns";
+
+    private final TableLocks tableLocks;
+    private final StorageEngine fallback;
+    private final int maxDictionaryEntries;
+    private final Map<Path, ColumnStore> stores = new ConcurrentHashMap<>();
+    private final Set<Path> unsupported = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param fallback             hears about every table too, so that it is up to date for any table
+     *                             that cannot be stored in columns
+     * @param maxDictionaryEntries the most distinct values a DICTIONARY column can hold
+     */
+    public ColumnarStorageEngine(TableLocks tableLocks, StorageEngine fallback, int maxDictionaryEntries) {
+        this.tableLocks = tableLocks;
+        this.fallback = fallback;
+        this.maxDictionaryEntries = maxDictionaryEntries;
+    }
+
+    @Override
+    public TableReader openReader(Path tablePath, TableCatalog.TableInfo info) throws IOException {
+        if (!unsupported.contains(tablePath)) {
+            try {
+                // Under the read lock, so no row can be appended while a store is opened or built
+                return stores.computeIfAbsent(tablePath, this::openStore).reader();
+            } catch (UncheckedIOException e) {
+                LOGGER.warning("Reading " + tablePath + " from its table file instead: " + e.getCause().getMessage());
+                unsupported.add(tablePath);
+            }
+        }
+        return fallback.openReader(tablePath, info);
+    }
+
+    private ColumnStore openStore(Path tablePath) {
+        Path directory = directoryOf(tablePath);
+        try {
+            ColumnStore store = ColumnStore.open(tablePath, directory, maxDictionaryEntries);
+            if (store == null) {
+                LOGGER.info("Building the columns of " + tablePath);
+                store = ColumnStore.build(tablePath, directory, maxDictionaryEntries);
+            }
+            return store;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void tableCreated(Path tablePath, String[] columns, ColumnType[] types) {
+        fallback.tableCreated(tablePath, columns, types);
+    }
+
+    // A table whose store has not been opened yet catches up from its table file when it is
+    @Override
+    public void rowAppended(Path tablePath, String[] row, long offset, long length) {
+        fallback.rowAppended(tablePath, row, offset, length);
+        ColumnStore store = stores.get(tablePath);
+        if (store == null) {
+            return;
+        }
+        try {
+            if (store.append(row, offset)) {
+                store.covered(offset + length);
+                return;
+            }
+            LOGGER.info("Dropping the columns of " + tablePath + ", since a new value does not fit their encoding");
+        } catch (IOException e) {
+            LOGGER.warning("Dropping the columns of " + tablePath + ": " + e.getMessage());
+        }
+        dropStore(tablePath);
+    }
+
+    @Override
+    public void tableReplaced(Path tablePath) {
+        fallback.tableReplaced(tablePath);
+        unsupported.remove(tablePath);
+        dropStore(tablePath);
+    }
+
+    private void dropStore(Path tablePath) {
+        ColumnStore store = stores.remove(tablePath);
+        try {
+            if (store != null) {
+                store.close();
+            }
+            ColumnStore.delete(directoryOf(tablePath));
+        } catch (IOException e) {
+            LOGGER.warning("Error deleting the columns of " + tablePath + ": " + e.getMessage());
+        }
+    }
+
+    // Saves every open store of the database, so the next startup only has to catch up with rows appended after this
+    @Override
+    public void checkpoint(Path dbPath) {
+        fallback.checkpoint(dbPath);
+        for (Map.Entry<Path, ColumnStore> entry : stores.entrySet()) {
+            Path tablePath = entry.getKey();
+            if (!tablePath.getParent().equals(dbPath)) {
+                continue;
+            }
+            Lock readLock = tableLocks.forTable(tablePath).readLock();
+            readLock.lock();
+            try {
+                // Only if it has not been dropped meanwhile
+                if (stores.get(tablePath) == entry.getValue()) {
+                    entry.getValue().save();
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Error saving the columns of " + tablePath + ": " + e.getMessage());
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+
+    private static Path directoryOf(Path tablePath) {
+        String fileName = tablePath.getFileName().toString();
+        return tablePath.resolveSibling(fileName.substring(0, fileName.length() - ".tsv".length()) + DIRECTORY_SUFFIX);
+    }
+}
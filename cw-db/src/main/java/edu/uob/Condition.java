@@ -0,0 +1,410 @@
+package edu.uob;
+
+import java.util.BitSet;
+import java.util.function.ToIntFunction;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed WHERE clause. The parser produces conditions that refer to columns by name and to values by
+ * their position in the command's parameters, so one parsed condition can be reused by every command of
+ * the same shape. {@link #bind} resolves them against a table's columns and a command's parameters,
+ * after which evaluating one against a row is just array lookups and comparisons.
+ */
+public abstract class Condition {
+
+    public enum Operator { EQUALS, NOT_EQUALS, LESS, GREATER, LESS_OR_EQUAL, GREATER_OR_EQUAL, LIKE }
+
+    public abstract boolean matches(String[] row);
+
+    /**
+     * The same test against a row of a cached table, without turning the row back into text: typed
+     * columns are compared as primitives. Only called while the table's monitor is held.
+     */
+    public abstract boolean matches(Table table, int row);
+
+    /**
+     * Returns a copy of this condition ready to be evaluated. Column names are resolved with columnIndex,
+     * which should return -1 for unknown columns, and each value is put in the form its column's type in
+     * types stores values in, so that it compares equal to them.
+     */
+    public abstract Condition bind(ToIntFunction<String> columnIndex, ColumnType[] types, String[] parameters);
+
+    // Sets the indices of the columns a bound condition reads, so a columnar scan only has to decode those
+    public abstract void addColumns(BitSet columns);
+
+    /**
+     * Orders values the same way for comparisons and for ordered indexes: numbers by their exact value and
+     * before any non-numeric value, everything else as plain strings.
+     */
+    public static int compareValues(String left, String right) {
+        return compareValues(left, new Literal(right));
+    }
+
+    // compareValues for a right-hand value that has already been looked at, as a bound comparison's has
+    static int compareValues(String left, Literal right) {
+        boolean leftNumeric = isNumeric(left);
+        if (leftNumeric && right.numeric) {
+            if (isIntegral(left)) {
+                return compareNumbers(Long.parseLong(left), right);
+            }
+            return compareNumbers(Double.parseDouble(left), right);
+        }
+        if (leftNumeric != right.numeric) {
+            return leftNumeric ? -1 : 1;
+        }
+        return left.compareTo(right.text);
+    }
+
+    // Integers are compared as longs, since above 2^53 neighbouring ones are the same double
+    static int compareNumbers(long left, Literal right) {
+        return right.integral ? Long.compare(left, right.longValue) : compareExactly(left, right.doubleValue);
+    }
+
+    static int compareNumbers(double left, Literal right) {
+        return right.integral ? -compareExactly(right.longValue, left) : Double.compare(left, right.doubleValue);
+    }
+
+    // How a long compares to a double, without rounding the long to a double first
+    private static int compareExactly(long left, double right) {
+        if (right >= 0x1p63) {
+            return -1;
+        }
+        if (right < -0x1p63) {
+            return 1;
+        }
+        double floor = Math.floor(right);
+        int order = Long.compare(left, (long) floor);
+        if (order != 0) {
+            return order;
+        }
+        // Equal to a whole number; Double.compare still puts -0.0 before 0, as it does between doubles
+        return floor == right ? Double.compare(left, right) : -1;
+    }
+
+    // Equal values (by compareValues) always normalise to the same key, so 65 and 65.0 share a hash index bucket
+    public static String normalizeKey(String value) {
+        if (isSmallInteger(value)) {
+            // What Double.toString gives for these, without the cost of formatting a double
+            return value + ".0";
+        }
+        if (!isNumeric(value)) {
+            return value;
+        }
+        if (isIntegral(value)) {
+            // An integer no double equals keeps a key of its own
+            long number = Long.parseLong(value);
+            return compareExactly(number, number) == 0 ? Double.toString(number) : Long.toString(number);
+        }
+        return Double.toString(Double.parseDouble(value));
+    }
+
+    // Up to 7 digits with no leading zero, which Double.toString writes as the digits followed by ".0"
+    private static boolean isSmallInteger(String value) {
+        int start = value.startsWith("-") ? 1 : 0;
+        int digits = value.length() - start;
+        if (digits == 0 || digits > 7 || (value.charAt(start) == '0' && digits > 1)) {
+            return false;
+        }
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return !value.equals("-0");
+    }
+
+    static boolean isNumeric(String value) {
+        int length = value.length();
+        int i = 0;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            i++;
+        }
+        boolean digits = false;
+        boolean point = false;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    // Whether a numeric value is written without a point and fits in a long, so it can be compared as one
+    static boolean isIntegral(String numeric) {
+        if (numeric.indexOf('.') >= 0) {
+            return false;
+        }
+        // Up to 18 digits always fit
+        if (numeric.length() <= 18) {
+            return true;
+        }
+        try {
+            Long.parseLong(numeric);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A value that rows are compared against, looked at once rather than for every row: whether it is a
+     * number, and if so its value, as a long when it is integral and as a double otherwise.
+     */
+    static final class Literal {
+        final String text;
+        final boolean numeric;
+        final boolean integral;
+        final long longValue;
+        final double doubleValue;
+
+        Literal(String text) {
+            this.text = text;
+            this.numeric = text != null && isNumeric(text);
+            this.integral = numeric && isIntegral(text);
+            this.longValue = integral ? Long.parseLong(text) : 0;
+            this.doubleValue = numeric && !integral ? Double.parseDouble(text) : 0;
+        }
+    }
+
+    public static class Comparison extends Condition {
+        private final String column;
+        private final int columnIndex;
+        private final Operator operator;
+        private final int parameter;
+        private final String value;
+        private final boolean valueNull;
+        private final Literal literal;
+        private final Pattern likePattern;
+
+        // An unbound comparison, as produced by the parser
+        Comparison(String column, Operator operator, int parameter) {
+            this(column, -1, operator, parameter, null);
+        }
+
+        private Comparison(String column, int columnIndex, Operator operator, int parameter, String value) {
+            this.column = column;
+            this.columnIndex = columnIndex;
+            this.operator = operator;
+            this.parameter = parameter;
+            this.value = value;
+            this.valueNull = ColumnType.NULL.equals(value);
+            this.literal = new Literal(value);
+            this.likePattern = operator == Operator.LIKE && value != null ? compileLike(value) : null;
+        }
+
+        @Override
+        public Condition bind(ToIntFunction<String> columnIndex, ColumnType[] types, String[] parameters) {
+            int index = columnIndex.applyAsInt(column);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown column " + column);
+            }
+            String value = parameters[parameter];
+            if (operator != Operator.LIKE && index < types.length) {
+                value = normalize(value, types[index]);
+            }
+            return new Comparison(column, index, operator, parameter, value);
+        }
+
+        /**
+         * The value as the column stores it, so that true finds TRUE. A number that is not of the column's
+         * numeric type, such as 60.5 for an INT, is still compared as a number; anything else that is not
+         * of the column's type could never match, so the query is rejected.
+         */
+        private String normalize(String value, ColumnType type) {
+            String normalized = type.normalize(value);
+            if (normalized != null) {
+                return normalized;
+            }
+            if (type != ColumnType.BOOLEAN && isNumeric(value.trim())) {
+                return value.trim();
+            }
+            throw new IllegalArgumentException("'" + value + "' is not a valid " + type + " for column " + column);
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        @Override
+        public void addColumns(BitSet columns) {
+            columns.set(columnIndex);
+        }
+
+        public Operator getOperator() {
+            return operator;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean matches(String[] row) {
+            if (columnIndex >= row.length) {
+                return false;
+            }
+            String cell = row[columnIndex];
+            boolean cellNull = ColumnType.NULL.equals(cell);
+            if (cellNull || valueNull) {
+                return holdsForNull(cellNull);
+            }
+            if (operator == Operator.LIKE) {
+                return likePattern.matcher(cell).matches();
+            }
+            return holds(compareValues(cell, literal));
+        }
+
+        @Override
+        public boolean matches(Table table, int row) {
+            if (columnIndex >= table.getColumns().length) {
+                return false;
+            }
+            boolean cellNull = table.isNullAt(row, columnIndex);
+            if (cellNull || valueNull) {
+                return holdsForNull(cellNull);
+            }
+            if (operator == Operator.LIKE) {
+                return likePattern.matcher(table.valueAt(row, columnIndex)).matches();
+            }
+            return holds(table.compareValueAt(row, columnIndex, literal));
+        }
+
+        /**
+         * A NULL is not ordered against anything, as aggregates skip it, so only equality holds for it:
+         * NULL == NULL, and != between a NULL and a value that is not NULL. Every other comparison is false.
+         */
+        private boolean holdsForNull(boolean cellNull) {
+            switch (operator) {
+                case EQUALS:
+                    return cellNull && valueNull;
+                case NOT_EQUALS:
+                    return cellNull != valueNull;
+                default:
+                    return false;
+            }
+        }
+
+        // Whether the operator holds, given how the cell compares to the value
+        private boolean holds(int comparison) {
+            switch (operator) {
+                case EQUALS:
+                    return comparison == 0;
+                case NOT_EQUALS:
+                    return comparison != 0;
+                case LESS:
+                    return comparison < 0;
+                case GREATER:
+                    return comparison > 0;
+                case LESS_OR_EQUAL:
+                    return comparison <= 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+
+        // SQL wildcards: % is any run of characters and _ is any single character
+        private static Pattern compileLike(String pattern) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : pattern.toCharArray()) {
+                if (c == '%' || c == '_') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '%' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+    }
+
+    public static class And extends Condition {
+        private final Condition left;
+        private final Condition right;
+
+        And(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public Condition getLeft() {
+            return left;
+        }
+
+        public Condition getRight() {
+            return right;
+        }
+
+        @Override
+        public boolean matches(String[] row) {
+            return left.matches(row) && right.matches(row);
+        }
+
+        @Override
+        public boolean matches(Table table, int row) {
+            return left.matches(table, row) && right.matches(table, row);
+        }
+
+        @Override
+        public void addColumns(BitSet columns) {
+            left.addColumns(columns);
+            right.addColumns(columns);
+        }
+
+        @Override
+        public Condition bind(ToIntFunction<String> columnIndex, ColumnType[] types, String[] parameters) {
+            return new And(left.bind(columnIndex, types, parameters), right.bind(columnIndex, types, parameters));
+        }
+    }
+
+    public static class Or extends Condition {
+        private final Condition left;
+        private final Condition right;
+
+        Or(Condition left, Condition right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public Condition getLeft() {
+            return left;
+        }
+
+        public Condition getRight() {
+            return right;
+        }
+
+        @Override
+        public boolean matches(String[] row) {
+            return left.matches(row) || right.matches(row);
+        }
+
+        @Override
+        public boolean matches(Table table, int row) {
+            return left.matches(table, row) || right.matches(table, row);
+        }
+
+        @Override
+        public void addColumns(BitSet columns) {
+            left.addColumns(columns);
+            right.addColumns(columns);
+        }
+
+        @Override
+        public Condition bind(ToIntFunction<String> columnIndex, ColumnType[] types, String[] parameters) {
+            return new Or(left.bind(columnIndex, types, parameters), right.bind(columnIndex, types, parameters));
+        }
+    }
+}
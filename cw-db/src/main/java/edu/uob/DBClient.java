@@ -1,38 +1,368 @@
 package edu.uob;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
 
-public class DBClient {
+/**
+ * A connection to a DBServer. {@link #submit} sends a command straight away and returns a future for its
+ * response, so any number of commands can be in flight at once (pipelining); the server answers them in
+ * the order they were sent, and a reader thread hands each response to the oldest waiting future.
+ *
+ * <p>With {@link Protocol#BINARY} the connection is switched to the binary protocol (see
+ * {@link BinaryProtocol}) as soon as it is opened, so SELECT results arrive as rows of typed values that
+ * {@link #query} hands over without any parsing; {@link Protocol#BINARY_COMPRESSED} deflates large
+ * frames as well. Either way {@link #submit} returns the same text the text protocol would.
+ *
+ * <p>Run as "DBClient [--pipeline] [--binary] [host [port]]". Commands are read from standard input, one
+ * per line: by default each is answered before the next is read, with --pipeline every command is sent
+ * as soon as it is read and the responses are printed as they arrive.
+ */
+public class DBClient implements Closeable {
+    public enum Protocol { TEXT, BINARY, BINARY_COMPRESSED }
 
-    private static final char END_OF_TRANSMISSION = 4;
+    private final Socket socket;
+    private final Protocol protocol;
+    private final BufferedWriter socketWriter;
+    private final InputStream socketInput;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final Queue<CompletableFuture<Response>> pending = new ConcurrentLinkedQueue<>();
+    private volatile IOException failure;
+
+    public DBClient(String host, int port) throws IOException {
+        this(host, port, Protocol.TEXT);
+    }
+
+    public DBClient(String host, int port, Protocol protocol) throws IOException {
+        socket = new Socket(host, port);
+        this.protocol = protocol;
+        try {
+            socket.setTcpNoDelay(true);
+            socketWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            socketInput = new BufferedInputStream(new CountingInputStream(socket.getInputStream(), bytesReceived));
+            if (protocol != Protocol.TEXT) {
+                // Answered in text, before the reader starts expecting frames
+                socketWriter.write(protocol == Protocol.BINARY ? BinaryProtocol.HANDSHAKE : BinaryProtocol.HANDSHAKE_COMPRESSED);
+                socketWriter.write('\n');
+                socketWriter.flush();
+                String response = readHandshakeResponse();
+                if (!response.startsWith("[OK]")) {
+                    throw new IOException("Server did not switch to the binary protocol: " + response);
+                }
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Thread reader = new Thread(this::readResponses, "db-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Sends the command without waiting for the responses to earlier ones
+    public CompletableFuture<String> submit(String command) {
+        return query(command).thenApply(Response::getText);
+    }
+
+    // As submit, but the response keeps SELECT rows apart, typed if the protocol is binary
+    public CompletableFuture<Response> query(String command) {
+        if (command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0 || command.trim().isEmpty()) {
+            throw new IllegalArgumentException("A command has to be one line that is not empty");
+        }
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        synchronized (socketWriter) {
+            if (failure != null) {
+                response.completeExceptionally(failure);
+                return response;
+            }
+            // Queued before it is sent, so its response cannot arrive before it is waited for
+            pending.add(response);
+            try {
+                socketWriter.write(command);
+                socketWriter.write('\n');
+                socketWriter.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return response;
+    }
+
+    // Sends the command and waits for its response
+    public String send(String command) throws IOException {
+        try {
+            return submit(command).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Bytes read from the server so far, frames and text alike
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Closed first, so that a command blocked sending gives up the lock fail needs
+        socket.close();
+        fail(new IOException("Client closed"));
+    }
+
+    private void readResponses() {
+        try {
+            if (protocol == Protocol.TEXT) {
+                readTextResponses();
+            } else {
+                readBinaryResponses();
+            }
+            fail(new IOException("Server disconnected (end-of-stream)"));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void readTextResponses() throws IOException {
+        BufferedReader socketReader = new BufferedReader(new InputStreamReader(socketInput, StandardCharsets.UTF_8));
+        StringBuilder response = new StringBuilder();
+        String line;
+        while ((line = socketReader.readLine()) != null) {
+            if (!line.equals(SelectorServer.END_OF_TRANSMISSION)) {
+                // A line that would read as EOT comes with a backslash in front
+                if (SelectorServer.isEscapedLine(line, 0, line.length())) {
+                    line = line.substring(1);
+                }
+                response.append(response.length() == 0 ? "" : "\n").append(line);
+                continue;
+            }
+            complete(Response.ofText(response.toString()));
+            response.setLength(0);
+        }
+    }
+
+    private void readBinaryResponses() throws IOException {
+        DataInputStream in = new DataInputStream(socketInput);
+        Inflater inflater = new Inflater();
+        try {
+            Response response;
+            while ((response = BinaryProtocol.readResponse(in, inflater)) != null) {
+                complete(response);
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void complete(Response response) {
+        CompletableFuture<Response> next = pending.poll();
+        if (next != null) {
+            next.complete(response);
+        }
+    }
+
+    // Reads the text response to the handshake a byte at a time, so nothing after it is read into a buffer
+    private String readHandshakeResponse() throws IOException {
+        StringBuilder response = new StringBuilder();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = socketInput.read()) >= 0) {
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            String text = line.toString(StandardCharsets.UTF_8);
+            line.reset();
+            if (text.equals(SelectorServer.END_OF_TRANSMISSION)) {
+                return response.toString();
+            }
+            response.append(response.length() == 0 ? "" : "\n").append(text);
+        }
+        throw new IOException("Server disconnected (end-of-stream)");
+    }
+
+    // Fails every command still waiting for its response, and any sent from now on
+    private void fail(IOException e) {
+        synchronized (socketWriter) {
+            if (failure == null) {
+                failure = e;
+            }
+            CompletableFuture<Response> next;
+            while ((next = pending.poll()) != null) {
+                next.completeExceptionally(failure);
+            }
+        }
+    }
 
     public static void main(String[] args) throws IOException {
+        List<String> options = new ArrayList<>(List.of(args));
+        boolean pipeline = options.remove("--pipeline");
+        Protocol protocol = options.remove("--binary") ? Protocol.BINARY : Protocol.TEXT;
+        String host = options.isEmpty() ? "localhost" : options.get(0);
+        int port = options.size() < 2 ? 8080 : Integer.parseInt(options.get(1));
         BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
-        Socket socket = new Socket("localhost", 8888);
-        BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        BufferedWriter socketWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        while (!Thread.interrupted()) {
-            handleNextCommand(input, socketReader, socketWriter);
-        }
-    }
-
-    private static void handleNextCommand(BufferedReader commandLine, BufferedReader socketReader, BufferedWriter socketWriter) throws IOException {
-        System.out.print("SQL:> ");
-        String command = commandLine.readLine();
-        socketWriter.write(command + "\n");
-        socketWriter.flush();
-        String incomingMessage = socketReader.readLine();
-        if (incomingMessage == null) {
-            throw new IOException("Server disconnected (end-of-stream)");
-        }
-        while (incomingMessage != null && !incomingMessage.contains("" + END_OF_TRANSMISSION + "")) {
-            System.out.println(incomingMessage);
-            incomingMessage = socketReader.readLine();
+        try (DBClient client = new DBClient(host, port, protocol)) {
+            CompletableFuture<Void> printed = CompletableFuture.completedFuture(null);
+            String command;
+            while (true) {
+                if (!pipeline) {
+                    System.out.print("SQL:> ");
+                    System.out.flush();
+                }
+                command = input.readLine();
+                if (command == null) {
+                    break;
+                }
+                if (command.trim().isEmpty()) {
+                    continue;
+                }
+                if (pipeline) {
+                    // Chained, so responses are printed in order even if two complete at once
+                    CompletableFuture<String> response = client.submit(command);
+                    printed = printed.thenCombine(response, (ignored, text) -> {
+                        System.out.println(text);
+                        return null;
+                    });
+                } else {
+                    System.out.println(client.send(command));
+                }
+            }
+            printed.join();
+        }
+    }
+
+    /**
+     * A response to a command. A SELECT result's rows are kept apart from its "[OK]" line: over the binary
+     * protocol their values are null, Boolean, Long, Double or String by the types of their columns, as
+     * {@link BinaryProtocol} sent them, and over the text protocol they are left as the text they were.
+     *
+     * <p>A SELECT that fails after some of its rows were sent ends with an "[ERROR]" line after them: the
+     * response is then not ok, {@link #getRows} gives the rows that did arrive, and {@link #getText} ends
+     * with the error line. Over the text protocol this is told apart from a row by the line starting with
+     * "[ERROR]": a row that would start that way comes with a backslash in front (see
+     * {@link RowWriter#isEscapedRow}), which {@link #getText} keeps and {@link #getRows} takes off.
+     */
+    public static final class Response {
+        private final List<Object[]> rows;
+        // Text sent after the rows, which is only ever the error that cut them short; null if there is none
+        private final String afterRows;
+        // Whether text that starts with "[OK]" may be a SELECT result, as it may over the text protocol
+        private final boolean rowsInText;
+        // Put together from the rows when first asked for
+        private String text;
+
+        private Response(String text, List<Object[]> rows, String afterRows, boolean rowsInText) {
+            this.text = text;
+            this.rows = rows;
+            this.afterRows = afterRows;
+            this.rowsInText = rowsInText;
+        }
+
+        static Response ofText(String text) {
+            return new Response(text, null, null, true);
+        }
+
+        // A response the binary protocol sent as text, which is never a SELECT result
+        static Response ofTextFrames(String text) {
+            return new Response(text, null, null, false);
+        }
+
+        // afterRows is the text sent after the rows, or null if there was none
+        static Response ofRows(List<Object[]> rows, String afterRows) {
+            return new Response(null, Collections.unmodifiableList(rows), afterRows, false);
+        }
+
+        public boolean isOk() {
+            if (rows != null) {
+                return afterRows == null;
+            }
+            return text.startsWith("[OK]") && !(rowsInText && lastLine(text).startsWith("[ERROR]"));
+        }
+
+        // The response as the text protocol sends it
+        public String getText() {
+            if (text == null) {
+                StringBuilder out = new StringBuilder("[OK]");
+                for (Object[] row : rows) {
+                    out.append('\n');
+                    if (row.length > 0 && RowWriter.isEscapedRow(BinaryProtocol.formatValue(row[0]))) {
+                        out.append('\\');
+                    }
+                    for (int i = 0; i < row.length; i++) {
+                        out.append(i == 0 ? "" : "\t").append(BinaryProtocol.formatValue(row[i]));
+                    }
+                }
+                text = afterRows == null ? out.toString() : out.append(afterRows).toString();
+            }
+            return text;
+        }
+
+        // The rows of a SELECT result, or an empty list if this is not one
+        public List<Object[]> getRows() {
+            if (rows != null) {
+                return rows;
+            }
+            if (!rowsInText || !text.startsWith("[OK]\n")) {
+                return List.of();
+            }
+            String[] lines = text.substring("[OK]\n".length()).split("\n", -1);
+            int rowCount = lines[lines.length - 1].startsWith("[ERROR]") ? lines.length - 1 : lines.length;
+            List<Object[]> parsed = new ArrayList<>();
+            for (int i = 0; i < rowCount; i++) {
+                String line = RowWriter.isEscapedRow(lines[i]) ? lines[i].substring(1) : lines[i];
+                parsed.add(line.split("\t", -1));
+            }
+            return parsed;
+        }
+
+        private static String lastLine(String text) {
+            return text.substring(text.lastIndexOf('\n') + 1);
+        }
+    }
+
+    // Counts the bytes read from the socket, under the buffer so that what is counted is what arrived
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count.addAndGet(read);
+            }
+            return read;
         }
     }
 }
@@ -0,0 +1,77 @@
+package edu.uob;
+
+import java.util.logging.Level;
+
+/**
+ * Tunable server settings. Each value can be overridden with a -D system
+ * property when the server is started, e.g. -Dcwdb.tableCache.maxBytes=1048576
+ */
+final class DBConfig {
+    // Rough upper bound on the memory used by parsed tables held in the TableCache
+    static final long TABLE_CACHE_MAX_BYTES = Long.getLong("cwdb.tableCache.maxBytes", 64L * 1024 * 1024);
+    // When the write-ahead log is fsynced: COMMIT (every group commit), INTERVAL or NONE
+    static final WriteAheadLog.SyncPolicy WAL_SYNC_POLICY =
+            WriteAheadLog.SyncPolicy.valueOf(System.getProperty("cwdb.wal.sync", "COMMIT").toUpperCase());
+    // Only used by the INTERVAL policy
+    static final long WAL_SYNC_INTERVAL_MS = Long.getLong("cwdb.wal.syncIntervalMs", 10);
+    // The log is truncated once it grows past this size and the table files have been synced
+    static final long WAL_CHECKPOINT_BYTES = Long.getLong("cwdb.wal.checkpointBytes", 16L * 1024 * 1024);
+    // How many distinct command shapes keep their parsed statement in the PlanCache
+    static final int PLAN_CACHE_MAX_ENTRIES = Integer.getInteger("cwdb.planCache.maxEntries", 1024);
+
+    // Number of read/write locks that tables are spread over; more stripes means fewer unrelated tables share one
+    static final int TABLE_LOCK_STRIPES = Integer.getInteger("cwdb.tableLocks.stripes", 64);
+    // Lowest level written to DBServer.log, e.g. WARNING to leave out the per-command lines
+    static final Level LOG_LEVEL = Level.parse(System.getProperty("cwdb.log.level", "INFO").toUpperCase());
+    // Log records waiting to be written; once it is full new records are dropped and counted
+    static final int LOG_QUEUE_CAPACITY = Integer.getInteger("cwdb.log.queueCapacity", 8192);
+    // Longer log messages (whole commands and responses) are cut to this many characters
+    static final int LOG_MAX_MESSAGE_CHARS = Integer.getInteger("cwdb.log.maxMessageChars", 1024);
+    // How often the STATS output is appended to STATS_DUMP_FILE; 0 turns the dump off
+    static final long STATS_DUMP_INTERVAL_MS = Long.getLong("cwdb.stats.intervalMs", 60_000);
+    static final String STATS_DUMP_FILE = System.getProperty("cwdb.stats.file", "DBServer.stats");
+    // A join whose smaller table takes more memory than this is partitioned to disk (a grace hash join)
+    static final long JOIN_MEMORY_BYTES = Long.getLong("cwdb.join.memoryBytes", 64L * 1024 * 1024);
+    static final int JOIN_SPILL_PARTITIONS = Integer.getInteger("cwdb.join.spillPartitions", 32);
+    static final String JOIN_SPILL_DIRECTORY = System.getProperty("cwdb.join.spillDirectory", System.getProperty("java.io.tmpdir"));
+    // An ORDER BY keeps this much of its rows in memory at a time, and writes sorted runs of them to disk beyond that
+    static final long SORT_MEMORY_BYTES = Long.getLong("cwdb.sort.memoryBytes", 64L * 1024 * 1024);
+    // How many sorted runs are merged at once; more than that are merged in several passes
+    static final int SORT_MERGE_FAN_IN = Integer.getInteger("cwdb.sort.mergeFanIn", 64);
+    static final String SORT_SPILL_DIRECTORY = System.getProperty("cwdb.sort.spillDirectory", System.getProperty("java.io.tmpdir"));
+    // LOAD DATA only reads files inside this directory, named relative to it
+    static final String IMPORT_DIRECTORY = System.getProperty("cwdb.import.directory", "import");
+
+    // How SELECTs read tables: "tsv" reads the table files, "columnar" keeps each column in its own memory-mapped file
+    static final String STORAGE_ENGINE = System.getProperty("cwdb.storage.engine", "tsv");
+    // The most distinct values a column of the columnar engine keeps in a dictionary before it is stored as plain strings
+    static final int COLUMNAR_DICTIONARY_MAX_ENTRIES = Integer.getInteger("cwdb.columnar.dictionaryMaxEntries", 4096);
+
+    // Memory for whole SELECT responses kept by the ResultCache; 0 turns it off
+    static final long RESULT_CACHE_MAX_BYTES = Long.getLong("cwdb.resultCache.maxBytes", 16L * 1024 * 1024);
+    // Longer responses are never cached, so one large result cannot push out many small ones
+    static final long RESULT_CACHE_MAX_ENTRY_BYTES = Long.getLong("cwdb.resultCache.maxEntryBytes", 1024 * 1024);
+
+    // Threads a scan of a table file too big to cache, or an aggregate query, is split over
+    static final int SCAN_PARALLELISM = Integer.getInteger("cwdb.scan.parallelism", Runtime.getRuntime().availableProcessors());
+    // The size of the byte ranges a table file too big to cache is scanned in, one range per thread at a time
+    static final long SCAN_RANGE_BYTES = Long.getLong("cwdb.scan.rangeBytes", 4L * 1024 * 1024);
+
+    // Threads that run client commands; connections themselves need no thread while they are idle
+    static final int SERVER_WORKER_THREADS = Integer.getInteger("cwdb.server.workerThreads", 64);
+    static final int SERVER_ACCEPT_BACKLOG = Integer.getInteger("cwdb.server.acceptBacklog", 1024);
+    // A connection is not read from while this many of its pipelined commands are waiting to run
+    static final int SERVER_MAX_PIPELINED_COMMANDS = Integer.getInteger("cwdb.server.maxPipelinedCommands", 256);
+    // A response stops being produced while this many of its bytes are waiting for the client to read them
+    static final long SERVER_MAX_UNSENT_BYTES = Long.getLong("cwdb.server.maxUnsentBytes", 1024 * 1024);
+    // A connection that sends a longer line is closed
+    static final int SERVER_MAX_COMMAND_BYTES = Integer.getInteger("cwdb.server.maxCommandBytes", 64 * 1024 * 1024);
+
+    // A table file is compacted once this share of its lines are dead (deleted or replaced rows and their tombstones)
+    static final double COMPACTION_DEAD_RATIO = Double.parseDouble(System.getProperty("cwdb.compaction.deadRatio", "0.5"));
+    // ...and there are at least this many of them, so small tables are not rewritten over and over
+    static final long COMPACTION_MIN_DEAD_ROWS = Long.getLong("cwdb.compaction.minDeadRows", 1000);
+
+    private DBConfig() {
+    }
+}
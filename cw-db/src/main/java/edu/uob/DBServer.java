@@ -1,51 +1,152 @@
 package edu.uob;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.file.*;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ToIntFunction;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.SimpleFormatter;
 import java.util.stream.Stream;
 
-public class DBServer {
+/**
+ * Runs commands against the databases in ./data. A server owns background threads and open files, so
+ * it has to be closed before another one is started on the same data directory.
+ */
+public class DBServer implements Closeable {
     private final String storageFolderPath = "./data";
     private final Map<String, Path> databases = new ConcurrentHashMap<>();
-    private final Map<String, Integer> tableIdCounters = new ConcurrentHashMap<>();
-    private String currentDatabase = null;
+    private final Map<String, WriteAheadLog> writeAheadLogs = new ConcurrentHashMap<>();
+    private final DBSession defaultSession = new DBSession();
+    private final StorageEngine storageEngine;
+    private final TableLocks tableLocks = new TableLocks(DBConfig.TABLE_LOCK_STRIPES);
+    // Scans tables and rebuilds indexes in the background after startup
+    private final ExecutorService tableLoader = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("table-loader-"));
+    private final TableCatalog tableCatalog = new TableCatalog(tableLocks, tableLoader);
+    // Reads the byte ranges of table files too big to cache, for every scan at once
+    private final ExecutorService tableScanner = Executors.newFixedThreadPool(
+            DBConfig.SCAN_PARALLELISM, new DaemonThreadFactory("table-scanner-"));
+    private final IndexCatalog indexCatalog = new IndexCatalog(tableLocks, tableLoader);
+    private final PlanCache planCache = new PlanCache(DBConfig.PLAN_CACHE_MAX_ENTRIES);
+    private final ResultCache resultCache = new ResultCache(DBConfig.RESULT_CACHE_MAX_BYTES, DBConfig.RESULT_CACHE_MAX_ENTRY_BYTES);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final ExecutorService compactorThread = Executors.newSingleThreadExecutor(new DaemonThreadFactory("table-compactor-"));
+    private final TableCompactor compactor = new TableCompactor(tableLocks, tableCatalog, compactorThread, this::tableCompacted,
+            DBConfig.COMPACTION_DEAD_RATIO, DBConfig.COMPACTION_MIN_DEAD_ROWS);
+    private final ScheduledExecutorService statsDumper = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("stats-dump-"));
+    // Called by the write-ahead logs, under the table's write lock, once a change is in its table file
+    private final WriteAheadLog.RowListener rowListener = new WriteAheadLog.RowListener() {
+        @Override
+        public void rowApplied(Path tablePath, String[] row, long offset, long length) {
+            DBServer.this.rowApplied(tablePath, row, offset, length);
+        }
+
+        @Override
+        public void rowDeleted(Path tablePath, long rowOffset, long tombstoneOffset, long length) {
+            DBServer.this.rowDeleted(tablePath, rowOffset, tombstoneOffset, length);
+        }
+    };
 
-    private static final String END_OF_TRANSMISSION = "EOT";
+    private static final int LOAD_CHUNK_ROWS = 10_000;
+    private static final long CLOSE_TIMEOUT_MS = 30_000;
     private static final Logger LOGGER = Logger.getLogger(DBServer.class.getName());
+    // Every logger in the package goes through the handler installed here
+    private static final Logger PACKAGE_LOGGER = Logger.getLogger(DBServer.class.getPackageName());
+    private static AsyncLogHandler logHandler;
 
     public DBServer() {
+        this(DBConfig.TABLE_CACHE_MAX_BYTES);
+    }
+
+    public DBServer(long tableCacheMaxBytes) {
+        this(tableCacheMaxBytes, DBConfig.STORAGE_ENGINE);
+    }
+
+    // storageEngine is "tsv" or "columnar"; the table cache is used by the tsv engine, and by the columnar one for tables it cannot store
+    public DBServer(long tableCacheMaxBytes, String storageEngine) {
+        StorageEngine tsvEngine = new TsvStorageEngine(new TableCache(tableCacheMaxBytes), tableLocks, tableCatalog, metrics,
+                new ParallelScan(tableScanner, DBConfig.SCAN_PARALLELISM, DBConfig.SCAN_RANGE_BYTES));
+        switch (storageEngine) {
+            case "tsv":
+                this.storageEngine = tsvEngine;
+                break;
+            case "columnar":
+                this.storageEngine = new ColumnarStorageEngine(tableLocks, tsvEngine, DBConfig.COLUMNAR_DICTIONARY_MAX_ENTRIES);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown storage engine " + storageEngine);
+        }
         setupLogger();
         loadExistingDatabases();
+        scheduleStatsDump();
     }
 
-    private void setupLogger() {
+    // Only the first server in the JVM installs the handler, so several servers do not each open the log file
+    private static synchronized void setupLogger() {
+        if (logHandler != null) {
+            return;
+        }
         try {
             FileHandler fileHandler = new FileHandler("DBServer.log", true);
             fileHandler.setFormatter(new SimpleFormatter());
-            LOGGER.addHandler(fileHandler);
-            LOGGER.setLevel(Level.INFO);
+            ConsoleHandler consoleHandler = new ConsoleHandler();
+            consoleHandler.setLevel(Level.WARNING);
+            logHandler = new AsyncLogHandler(DBConfig.LOG_QUEUE_CAPACITY, DBConfig.LOG_MAX_MESSAGE_CHARS, fileHandler, consoleHandler);
+            PACKAGE_LOGGER.addHandler(logHandler);
+            PACKAGE_LOGGER.setUseParentHandlers(false);
+            PACKAGE_LOGGER.setLevel(DBConfig.LOG_LEVEL);
             LOGGER.info("Logger initialized.");
         } catch (IOException e) {
             System.err.println("Logger setup failed: " + e.getMessage());
         }
     }
 
+    private void scheduleStatsDump() {
+        if (DBConfig.STATS_DUMP_INTERVAL_MS <= 0) {
+            return;
+        }
+        statsDumper.scheduleAtFixedRate(this::dumpStats, DBConfig.STATS_DUMP_INTERVAL_MS, DBConfig.STATS_DUMP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Appends a timestamped copy of the STATS output to the stats file
+    private void dumpStats() {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(DBConfig.STATS_DUMP_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write("# " + Instant.now() + "\n");
+            writer.write(metrics.format(planCache));
+        } catch (IOException e) {
+            LOGGER.warning("Error writing stats to " + DBConfig.STATS_DUMP_FILE + ": " + e.getMessage());
+        }
+    }
+
+    // Only reads each database's catalog; tables that need scanning are scanned in the background
     private void loadExistingDatabases() {
         LOGGER.info("Loading existing databases...");
-        try (Stream<Path> paths = Files.walk(Paths.get(storageFolderPath))) {
+        try (Stream<Path> paths = Files.list(Paths.get(storageFolderPath))) {
             paths.filter(Files::isDirectory)
                     .forEach(path -> {
                         String dbName = path.getFileName().toString();
                         databases.put(dbName, path);
-                        loadTablesForDatabase(dbName, path);
+                        openWriteAheadLog(dbName, path);
+                        tableCatalog.loadDatabase(path);
+                        indexCatalog.loadDatabase(path);
+                        tableCatalog.saveWhenLoaded(path);
                     });
         } catch (IOException e) {
             LOGGER.severe("Error loading databases: " + e.getMessage());
@@ -53,236 +154,1004 @@ public class DBServer {
         LOGGER.info("Databases loaded successfully.");
     }
 
-    private void loadTablesForDatabase(String dbName, Path dbPath) {
-        LOGGER.info("Loading tables for database: " + dbName);
-        try (Stream<Path> paths = Files.walk(dbPath)) {
-            paths.filter(Files::isRegularFile)
-                    .forEach(tablePath -> {
-                        String tableName = tablePath.getFileName().toString().replace(".tsv", "");
-                        initializeIdCounterForTable(tableName, tablePath);
-                    });
-        } catch (IOException e) {
-            LOGGER.severe("Error loading tables for database " + dbName + ": " + e.getMessage());
-        }
-        LOGGER.info("Tables loaded successfully for database: " + dbName);
-    }
-
-    private void initializeIdCounterForTable(String tableName, Path tablePath) {
-        try (Stream<String> lines = Files.lines(tablePath)) {
-            OptionalInt maxId = lines.skip(1)
-                    .filter(line -> !line.trim().isEmpty())
-                    .mapToInt(line -> {
-                        String[] parts = line.split("\t");
-                        if (parts.length > 0) {
-                            try {
-                                return Integer.parseInt(parts[0]);
-                            } catch (NumberFormatException e) {
-                                LOGGER.severe("Invalid ID format in table " + tableName + ": " + e.getMessage());
-                                return 0;
-                            }
-                        }
-                        return 0;
-                    })
-                    .max();
-            tableIdCounters.put(tableName, maxId.orElse(0) + 1);
+    // Opening the log replays any rows that are missing from the table files, so it has to happen before the catalog is loaded
+    private void openWriteAheadLog(String dbName, Path dbPath) {
+        try {
+            writeAheadLogs.put(dbName, new WriteAheadLog(dbPath, DBConfig.WAL_SYNC_POLICY, DBConfig.WAL_SYNC_INTERVAL_MS,
+                    DBConfig.WAL_CHECKPOINT_BYTES, tableLocks, rowListener, () -> {
+                        tableCatalog.save(dbPath);
+                        storageEngine.checkpoint(dbPath);
+                    }));
         } catch (IOException e) {
-            LOGGER.severe("Error initializing ID counter for table " + tableName + ": " + e.getMessage());
+            LOGGER.severe("Error opening write-ahead log for database " + dbName + ": " + e.getMessage());
+        }
+    }
+
+    private void rowApplied(Path tablePath, String[] row, long offset, long length) {
+        metrics.bytesWritten(tablePath, length);
+        storageEngine.rowAppended(tablePath, row, offset, length);
+        indexCatalog.rowAppended(tablePath, row, offset);
+        tableCatalog.rowAppended(tablePath, offset + length);
+    }
+
+    // A dead row stays in the cache and the indexes until the next compaction; readers skip it using their tombstone snapshot
+    private void rowDeleted(Path tablePath, long rowOffset, long tombstoneOffset, long length) {
+        metrics.bytesWritten(tablePath, length);
+        tableCatalog.rowDeleted(tablePath, rowOffset, tombstoneOffset, tombstoneOffset + length);
+        compactor.compactIfNeeded(tablePath);
+    }
+
+    // Called by the compactor, under the table's write lock, once the compacted file has replaced the old one
+    private void tableCompacted(Path tablePath, LongUnaryOperator newOffset) throws IOException {
+        WriteAheadLog writeAheadLog = writeAheadLogs.get(tablePath.getParent().getFileName().toString());
+        if (writeAheadLog != null) {
+            writeAheadLog.tableReplaced(tablePath);
+        }
+        storageEngine.tableReplaced(tablePath);
+        indexCatalog.tableRewritten(tablePath, newOffset);
+    }
+
+    /**
+     * Commits whatever the write-ahead logs still have queued and closes them, then stops the background
+     * threads, waiting for a compaction that is rewriting a table file. Commands must have stopped.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        // First, since a commit can start a compaction
+        for (WriteAheadLog writeAheadLog : writeAheadLogs.values()) {
+            try {
+                writeAheadLog.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        writeAheadLogs.clear();
+        compactorThread.shutdown();
+        statsDumper.shutdownNow();
+        tableLoader.shutdownNow();
+        tableScanner.shutdownNow();
+        try {
+            for (ExecutorService executor : List.of(compactorThread, statsDumper, tableLoader, tableScanner)) {
+                executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 
     public String handleCommand(String command) {
-        LOGGER.info("Received command: " + command);
+        return handleCommand(defaultSession, command);
+    }
+
+    public String handleCommand(DBSession session, String command) {
+        StringWriter response = new StringWriter();
+        try {
+            handleCommand(session, command, response);
+        } catch (IOException e) {
+            // a StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+        return response.toString();
+    }
+
+    /**
+     * Writes the response to out. SELECT results are written row by row as they are read,
+     * so a large result never has to be held in memory. If a SELECT fails once some of its rows
+     * are written, the response is those rows followed by a last line with the "[ERROR]".
+     */
+    public void handleCommand(DBSession session, String command, Writer out) throws IOException {
+        LOGGER.info(() -> "Received command: " + command);
+        long startNanos = System.nanoTime();
+        Statement.Type type = null;
         String response;
         try {
-            String[] commandParts = command.trim().split(" ", 2);
-            if (commandParts.length < 2) {
-                return "[ERROR] Invalid command";
+            Lexer tokens = Lexer.tokenize(command);
+            if (tokens.size() == 0) {
+                // Answered like any other failed command, so that it is counted as one
+                throw new IllegalArgumentException("Invalid command");
             }
-            switch (commandParts[0].toUpperCase()) {
-                case "CREATE":
-                    response = handleCreateCommand(commandParts[1]);
+            Statement statement = planCache.getPlan(tokens);
+            String[] parameters = tokens.getParameters();
+            type = statement.getType();
+            switch (type) {
+                case CREATE_DATABASE:
+                    response = createDatabase((Statement.CreateDatabase) statement);
                     break;
-                case "USE":
-                    response = handleUseCommand(commandParts[1]);
+                case CREATE_TABLE:
+                    response = createTable(session, (Statement.CreateTable) statement);
                     break;
-                case "INSERT":
-                    response = handleInsertCommand(commandParts[1]);
+                case CREATE_INDEX:
+                    response = createIndex(session, (Statement.CreateIndex) statement);
                     break;
-                case "SELECT":
-                    response = handleSelectCommand(commandParts[1]);
+                case USE:
+                    response = handleUseCommand(session, (Statement.Use) statement);
+                    break;
+                case INSERT:
+                    response = handleInsertCommand(session, (Statement.Insert) statement, parameters);
+                    break;
+                case LOAD:
+                    response = handleLoadCommand(session, (Statement.Load) statement, parameters);
+                    break;
+                case SELECT:
+                    response = handleCachedSelect(session, (Statement.Select) statement, tokens, parameters, out);
+                    break;
+                case UPDATE:
+                    response = handleUpdateCommand(session, (Statement.Update) statement, parameters);
+                    break;
+                case DELETE:
+                    response = handleDeleteCommand(session, (Statement.Delete) statement, parameters);
+                    break;
+                case STATS:
+                    String stats = metrics.format(planCache);
+                    // Without the last line's newline, so no blank line comes before the end of the response
+                    response = "[OK]\n" + stats.substring(0, stats.length() - 1);
                     break;
                 default:
                     response = "[ERROR] Unknown command";
                     break;
             }
         } catch (Exception e) {
-            LOGGER.severe("Error handling command: " + command + "; Error: " + e.getMessage());
-            response = "[ERROR] " + e.getMessage();
+            LOGGER.severe(() -> "Error handling command: " + command + "; Error: " + e.getMessage());
+            // Rows already sent cannot be taken back, so the error follows them on a line of its own
+            response = (e instanceof ResultCutShortException ? "\n" : "") + "[ERROR] " + e.getMessage();
         }
-        LOGGER.info("Response: " + response);
-        return response;
-    }
-
-    private String handleCreateCommand(String command) throws IOException {
-        String[] parts = command.split(" ", 2);
-        if ("DATABASE".equalsIgnoreCase(parts[0])) {
-            return createDatabase(parts[1].replace(";", "").trim());
-        } else if ("TABLE".equalsIgnoreCase(parts[0])) {
-            return createTable(parts[1].replace(";", "").trim());
+        if (response != null) {
+            out.write(response);
+            String loggedResponse = response;
+            LOGGER.info(() -> "Response: " + loggedResponse);
+        }
+        if (type != null) {
+            metrics.commandCompleted(type, (System.nanoTime() - startNanos) / 1000);
         } else {
-            return "[ERROR] Invalid CREATE command";
+            metrics.commandFailed();
         }
     }
 
-    private String handleUseCommand(String command) {
-        command = command.replace(";", "").trim();
-        Path dbPath = databases.get(command);
+    private String handleUseCommand(DBSession session, Statement.Use statement) {
+        String dbName = statement.getDatabaseName();
+        Path dbPath = databases.get(dbName);
         if (dbPath != null) {
-            currentDatabase = command;
-            return "[OK] Using " + command;
+            session.setCurrentDatabase(dbName);
+            return "[OK] Using " + dbName;
         } else {
             return "[ERROR] Database not found";
         }
     }
 
-    private String handleInsertCommand(String command) throws IOException {
+    private String handleInsertCommand(DBSession session, Statement.Insert statement, String[] parameters) throws IOException {
+        String currentDatabase = session.getCurrentDatabase();
         if (currentDatabase == null) {
             return "[ERROR] No database selected";
         }
-        String[] parts = command.split("INTO|VALUES");
-        if (parts.length != 3) {
-            return "[ERROR] Invalid INSERT syntax";
+        String tableName = statement.getTableName();
+        List<String[]> rows = statement.getRows(parameters);
+        for (String[] values : rows) {
+            if (!isStorable(values)) {
+                return "[ERROR] Values cannot contain tabs, line breaks or NUL characters";
+            }
         }
-        String tableName = parts[1].trim();
-        String values = parts[2].replace(";", "").trim();
         Path tablePath = Paths.get(storageFolderPath, currentDatabase, tableName + ".tsv");
 
         if (!Files.exists(tablePath)) {
             return "[ERROR] Table does not exist";
         }
+        TableCatalog.TableInfo info = tableCatalog.get(tablePath);
+        int valueCount = info.getColumns().length - 1;
+        for (String[] values : rows) {
+            // Checked before anything is logged, so a short or long row never reaches the table file
+            if (values.length != valueCount) {
+                return "[ERROR] Expected " + valueCount + " values but found " + values.length;
+            }
+            String error = normalizeValues(values, i -> i + 1, info);
+            if (error != null) {
+                return "[ERROR] " + error;
+            }
+        }
 
-        int newId;
-        synchronized(this) {
-            newId = tableIdCounters.getOrDefault(tableName, 1);
-            try (BufferedWriter writer = Files.newBufferedWriter(tablePath, StandardOpenOption.APPEND)) {
-                String[] valueParts = values.replaceAll("[()']", "").split(",");
-                writer.write(newId + "\t" + String.join("\t", valueParts).trim());
-                writer.newLine();
-                writer.flush();
-            } catch (IOException e) {
-                System.err.println("Error writing to table: " + e.getMessage());
-                return "[ERROR] Error writing to table";
+        WriteAheadLog writeAheadLog = writeAheadLogs.get(currentDatabase);
+        if (writeAheadLog == null) {
+            return "[ERROR] Error writing to table";
+        }
+        // Other inserts queued while this one waits join the same group commit
+        try {
+            WriteAheadLog.await(submitRows(writeAheadLog, tablePath, tableName, rows));
+        } catch (IOException e) {
+            System.err.println("Error writing to table: " + e.getMessage());
+            return "[ERROR] Error writing to table";
+        }
+
+        LOGGER.info(() -> "Insert command executed on table " + tableName + " (" + rows.size() + " rows)");
+        if (rows.size() == 1) {
+            return "[OK] Data inserted into table " + tableName;
+        }
+        return "[OK] " + rows.size() + " rows inserted into table " + tableName;
+    }
+
+    private String handleLoadCommand(DBSession session, Statement.Load statement, String[] parameters) throws IOException {
+        String currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        String tableName = statement.getTableName();
+        Path tablePath = Paths.get(storageFolderPath, currentDatabase, tableName + ".tsv");
+        if (!Files.exists(tablePath)) {
+            return "[ERROR] Table does not exist";
+        }
+        String fileName = statement.getFileName(parameters);
+        Path sourcePath = resolveImportPath(fileName);
+        if (sourcePath == null) {
+            return "[ERROR] Files can only be loaded from inside the import directory";
+        }
+        if (!Files.isRegularFile(sourcePath)) {
+            return "[ERROR] File not found: " + fileName;
+        }
+        // A link inside the directory must not lead out of it either
+        if (!sourcePath.toRealPath().startsWith(Paths.get(DBConfig.IMPORT_DIRECTORY).toRealPath())) {
+            return "[ERROR] Files can only be loaded from inside the import directory";
+        }
+        WriteAheadLog writeAheadLog = writeAheadLogs.get(currentDatabase);
+        if (writeAheadLog == null) {
+            return "[ERROR] Error writing to table";
+        }
+        TableCatalog.TableInfo info = tableCatalog.get(tablePath);
+        int valueCount = info.getColumns().length - 1;
+        DelimitedFileReader.Format format = statement.getFormat() != null ? statement.getFormat() : DelimitedFileReader.formatOf(sourcePath);
+
+        // One chunk is parsed while the previous one is being committed
+        long loaded = 0;
+        CompletableFuture<Void> inFlight = null;
+        int inFlightRows = 0;
+        String error = null;
+        try (DelimitedFileReader reader = new DelimitedFileReader(sourcePath, format)) {
+            if (statement.hasHeader()) {
+                reader.readRecord();
+            }
+            List<String[]> chunk = new ArrayList<>(LOAD_CHUNK_ROWS);
+            String[] record;
+            while ((record = reader.readRecord()) != null) {
+                if (record.length != valueCount) {
+                    error = "Line " + reader.getLineNumber() + ": expected " + valueCount + " values but found " + record.length;
+                    break;
+                }
+                if (!isStorable(record)) {
+                    error = "Line " + reader.getLineNumber() + ": values cannot contain tabs, line breaks or NUL characters";
+                    break;
+                }
+                // A file has no quoting to tell them apart, so a field of NULL is loaded as NULL rather than as text
+                for (int i = 0; i < record.length; i++) {
+                    if (record[i].equals("NULL")) {
+                        record[i] = ColumnType.NULL;
+                    }
+                }
+                String typeError = normalizeValues(record, i -> i + 1, info);
+                if (typeError != null) {
+                    error = "Line " + reader.getLineNumber() + ": " + typeError;
+                    break;
+                }
+                chunk.add(record);
+                if (chunk.size() < LOAD_CHUNK_ROWS) {
+                    continue;
+                }
+                if (inFlight != null) {
+                    WriteAheadLog.await(inFlight);
+                    loaded += inFlightRows;
+                }
+                inFlight = submitRows(writeAheadLog, tablePath, tableName, chunk);
+                inFlightRows = chunk.size();
+                chunk = new ArrayList<>(LOAD_CHUNK_ROWS);
+            }
+            // The rows before a bad line are still loaded
+            if (!chunk.isEmpty()) {
+                if (inFlight != null) {
+                    WriteAheadLog.await(inFlight);
+                    loaded += inFlightRows;
+                }
+                inFlight = submitRows(writeAheadLog, tablePath, tableName, chunk);
+                inFlightRows = chunk.size();
+            }
+        } catch (IOException e) {
+            error = e.getMessage();
+        } finally {
+            if (inFlight != null) {
+                WriteAheadLog.await(inFlight);
+                loaded += inFlightRows;
+            }
+        }
+
+        long loadedRows = loaded;
+        LOGGER.info(() -> "Load command executed on table " + tableName + " (" + loadedRows + " rows from " + fileName + ")");
+        if (error != null) {
+            return "[ERROR] " + error + " (" + loaded + " rows loaded before the error)";
+        }
+        return "[OK] " + loaded + " rows loaded into table " + tableName;
+    }
+
+    /**
+     * Appends a new version of every matching row and a tombstone for its old one; nothing already in the
+     * table file is rewritten. The update lock keeps other UPDATEs and DELETEs, and compactions, off the
+     * table from finding the rows until the change is committed, while inserts and reads carry on.
+     */
+    private String handleUpdateCommand(DBSession session, Statement.Update statement, String[] parameters) throws IOException {
+        String currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        String tableName = statement.getTableName();
+        Path tablePath = Paths.get(storageFolderPath, currentDatabase, tableName + ".tsv");
+        if (!Files.exists(tablePath)) {
+            return "[ERROR] Table does not exist";
+        }
+        WriteAheadLog writeAheadLog = writeAheadLogs.get(currentDatabase);
+        if (writeAheadLog == null) {
+            return "[ERROR] Error writing to table";
+        }
+        TableCatalog.TableInfo info = tableCatalog.get(tablePath);
+        List<String> columnList = Arrays.asList(info.getColumns());
+        int[] setColumns = new int[statement.getColumns().size()];
+        for (int i = 0; i < setColumns.length; i++) {
+            setColumns[i] = columnList.indexOf(statement.getColumns().get(i));
+            if (setColumns[i] < 0) {
+                return "[ERROR] Unknown column " + statement.getColumns().get(i);
             }
-            tableIdCounters.put(tableName, newId + 1);
+            if (setColumns[i] == 0) {
+                return "[ERROR] The id column cannot be updated";
+            }
+        }
+        String[] values = statement.getValues(parameters);
+        if (!isStorable(values)) {
+            return "[ERROR] Values cannot contain tabs, line breaks or NUL characters";
         }
+        String typeError = normalizeValues(values, i -> setColumns[i], info);
+        if (typeError != null) {
+            return "[ERROR] " + typeError;
+        }
+        Condition condition = statement.getWhere().bind(columnList::indexOf, info.getTypes(), parameters);
 
-        LOGGER.info("Insert command executed: " + command);
-        return "[OK] Data inserted into table " + tableName;
+        int updated;
+        Lock updateLock = tableLocks.forUpdates(tablePath);
+        updateLock.lock();
+        try {
+            List<String[]> rows = new ArrayList<>();
+            long[] offsets = findRows(tablePath, condition, rows);
+            for (int i = 0; i < rows.size(); i++) {
+                String[] row = Arrays.copyOf(rows.get(i), Math.max(rows.get(i).length, columnList.size()));
+                for (int j = 0; j < row.length; j++) {
+                    if (row[j] == null) {
+                        row[j] = "";
+                    }
+                }
+                for (int j = 0; j < setColumns.length; j++) {
+                    row[setColumns[j]] = values[j];
+                }
+                rows.set(i, row);
+            }
+            if (!rows.isEmpty()) {
+                WriteAheadLog.await(writeAheadLog.submitUpdate(tableName, rows, offsets));
+            }
+            updated = rows.size();
+        } finally {
+            updateLock.unlock();
+        }
+        LOGGER.info(() -> "Update command executed on table " + tableName + " (" + updated + " rows)");
+        return "[OK] " + updated + (updated == 1 ? " row" : " rows") + " updated in table " + tableName;
     }
 
-    private String handleSelectCommand(String command) throws IOException {
+    // Appends a tombstone for every matching row, under the update lock as for UPDATE
+    private String handleDeleteCommand(DBSession session, Statement.Delete statement, String[] parameters) throws IOException {
+        String currentDatabase = session.getCurrentDatabase();
         if (currentDatabase == null) {
             return "[ERROR] No database selected";
         }
+        String tableName = statement.getTableName();
+        Path tablePath = Paths.get(storageFolderPath, currentDatabase, tableName + ".tsv");
+        if (!Files.exists(tablePath)) {
+            return "[ERROR] Table does not exist";
+        }
+        WriteAheadLog writeAheadLog = writeAheadLogs.get(currentDatabase);
+        if (writeAheadLog == null) {
+            return "[ERROR] Error writing to table";
+        }
+        TableCatalog.TableInfo info = tableCatalog.get(tablePath);
+        List<String> columnList = Arrays.asList(info.getColumns());
+        Condition condition = statement.getWhere().bind(columnList::indexOf, info.getTypes(), parameters);
+
+        int deleted;
+        Lock updateLock = tableLocks.forUpdates(tablePath);
+        updateLock.lock();
+        try {
+            List<String[]> rows = new ArrayList<>();
+            long[] offsets = findRows(tablePath, condition, rows);
+            List<String> ids = new ArrayList<>(rows.size());
+            for (String[] row : rows) {
+                ids.add(row[0]);
+            }
+            if (!rows.isEmpty()) {
+                WriteAheadLog.await(writeAheadLog.submitDelete(tableName, ids, offsets));
+            }
+            deleted = rows.size();
+        } finally {
+            updateLock.unlock();
+        }
+        LOGGER.info(() -> "Delete command executed on table " + tableName + " (" + deleted + " rows)");
+        return "[OK] " + deleted + (deleted == 1 ? " row" : " rows") + " deleted from table " + tableName;
+    }
+
+    // Adds the live rows matching the condition to rows and returns their offsets, in the same order. Callers hold the update lock
+    private long[] findRows(Path tablePath, Condition condition, List<String[]> rows) throws IOException {
+        long[][] found = {new long[16]};
+        int[] count = new int[1];
+        try (TableSnapshot snapshot = openSnapshot(tablePath, condition)) {
+            metrics.bytesRead(tablePath, snapshot.forEachRow(null, condition, (row, offset) -> {
+                if (count[0] == found[0].length) {
+                    found[0] = Arrays.copyOf(found[0], count[0] * 2);
+                }
+                found[0][count[0]++] = offset;
+                rows.add(row);
+            }));
+        }
+        return Arrays.copyOf(found[0], count[0]);
+    }
+
+    /**
+     * The file LOAD DATA names, in DBConfig.IMPORT_DIRECTORY, or null if the name is absolute or leads out
+     * of that directory; otherwise any client could read any file the server can.
+     */
+    private static Path resolveImportPath(String fileName) {
+        Path importDirectory = Paths.get(DBConfig.IMPORT_DIRECTORY).toAbsolutePath().normalize();
+        Path name = Paths.get(fileName);
+        if (name.isAbsolute()) {
+            return null;
+        }
+        Path resolved = importDirectory.resolve(name).normalize();
+        return resolved.startsWith(importDirectory) && !resolved.equals(importDirectory) ? resolved : null;
+    }
+
+    // Values are stored as tab-separated lines, so they cannot contain either separator, nor the NUL that stands for NULL
+    private static boolean isStorable(String[] values) {
+        for (String value : values) {
+            if (value.equals(ColumnType.NULL)) {
+                continue;
+            }
+            if (value.indexOf('\t') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0 || value.indexOf('\0') >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        String[] parts = command.split("FROM");
-        if (parts.length != 2) {
-            return "[ERROR] Invalid SELECT syntax";
+    /**
+     * Rewrites each value in the form its column's type stores it in, values[i] being for column
+     * columnOf(i). Returns what is wrong with the first value that is not of its column's type, or null.
+     */
+    private static String normalizeValues(String[] values, IntUnaryOperator columnOf, TableCatalog.TableInfo info) {
+        ColumnType[] types = info.getTypes();
+        for (int i = 0; i < values.length; i++) {
+            int column = columnOf.applyAsInt(i);
+            if (column >= types.length) {
+                return "There is no column for the value '" + values[i] + "'";
+            }
+            String value = types[column].normalize(values[i]);
+            if (value == null) {
+                return "'" + values[i] + "' is not a valid " + types[column] + " for column " + info.getColumns()[column];
+            }
+            values[i] = value;
         }
+        return null;
+    }
 
-        String selectClause = parts[0].trim().substring("SELECT".length()).trim();
-        String tableName = parts[1].trim().split(" ")[0].trim();
+    /**
+     * Gives the rows one block of consecutive IDs and queues them for the write-ahead log as a single write.
+     * IDs come from the table's atomic counter in the catalog rather than a lock, so two inserts racing on the same table
+     * can reach the file with their blocks in either order.
+     */
+    private CompletableFuture<Void> submitRows(WriteAheadLog writeAheadLog, Path tablePath, String tableName, List<String[]> valueRows) throws IOException {
+        List<String[]> rows = new ArrayList<>(valueRows.size());
+        for (String[] values : valueRows) {
+            String[] row = new String[values.length + 1];
+            System.arraycopy(values, 0, row, 1, values.length);
+            rows.add(row);
+        }
+        int firstId = tableCatalog.get(tablePath).allocateIds(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            rows.get(i)[0] = Integer.toString(firstId + i);
+        }
+        return writeAheadLog.submit(tableName, rows);
+    }
+
+    /**
+     * Answers a SELECT from the ResultCache if its tables have not changed since it was last run, and
+     * otherwise runs it and caches the response. The versions are read before the query takes its
+     * snapshots, so a change that races with it only makes the entry stale sooner than it need be.
+     */
+    private String handleCachedSelect(DBSession session, Statement.Select statement, Lexer tokens, String[] parameters, Writer out) throws IOException {
+        String currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null || !resultCache.isEnabled()) {
+            return handleSelectCommand(session, statement, parameters, out);
+        }
+        List<Path> tablePaths = new ArrayList<>(2);
+        tablePaths.add(Paths.get(storageFolderPath, currentDatabase, statement.getTableName() + ".tsv"));
+        if (statement.getJoin() != null) {
+            tablePaths.add(Paths.get(storageFolderPath, currentDatabase, statement.getJoin().getTableName() + ".tsv"));
+        }
+        long[] versions = new long[tablePaths.size()];
+        for (int i = 0; i < versions.length; i++) {
+            if (!Files.exists(tablePaths.get(i))) {
+                return handleSelectCommand(session, statement, parameters, out);
+            }
+            versions[i] = tableCatalog.get(tablePaths.get(i)).getVersion();
+        }
+        String key = ResultCache.keyOf(currentDatabase, tokens);
+        ResultCache.Entry cached = resultCache.get(key, versions);
+        metrics.resultCacheLookup(cached != null);
+        if (cached != null) {
+            cached.writeTo(out);
+            return null;
+        }
+        ResultCache.Recorder recorder = resultCache.record(out);
+        String response = handleSelectCommand(session, statement, parameters, recorder);
+        String result = response != null ? response : recorder.getResponse();
+        if (result != null) {
+            resultCache.put(key, versions, result, response != null ? null : recorder.getTypes());
+        }
+        return response;
+    }
+
+    // Returns the response, or null once the result rows have been streamed to out
+    private String handleSelectCommand(DBSession session, Statement.Select statement, String[] parameters, Writer out) throws IOException {
+        String currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        String tableName = statement.getTableName();
 
         Path tablePath = Paths.get(storageFolderPath, currentDatabase, tableName + ".tsv");
         if (!Files.exists(tablePath)) {
             return "[ERROR] Table does not exist";
         }
+        if (statement.getJoin() != null) {
+            return handleJoinSelect(currentDatabase, statement, parameters, out);
+        }
+
+        TableCatalog.TableInfo info = tableCatalog.get(tablePath);
+        List<String> columnList = Arrays.asList(info.getColumns());
+        Condition condition = statement.getWhere() == null ? null : statement.getWhere().bind(columnList::indexOf, info.getTypes(), parameters);
+        if (statement.isAggregate()) {
+            return aggregateTable(tablePath, buildAggregation(statement, condition, columnList::indexOf), info.getTypes(), out);
+        }
 
-        StringBuilder result = new StringBuilder();
-        try (BufferedReader reader = Files.newBufferedReader(tablePath)) {
-            String line;
-            String[] headers = reader.readLine().split("\t");
-            Map<String, Integer> columnIndices = new HashMap<>();
-            for (int i = 0; i < headers.length; i++) {
-                columnIndices.put(headers[i], i);
+        int[] selectedIndices = null;
+        // The columns the engine has to read: null for all of them
+        BitSet readColumns = null;
+        if (statement.getColumns() != null) {
+            selectedIndices = new int[statement.getColumns().size()];
+            readColumns = new BitSet();
+            for (int i = 0; i < selectedIndices.length; i++) {
+                selectedIndices[i] = columnList.indexOf(statement.getColumns().get(i));
+                if (selectedIndices[i] >= 0) {
+                    readColumns.set(selectedIndices[i]);
+                }
             }
+            if (condition != null) {
+                condition.addColumns(readColumns);
+            }
+            if (statement.getOrderBy() != null) {
+                for (Statement.SortKey key : statement.getOrderBy()) {
+                    readColumns.set(resolveColumn(columnList::indexOf, key.getColumn()));
+                }
+            }
+        }
 
-            while ((line = reader.readLine()) != null) {
-                String[] rowData = line.split("\t");
-                if ("*".equals(selectClause)) {
-                    result.append(String.join("\t", rowData)).append("\n");
-                } else {
-                    for (String selectColumn : selectClause.split(",")) {
-                        int columnIndex = columnIndices.getOrDefault(selectColumn.trim(), -1);
-                        if (columnIndex != -1) {
-                            result.append(rowData[columnIndex]).append("\t");
-                        }
+        long offset = statement.getOffset(parameters);
+        long limit = statement.getLimit(parameters);
+        // The storage engine applies the condition, to a cached table's typed columns where it can. Without
+        // an ORDER BY the rows are written as they are read, and the scan stops once the LIMIT is reached
+        ResultWriter result = statement.getOrderBy() == null ? new ResultWriter(out, selectedIndices, info.getTypes(), null, offset, limit)
+                : new ResultWriter(out, selectedIndices, info.getTypes(), null, 0, -1);
+        long scanned;
+        try (RowSorter sorter = newSorter(statement, columnList::indexOf, offset, limit)) {
+            OffsetRowVisitor visitor = sorter == null ? result : (row, rowOffset) -> sorter.visit(row);
+            // Rows inserted, updated or deleted once the snapshot is taken do not show up, however long the scan takes
+            try (TableSnapshot snapshot = openSnapshot(tablePath, condition)) {
+                metrics.bytesRead(tablePath, snapshot.forEachRow(readColumns, condition, visitor));
+                scanned = snapshot.getRowsScanned();
+            }
+            if (sorter != null) {
+                sorter.writeTo(result);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (result.getRowCount() > 0) {
+                throw new ResultCutShortException(e);
+            }
+            throw e;
+        }
+        metrics.rowsScanned(scanned, result.getRowCount());
+
+        LOGGER.info(() -> "Select command executed on table " + tableName + " (" + result.getRowCount() + " rows)");
+        if (result.getRowCount() == 0) {
+            return "[ERROR] No data found";
+        }
+        return null;
+    }
+
+    /**
+     * SELECT ... FROM left JOIN right ON left.column == right.column, run as a hash join that builds on
+     * the smaller table file. WHERE and the projection are applied to the joined rows.
+     */
+    private String handleJoinSelect(String currentDatabase, Statement.Select statement, String[] parameters, Writer out) throws IOException {
+        Statement.Join join = statement.getJoin();
+        String leftName = statement.getTableName();
+        String rightName = join.getTableName();
+        Path leftPath = Paths.get(storageFolderPath, currentDatabase, leftName + ".tsv");
+        Path rightPath = Paths.get(storageFolderPath, currentDatabase, rightName + ".tsv");
+        if (!Files.exists(rightPath)) {
+            return "[ERROR] Table does not exist";
+        }
+        TableCatalog.TableInfo leftInfo = tableCatalog.get(leftPath);
+        TableCatalog.TableInfo rightInfo = tableCatalog.get(rightPath);
+        String[] leftColumns = leftInfo.getColumns();
+        String[] rightColumns = rightInfo.getColumns();
+        ToIntFunction<String> columnIndex = HashJoin.columnResolver(leftName, leftColumns, rightName, rightColumns);
+
+        int first = columnIndex.applyAsInt(join.getLeftColumn());
+        int second = columnIndex.applyAsInt(join.getRightColumn());
+        if (first < 0 || second < 0) {
+            return "[ERROR] Unknown column in JOIN condition";
+        }
+        if ((first < leftColumns.length) == (second < leftColumns.length)) {
+            return "[ERROR] JOIN condition must compare a column of each table";
+        }
+        int leftKey = Math.min(first, second);
+        int rightKey = Math.max(first, second) - leftColumns.length;
+
+        // The joined row is the left row followed by the right one, and so are its types
+        ColumnType[] types = Arrays.copyOf(leftInfo.getTypes(), leftColumns.length + rightColumns.length);
+        System.arraycopy(rightInfo.getTypes(), 0, types, leftColumns.length, rightColumns.length);
+        Condition condition = statement.getWhere() == null ? null : statement.getWhere().bind(columnIndex, types, parameters);
+        HashJoin hashJoin = new HashJoin(DBConfig.JOIN_MEMORY_BYTES, DBConfig.JOIN_SPILL_PARTITIONS, Paths.get(DBConfig.JOIN_SPILL_DIRECTORY));
+        if (statement.isAggregate()) {
+            Aggregation.Partial partial = buildAggregation(statement, condition, columnIndex).newPartial();
+            joinTables(hashJoin, leftPath, leftKey, rightPath, rightKey, partial);
+            long groups = partial.writeTo(out, types);
+            metrics.rowsScanned(partial.getRowsScanned(), groups);
+            return groups == 0 ? "[ERROR] No data found" : null;
+        }
+
+        int[] selectedIndices = null;
+        if (statement.getColumns() != null) {
+            selectedIndices = new int[statement.getColumns().size()];
+            for (int i = 0; i < selectedIndices.length; i++) {
+                selectedIndices[i] = columnIndex.applyAsInt(statement.getColumns().get(i));
+            }
+        }
+
+        long offset = statement.getOffset(parameters);
+        long limit = statement.getLimit(parameters);
+        ResultWriter result = statement.getOrderBy() == null ? new ResultWriter(out, selectedIndices, types, condition, offset, limit)
+                : new ResultWriter(out, selectedIndices, types, null, 0, -1);
+        long scanned;
+        try (RowSorter sorter = newSorter(statement, columnIndex, offset, limit)) {
+            if (sorter == null) {
+                joinTables(hashJoin, leftPath, leftKey, rightPath, rightKey, result);
+                scanned = result.getScannedCount();
+            } else {
+                // Joined rows are filtered before they are sorted
+                AtomicLong joined = new AtomicLong();
+                joinTables(hashJoin, leftPath, leftKey, rightPath, rightKey, row -> {
+                    joined.incrementAndGet();
+                    if (condition == null || condition.matches(row)) {
+                        sorter.visit(row);
                     }
-                    result.append("\n");
+                });
+                sorter.writeTo(result);
+                scanned = joined.get();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (result.getRowCount() > 0) {
+                throw new ResultCutShortException(e);
+            }
+            throw e;
+        }
+        metrics.rowsScanned(scanned, result.getRowCount());
+
+        LOGGER.info(() -> "Join executed on tables " + leftName + " and " + rightName + " (" + result.getRowCount() + " rows)");
+        if (result.getRowCount() == 0) {
+            return "[ERROR] No data found";
+        }
+        return null;
+    }
+
+    // Builds the hash table on whichever table file is smaller. Both snapshots are taken before either table is read
+    private void joinTables(HashJoin hashJoin, Path leftPath, int leftKey, Path rightPath, int rightKey, RowVisitor out) throws IOException {
+        try (TableSnapshot left = openSnapshot(leftPath, null); TableSnapshot right = openSnapshot(rightPath, null)) {
+            if (Files.size(leftPath) <= Files.size(rightPath)) {
+                hashJoin.join(visitor -> scanAll(left, visitor), leftKey, visitor -> scanAll(right, visitor), rightKey, true, out);
+            } else {
+                hashJoin.join(visitor -> scanAll(right, visitor), rightKey, visitor -> scanAll(left, visitor), leftKey, false, out);
+            }
+        }
+    }
+
+    /**
+     * The Aggregation for a SELECT with aggregates or GROUP BY. Every selected column that is not an
+     * aggregate has to be one of the GROUP BY columns, so that it has a single value per group.
+     */
+    private static Aggregation buildAggregation(Statement.Select statement, Condition condition, ToIntFunction<String> columnIndex) {
+        List<String> columns = statement.getColumns();
+        if (columns == null) {
+            throw new IllegalArgumentException("SELECT * cannot be used with GROUP BY");
+        }
+        List<String> groupBy = statement.getGroupBy() == null ? List.of() : statement.getGroupBy();
+        int[] groupColumns = new int[groupBy.size()];
+        for (int i = 0; i < groupColumns.length; i++) {
+            groupColumns[i] = resolveColumn(columnIndex, groupBy.get(i));
+        }
+        List<Statement.Aggregate> items = statement.getAggregates() != null
+                ? statement.getAggregates() : Collections.nCopies(columns.size(), null);
+        int[] itemColumns = new int[columns.size()];
+        for (int i = 0; i < itemColumns.length; i++) {
+            Statement.Aggregate item = items.get(i);
+            if (item == null) {
+                int index = resolveColumn(columnIndex, columns.get(i));
+                if (Arrays.stream(groupColumns).noneMatch(group -> group == index)) {
+                    throw new IllegalArgumentException("Column " + columns.get(i) + " must be in GROUP BY");
                 }
+                itemColumns[i] = index;
+            } else {
+                itemColumns[i] = item.getColumn() == null ? -1 : resolveColumn(columnIndex, item.getColumn());
             }
-        } catch (IOException e) {
-            System.err.println("Error reading table data: " + e.getMessage());
-            return "[ERROR] Error reading table data";
         }
+        return new Aggregation(items, itemColumns, groupColumns, condition);
+    }
 
-        LOGGER.info("Select command executed: " + command);
-        return result.length() > 0 ? "[OK]\n" + result.toString().trim() : "[ERROR] No data found";
+    private static int resolveColumn(ToIntFunction<String> columnIndex, String column) {
+        int index = columnIndex.applyAsInt(column);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown column " + column);
+        }
+        return index;
     }
 
-    private String createDatabase(String dbName) throws IOException {
+    // A RowSorter for the ORDER BY clause, or null if there is none
+    private static RowSorter newSorter(Statement.Select statement, ToIntFunction<String> columnIndex, long offset, long limit) {
+        List<Statement.SortKey> orderBy = statement.getOrderBy();
+        if (orderBy == null) {
+            return null;
+        }
+        int[] keyColumns = new int[orderBy.size()];
+        boolean[] descending = new boolean[orderBy.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = resolveColumn(columnIndex, orderBy.get(i).getColumn());
+            descending[i] = orderBy.get(i).isDescending();
+        }
+        return new RowSorter(keyColumns, descending, offset, limit, DBConfig.SORT_MEMORY_BYTES, DBConfig.SORT_MERGE_FAN_IN,
+                Paths.get(DBConfig.SORT_SPILL_DIRECTORY));
+    }
+
+    // Runs an aggregate over a snapshot of one table on up to SCAN_PARALLELISM threads
+    private String aggregateTable(Path tablePath, Aggregation aggregation, ColumnType[] types, Writer out) throws IOException {
+        Aggregation.Partial result;
+        try (TableSnapshot snapshot = openSnapshot(tablePath, null)) {
+            AtomicLong bytesRead = new AtomicLong();
+            result = snapshot.aggregate(aggregation, DBConfig.SCAN_PARALLELISM, bytesRead);
+            metrics.bytesRead(tablePath, bytesRead.get());
+        }
+        long groups = result.writeTo(out, types);
+        metrics.rowsScanned(result.getRowsScanned(), groups);
+        LOGGER.info(() -> "Aggregate executed on table " + tablePath.getFileName() + " (" + groups + " rows)");
+        return groups == 0 ? "[ERROR] No data found" : null;
+    }
+
+    // Every row of a snapshot, with every column, until the visitor is done
+    private void scanAll(TableSnapshot snapshot, RowVisitor visitor) throws IOException {
+        metrics.bytesRead(snapshot.getTablePath(), snapshot.forEachRow(null, null, new OffsetRowVisitor() {
+            @Override
+            public void visit(String[] row, long offset) throws IOException {
+                visitor.visit(row);
+            }
+
+            @Override
+            public boolean isDone() {
+                return visitor.isDone();
+            }
+        }));
+    }
+
+    /**
+     * Takes a snapshot of the table, looking up the rows an index narrows the condition down to if there
+     * is one. The read lock is only held while the snapshot is taken, so the scan itself holds up no
+     * writer; it also keeps a compaction from moving the rows the cache and indexes point at meanwhile.
+     */
+    private TableSnapshot openSnapshot(Path tablePath, Condition condition) throws IOException {
+        Lock readLock = tableLocks.forTable(tablePath).readLock();
+        readLock.lock();
+        try {
+            return new TableSnapshot(tablePath, tableCatalog.get(tablePath), storageEngine,
+                    condition == null ? null : indexCatalog.lookup(tablePath, condition));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // A SELECT that failed after some of its rows were written
+    private static final class ResultCutShortException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ResultCutShortException(Exception cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Filters and projects SELECT rows and writes them to the client as they arrive, with the types of
+     * the columns they come from. The result is only started once the first row matches, so an empty
+     * result can still be reported as an error. The
+     * first skip matching rows are left out, and once limit rows are written (unless it is -1) the
+     * writer is done and readers stop scanning.
+     */
+    private static class ResultWriter implements RowVisitor, OffsetRowVisitor {
+        private final RowWriter out;
+        private final int[] projection;
+        private final ColumnType[] types;
+        private final Condition condition;
+        private final long limit;
+        private long skip;
+        private long rowCount;
+        private long scannedCount;
+
+        // types are those of the rows' columns; projection leaves out the columns it has as -1
+        ResultWriter(Writer out, int[] projection, ColumnType[] types, Condition condition, long skip, long limit) {
+            this.out = RowWriter.of(out);
+            this.projection = projection == null ? null : Arrays.stream(projection).filter(column -> column != -1).toArray();
+            this.types = projection == null ? types : Arrays.stream(this.projection).mapToObj(column -> types[column]).toArray(ColumnType[]::new);
+            this.condition = condition;
+            this.skip = skip;
+            this.limit = limit;
+        }
+
+        @Override
+        public void visit(String[] row, long offset) throws IOException {
+            visit(row);
+        }
+
+        @Override
+        public boolean isDone() {
+            return limit >= 0 && rowCount >= limit;
+        }
+
+        @Override
+        public void visit(String[] row) throws IOException {
+            scannedCount++;
+            if ((condition != null && !condition.matches(row)) || isDone()) {
+                return;
+            }
+            if (skip > 0) {
+                skip--;
+                return;
+            }
+            if (rowCount++ == 0) {
+                out.startRows(types);
+            }
+            if (projection == null) {
+                out.writeRow(row);
+                return;
+            }
+            String[] values = new String[projection.length];
+            int count = 0;
+            for (int columnIndex : projection) {
+                // A row too short for a column leaves it out
+                if (columnIndex < row.length) {
+                    values[count++] = row[columnIndex];
+                }
+            }
+            out.writeRow(count == values.length ? values : Arrays.copyOf(values, count));
+        }
+
+        long getRowCount() {
+            return rowCount;
+        }
+
+        long getScannedCount() {
+            return scannedCount;
+        }
+    }
+
+    private String createIndex(DBSession session, Statement.CreateIndex statement) throws IOException {
+        String currentDatabase = session.getCurrentDatabase();
+        if (currentDatabase == null) {
+            return "[ERROR] No database selected";
+        }
+        String indexName = statement.getIndexName();
+        String tableName = statement.getTableName();
+        Path dbPath = Paths.get(storageFolderPath, currentDatabase);
+        Path tablePath = dbPath.resolve(tableName + ".tsv");
+        if (!Files.exists(tablePath)) {
+            return "[ERROR] Table does not exist";
+        }
+        // Rows are appended under the table's write lock, so none can be missed while the index is built
+        Lock readLock = tableLocks.forTable(tablePath).readLock();
+        readLock.lock();
+        try {
+            indexCatalog.createIndex(dbPath, indexName, tableName, statement.getColumn(), statement.getKind());
+        } finally {
+            readLock.unlock();
+        }
+        return "[OK] Index " + indexName + " created";
+    }
+
+    private String createDatabase(Statement.CreateDatabase statement) throws IOException {
+        String dbName = statement.getDatabaseName();
         Path dbPath = Paths.get(storageFolderPath, dbName);
-        if (Files.exists(dbPath)) {
+        Files.createDirectories(dbPath.getParent());
+        try {
+            Files.createDirectory(dbPath);
+        } catch (FileAlreadyExistsException e) {
             return "[ERROR] Database already exists";
         }
-        Files.createDirectories(dbPath);
+        openWriteAheadLog(dbName, dbPath);
         databases.put(dbName, dbPath);
         return "[OK] Database " + dbName + " created";
     }
 
-    private String createTable(String command) throws IOException {
+    private String createTable(DBSession session, Statement.CreateTable statement) throws IOException {
+        String currentDatabase = session.getCurrentDatabase();
         if (currentDatabase == null) {
             return "[ERROR] No database selected";
         }
-        String[] parts = command.split(" ", 2);
-        String tableName = parts[0];
-        String columns = parts[1].replace("(", "").replace(")", "").replace(";", "").trim();
+        String tableName = statement.getTableName();
 
         Path tablePath = Paths.get(storageFolderPath, currentDatabase, tableName + ".tsv");
-        if (Files.exists(tablePath)) {
-            return "[ERROR] Table already exists";
+        String[] headers = new String[statement.getColumns().size() + 1];
+        ColumnType[] types = new ColumnType[headers.length];
+        headers[0] = "id";
+        types[0] = ColumnType.INT;
+        for (int i = 1; i < headers.length; i++) {
+            headers[i] = statement.getColumns().get(i - 1);
+            types[i] = statement.getTypes().get(i - 1);
         }
-        try (BufferedWriter writer = Files.newBufferedWriter(tablePath, StandardOpenOption.CREATE)) {
-            writer.write("id\t" + columns.replaceAll(",", "\t"));
+        try (BufferedWriter writer = Files.newBufferedWriter(tablePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writer.write(String.join("\t", headers));
             writer.newLine();
+        } catch (FileAlreadyExistsException e) {
+            return "[ERROR] Table already exists";
         }
-        tableIdCounters.put(tableName, 1);
+        tableCatalog.createTable(tablePath, headers, types, Files.size(tablePath));
+        storageEngine.tableCreated(tablePath, headers, types);
         return "[OK] Table " + tableName + " created";
     }
 
-    private void blockingListenOn(int portNumber) throws IOException {
-        LOGGER.info("Server starting, listening on port " + portNumber);
-        try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
-            System.out.println("Server listening on port " + portNumber);
-            while (!Thread.interrupted()) {
-                try (Socket clientSocket = serverSocket.accept();
-                     BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                     BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))) {
-
-                    String command;
-                    while ((command = in.readLine()) != null && !command.trim().isEmpty()) {
-                        String result = handleCommand(command);
-                        out.write(result);
-                        out.write("\n" + END_OF_TRANSMISSION + "\n");
-                        out.flush();
-                    }
-                } catch (IOException e) {
-                    LOGGER.severe("Error processing client request: " + e.getMessage());
-                }
-            }
-        } catch (IOException e) {
-            LOGGER.severe("Failed to start the server: " + e.getMessage());
-            throw e;
+    /**
+     * Starts serving clients on the port (0 for any free one): a {@link SelectorServer} does the network
+     * I/O for every connection on one thread, and commands run on a pool of worker threads.
+     */
+    public SelectorServer listen(int portNumber) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(DBConfig.SERVER_WORKER_THREADS, new DaemonThreadFactory("db-worker-"));
+        SelectorServer server = new SelectorServer(this::handleCommand, metrics, workers, portNumber);
+        server.start();
+        System.out.println("Server listening on port " + server.getPort());
+        return server;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger nextId = new AtomicInteger(1);
+
+        DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, namePrefix + nextId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
         }
     }
 
@@ -290,9 +1159,19 @@ public class DBServer {
         int portNumber = 8080;
         try {
             DBServer server = new DBServer();
-            server.blockingListenOn(portNumber);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    LOGGER.severe("Error closing the server: " + e.getMessage());
+                }
+            }));
+            server.listen(portNumber).join();
         } catch (IOException e) {
+            LOGGER.severe("Failed to start the server: " + e.getMessage());
             System.err.println("Failed to start the server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package edu.uob;
+
+/**
+ * Per-connection state. Every client socket gets its own session, so one
+ * client's USE does not change the database another client is working in.
+ */
+public class DBSession {
+    private volatile String currentDatabase;
+
+    public String getCurrentDatabase() {
+        return currentDatabase;
+    }
+
+    public void setCurrentDatabase(String currentDatabase) {
+        this.currentDatabase = currentDatabase;
+    }
+}
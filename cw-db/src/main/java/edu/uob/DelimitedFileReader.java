@@ -0,0 +1,85 @@
+package edu.uob;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads records from a local TSV or CSV file for LOAD DATA. CSV fields may be double-quoted,
+ * with "" standing for a quote inside a quoted field; quoted fields cannot span lines.
+ */
+public class DelimitedFileReader implements Closeable {
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    public enum Format { TSV, CSV }
+
+    private final BufferedReader reader;
+    private final Format format;
+    private long lineNumber;
+
+    public DelimitedFileReader(Path path, Format format) throws IOException {
+        this.reader = new BufferedReader(Files.newBufferedReader(path), READ_BUFFER_SIZE);
+        this.format = format;
+    }
+
+    public static Format formatOf(Path path) {
+        return path.getFileName().toString().toLowerCase().endsWith(".csv") ? Format.CSV : Format.TSV;
+    }
+
+    // Returns the next non-blank record, or null at the end of the file
+    public String[] readRecord() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (!line.trim().isEmpty()) {
+                return format == Format.TSV ? line.split("\t", -1) : splitCsv(line);
+            }
+        }
+        return null;
+    }
+
+    // The line number of the record returned by the last readRecord call
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private String[] splitCsv(String line) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IOException("Line " + lineNumber + ": unterminated quoted field");
+        }
+        fields.add(field.toString().trim());
+        return fields.toArray(new String[0]);
+    }
+}
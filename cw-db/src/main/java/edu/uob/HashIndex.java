@@ -0,0 +1,39 @@
+package edu.uob;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers equality lookups only, in constant time.
+ */
+public class HashIndex extends TableIndex {
+    private final Map<String, OffsetList> entries = new ConcurrentHashMap<>();
+
+    public HashIndex(String name, String column, int columnIndex) {
+        super(name, column, columnIndex);
+    }
+
+    @Override
+    public Kind getKind() {
+        return Kind.HASH;
+    }
+
+    @Override
+    protected void add(String value, long offset) {
+        entries.computeIfAbsent(Condition.normalizeKey(value), key -> new OffsetList()).add(offset);
+    }
+
+    @Override
+    public long[] lookup(Condition.Comparison comparison) {
+        if (comparison.getOperator() != Condition.Operator.EQUALS) {
+            return null;
+        }
+        OffsetList offsets = entries.get(Condition.normalizeKey(comparison.getValue()));
+        return offsets == null ? new long[0] : offsets.toArray();
+    }
+
+    @Override
+    protected Iterable<OffsetList> offsetLists() {
+        return entries.values();
+    }
+}
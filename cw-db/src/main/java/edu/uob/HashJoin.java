@@ -0,0 +1,237 @@
+package edu.uob;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Equi-join of two tables on one column each. The build side (the smaller table) is put in a hash
+ * table keyed on its join column and the other side is streamed past it. If the build side grows past
+ * memoryBytes, both sides are instead split into partition files by a hash of the join key and each
+ * pair of partitions is joined on its own (a grace hash join), partitioning again with a different
+ * hash if a build partition is still too big. Keys are compared like WHERE's ==, so 65 matches 65.0.
+ * Joined rows are always the left table's columns followed by the right table's.
+ */
+public class HashJoin {
+    // Past this depth a build partition is joined in memory however big it is, e.g. when most rows share one key
+    private static final int MAX_PARTITION_DEPTH = 3;
+
+    @FunctionalInterface
+    public interface RowSource {
+        void scan(RowVisitor visitor) throws IOException;
+    }
+
+    private final long memoryBytes;
+    private final int partitionCount;
+    private final Path spillDirectory;
+
+    public HashJoin(long memoryBytes, int partitionCount, Path spillDirectory) {
+        this.memoryBytes = memoryBytes;
+        this.partitionCount = partitionCount;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Resolves column names in a join's output: "table.column" always, and a bare column name when only
+     * one of the tables has it. Unknown names resolve to -1 and ambiguous ones are an error.
+     */
+    public static ToIntFunction<String> columnResolver(String leftTable, String[] leftColumns, String rightTable, String[] rightColumns) {
+        Map<String, Integer> indices = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+        for (int i = 0; i < leftColumns.length + rightColumns.length; i++) {
+            boolean left = i < leftColumns.length;
+            String column = left ? leftColumns[i] : rightColumns[i - leftColumns.length];
+            for (String name : new String[] {column, (left ? leftTable : rightTable) + "." + column}) {
+                if (indices.putIfAbsent(name, i) != null) {
+                    ambiguous.add(name);
+                }
+            }
+        }
+        return name -> {
+            if (ambiguous.contains(name)) {
+                throw new IllegalArgumentException("Ambiguous column " + name);
+            }
+            return indices.getOrDefault(name, -1);
+        };
+    }
+
+    public void join(RowSource build, int buildKey, RowSource probe, int probeKey, boolean buildIsLeft, RowVisitor out) throws IOException {
+        join(build, buildKey, probe, probeKey, buildIsLeft, out, 0);
+    }
+
+    private void join(RowSource build, int buildKey, RowSource probe, int probeKey, boolean buildIsLeft, RowVisitor out, int depth) throws IOException {
+        BuildVisitor builder = new BuildVisitor(buildKey, depth < MAX_PARTITION_DEPTH ? memoryBytes : Long.MAX_VALUE);
+        Path partitionDirectory = null;
+        try {
+            build.scan(row -> {
+                if (!builder.add(row)) {
+                    // Over budget: everything built so far, and the rest of the build side, goes to partition files
+                    if (builder.partitions == null) {
+                        builder.partitions = new PartitionWriter(Files.createTempDirectory(spillDirectory, "cwdb-join-"), "build", depth);
+                        for (List<String[]> rows : builder.table.values()) {
+                            for (String[] buildRow : rows) {
+                                builder.partitions.write(buildRow, buildKey);
+                            }
+                        }
+                        builder.table.clear();
+                    }
+                    builder.partitions.write(row, buildKey);
+                }
+            });
+            if (builder.partitions == null) {
+                // Done when out is, so a LIMIT stops the probe side being read
+                probe.scan(new RowVisitor() {
+                    @Override
+                    public void visit(String[] row) throws IOException {
+                        if (probeKey >= row.length) {
+                            return;
+                        }
+                        List<String[]> matches = builder.table.get(Condition.normalizeKey(row[probeKey]));
+                        if (matches != null) {
+                            for (int i = 0; i < matches.size() && !out.isDone(); i++) {
+                                String[] match = matches.get(i);
+                                out.visit(buildIsLeft ? concat(match, row) : concat(row, match));
+                            }
+                        }
+                    }
+
+                    @Override
+                    public boolean isDone() {
+                        return out.isDone();
+                    }
+                });
+                return;
+            }
+            partitionDirectory = builder.partitions.directory;
+            builder.partitions.close();
+            PartitionWriter probePartitions = new PartitionWriter(partitionDirectory, "probe", depth);
+            try {
+                probe.scan(row -> probePartitions.write(row, probeKey));
+            } finally {
+                probePartitions.close();
+            }
+            for (int partition = 0; partition < partitionCount && !out.isDone(); partition++) {
+                Path buildFile = builder.partitions.fileFor(partition);
+                Path probeFile = probePartitions.fileFor(partition);
+                if (Files.exists(buildFile) && Files.exists(probeFile)) {
+                    join(visitor -> readPartition(buildFile, visitor), buildKey,
+                            visitor -> readPartition(probeFile, visitor), probeKey, buildIsLeft, out, depth + 1);
+                }
+            }
+        } finally {
+            if (builder.partitions != null) {
+                builder.partitions.close();
+                deleteRecursively(builder.partitions.directory);
+            }
+        }
+    }
+
+    // Collects build rows in memory until their estimated size reaches the budget
+    private static final class BuildVisitor {
+        final Map<String, List<String[]>> table = new HashMap<>();
+        final int key;
+        final long maxBytes;
+        long bytes;
+        PartitionWriter partitions;
+
+        BuildVisitor(int key, long maxBytes) {
+            this.key = key;
+            this.maxBytes = maxBytes;
+        }
+
+        // Returns false once the row would go over budget, after which it has to be partitioned instead
+        boolean add(String[] row) {
+            if (key >= row.length) {
+                return true;
+            }
+            if (partitions != null) {
+                return false;
+            }
+            bytes += Table.estimateRowBytes(row);
+            if (bytes > maxBytes) {
+                return false;
+            }
+            table.computeIfAbsent(Condition.normalizeKey(row[key]), k -> new ArrayList<>(1)).add(row);
+            return true;
+        }
+    }
+
+    // One file per partition, opened the first time a row goes to it
+    private final class PartitionWriter {
+        final Path directory;
+        final String side;
+        final int depth;
+        final BufferedWriter[] writers = new BufferedWriter[partitionCount];
+
+        PartitionWriter(Path directory, String side, int depth) {
+            this.directory = directory;
+            this.side = side;
+            this.depth = depth;
+        }
+
+        void write(String[] row, int key) throws IOException {
+            if (key >= row.length) {
+                return;
+            }
+            int partition = partitionOf(row[key], depth);
+            if (writers[partition] == null) {
+                writers[partition] = Files.newBufferedWriter(fileFor(partition));
+            }
+            writers[partition].write(String.join("\t", row));
+            writers[partition].write('\n');
+        }
+
+        Path fileFor(int partition) {
+            return directory.resolve(side + "-" + partition + ".tsv");
+        }
+
+        void close() throws IOException {
+            for (int i = 0; i < writers.length; i++) {
+                if (writers[i] != null) {
+                    writers[i].close();
+                    writers[i] = null;
+                }
+            }
+        }
+    }
+
+    // Every depth uses a different hash so that a partition that was too big gets split up instead of copied
+    private int partitionOf(String value, int depth) {
+        int hash = Condition.normalizeKey(value).hashCode() * (0x9E3779B1 + 2 * depth);
+        return Math.floorMod(hash ^ (hash >>> 16), partitionCount);
+    }
+
+    private static void readPartition(Path file, RowVisitor visitor) throws IOException {
+        try (TableFileReader reader = new TableFileReader(file)) {
+            String[] row;
+            while (!visitor.isDone() && (row = reader.readRow()) != null) {
+                visitor.visit(row);
+            }
+        }
+    }
+
+    private static String[] concat(String[] left, String[] right) {
+        String[] joined = new String[left.length + right.length];
+        System.arraycopy(left, 0, joined, 0, left.length);
+        System.arraycopy(right, 0, joined, left.length, right.length);
+        return joined;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
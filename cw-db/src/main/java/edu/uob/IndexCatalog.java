@@ -0,0 +1,210 @@
+package edu.uob;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongUnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Every secondary index in the server, grouped by table file. Index definitions are kept in
+ * data/&lt;db&gt;/indexes.meta ("name \t table \t column \t kind" per line) and the indexes
+ * themselves are rebuilt from the table files in the background when a database is loaded.
+ * Until an index has been rebuilt, queries on its table simply scan the table.
+ */
+public class IndexCatalog {
+    public static final String FILE_NAME = "indexes.meta";
+
+    private static final Logger LOGGER = Logger.getLogger(IndexCatalog.class.getName());
+
+    private final Map<Path, List<TableIndex>> indexesByTable = new ConcurrentHashMap<>();
+    private final TableLocks tableLocks;
+    private final Executor loader;
+
+    public IndexCatalog(TableLocks tableLocks, Executor loader) {
+        this.tableLocks = tableLocks;
+        this.loader = loader;
+    }
+
+    public void loadDatabase(Path dbPath) {
+        Path metaPath = dbPath.resolve(FILE_NAME);
+        if (!Files.exists(metaPath)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(metaPath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length != 4) {
+                    continue;
+                }
+                Path tablePath = dbPath.resolve(parts[1] + ".tsv");
+                if (Files.exists(tablePath)) {
+                    TableIndex.Kind kind = TableIndex.Kind.valueOf(parts[3]);
+                    loader.execute(() -> rebuildIndex(tablePath, parts[0], parts[2], kind));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.severe("Error loading indexes for " + dbPath + ": " + e.getMessage());
+        }
+    }
+
+    // Holding the table's read lock keeps rows from being appended while the file is read
+    private void rebuildIndex(Path tablePath, String indexName, String column, TableIndex.Kind kind) {
+        Lock readLock = tableLocks.forTable(tablePath).readLock();
+        readLock.lock();
+        try {
+            indexesByTable.computeIfAbsent(tablePath, path -> new CopyOnWriteArrayList<>())
+                    .add(buildIndex(tablePath, indexName, column, kind));
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.severe("Error rebuilding index " + indexName + " on " + tablePath + ": " + e.getMessage());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // Callers must make sure no rows are appended to the table while the index is being built
+    public void createIndex(Path dbPath, String indexName, String tableName, String column, TableIndex.Kind kind) throws IOException {
+        for (Map.Entry<Path, List<TableIndex>> entry : indexesByTable.entrySet()) {
+            if (!entry.getKey().getParent().equals(dbPath)) {
+                continue;
+            }
+            for (TableIndex index : entry.getValue()) {
+                if (index.getName().equals(indexName)) {
+                    throw new IllegalArgumentException("Index " + indexName + " already exists");
+                }
+            }
+        }
+        Path tablePath = dbPath.resolve(tableName + ".tsv");
+        TableIndex index = buildIndex(tablePath, indexName, column, kind);
+        try (BufferedWriter writer = Files.newBufferedWriter(dbPath.resolve(FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(indexName + "\t" + tableName + "\t" + column + "\t" + kind);
+            writer.newLine();
+        }
+        indexesByTable.computeIfAbsent(tablePath, path -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    public void rowAppended(Path tablePath, String[] row, long offset) {
+        List<TableIndex> indexes = indexesByTable.get(tablePath);
+        if (indexes != null) {
+            for (TableIndex index : indexes) {
+                index.addRow(row, offset);
+            }
+        }
+    }
+
+    // Called under the table's write lock once a compaction has moved its rows
+    public void tableRewritten(Path tablePath, LongUnaryOperator newOffset) {
+        List<TableIndex> indexes = indexesByTable.get(tablePath);
+        if (indexes != null) {
+            for (TableIndex index : indexes) {
+                index.remap(newOffset);
+            }
+        }
+    }
+
+    /**
+     * Offsets (ascending, no duplicates) of the only rows that can satisfy the condition, or null
+     * if the indexes on this table cannot narrow it down and the whole table has to be scanned.
+     */
+    public long[] lookup(Path tablePath, Condition condition) {
+        List<TableIndex> indexes = indexesByTable.get(tablePath);
+        if (indexes == null || indexes.isEmpty()) {
+            return null;
+        }
+        return lookup(indexes, condition);
+    }
+
+    private static long[] lookup(List<TableIndex> indexes, Condition condition) {
+        if (condition instanceof Condition.And) {
+            Condition.And and = (Condition.And) condition;
+            long[] left = lookup(indexes, and.getLeft());
+            long[] right = lookup(indexes, and.getRight());
+            if (left == null || right == null) {
+                return left == null ? right : left;
+            }
+            return intersect(left, right);
+        }
+        if (condition instanceof Condition.Or) {
+            Condition.Or or = (Condition.Or) condition;
+            long[] left = lookup(indexes, or.getLeft());
+            long[] right = left == null ? null : lookup(indexes, or.getRight());
+            return right == null ? null : union(left, right);
+        }
+        Condition.Comparison comparison = (Condition.Comparison) condition;
+        for (TableIndex index : indexes) {
+            if (index.getColumn().equals(comparison.getColumn())) {
+                long[] offsets = index.lookup(comparison);
+                if (offsets != null) {
+                    return offsets;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static TableIndex buildIndex(Path tablePath, String indexName, String column, TableIndex.Kind kind) throws IOException {
+        try (TableFileReader reader = new TableFileReader(tablePath)) {
+            String header = reader.readLine();
+            int columnIndex = header == null ? -1 : Arrays.asList(header.split("\t")).indexOf(column);
+            if (columnIndex < 0) {
+                throw new IllegalArgumentException("Unknown column " + column);
+            }
+            TableIndex index = TableIndex.create(kind, indexName, column, columnIndex);
+            String[] row;
+            while ((row = reader.readRow()) != null) {
+                if (!Tombstones.isTombstone(row[0])) {
+                    index.addRow(row, reader.getLineOffset());
+                }
+            }
+            return index;
+        }
+    }
+
+    private static long[] intersect(long[] left, long[] right) {
+        long[] result = new long[Math.min(left.length, right.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < left.length && j < right.length; ) {
+            if (left[i] == right[j]) {
+                result[size++] = left[i];
+                i++;
+                j++;
+            } else if (left[i] < right[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static long[] union(long[] left, long[] right) {
+        long[] result = new long[left.length + right.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length || j < right.length) {
+            long next;
+            if (j >= right.length || (i < left.length && left[i] <= right[j])) {
+                next = left[i++];
+            } else {
+                next = right[j++];
+            }
+            if (size == 0 || result[size - 1] != next) {
+                result[size++] = next;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+}
@@ -0,0 +1,187 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a command into tokens in a single pass. Tokens are kept as offsets into the command text
+ * rather than as objects, and literal values (quoted strings, numbers, TRUE/FALSE/NULL) are pulled out
+ * as the command's parameters. The command's shape - its text with every literal replaced by '?' and
+ * whitespace normalised - is what the plan cache is keyed on.
+ */
+public final class Lexer {
+    public static final byte WORD = 0;
+    public static final byte LITERAL = 1;
+    public static final byte SYMBOL = 2;
+
+    private final String text;
+    private byte[] types = new byte[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int[] parameterIndices = new int[16];
+    private int count;
+    private final List<String> parameters = new ArrayList<>();
+    private final StringBuilder shape;
+
+    private Lexer(String text) {
+        this.text = text;
+        this.shape = new StringBuilder(text.length());
+    }
+
+    public static Lexer tokenize(String text) {
+        Lexer lexer = new Lexer(text);
+        lexer.scan();
+        return lexer;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public byte type(int index) {
+        return types[index];
+    }
+
+    public String text(int index) {
+        return text.substring(starts[index], ends[index]);
+    }
+
+    // Compares a word or symbol token without allocating a substring
+    public boolean is(int index, String expected) {
+        int length = ends[index] - starts[index];
+        return types[index] != LITERAL && length == expected.length()
+                && text.regionMatches(true, starts[index], expected, 0, length);
+    }
+
+    // The index into getParameters() of a literal token
+    public int parameterIndex(int index) {
+        return parameterIndices[index];
+    }
+
+    public String[] getParameters() {
+        return parameters.toArray(new String[0]);
+    }
+
+    public String getShape() {
+        return shape.toString();
+    }
+
+    private void scan() {
+        int i = 0;
+        int length = text.length();
+        while (i < length) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                i = scanString(i);
+            } else if (isDigit(c) || ((c == '-' || c == '+' || c == '.') && i + 1 < length && isDigit(text.charAt(i + 1)))) {
+                int start = i++;
+                while (i < length && (isDigit(text.charAt(i)) || text.charAt(i) == '.')) {
+                    i++;
+                }
+                if (i < length && isWordChar(text.charAt(i))) {
+                    // an identifier that happens to start with a digit
+                    while (i < length && isWordChar(text.charAt(i))) {
+                        i++;
+                    }
+                    add(WORD, start, i);
+                } else {
+                    addLiteral(start, i, text.substring(start, i));
+                }
+            } else if (isWordChar(c)) {
+                int start = i;
+                while (i < length && isWordChar(text.charAt(i))) {
+                    i++;
+                }
+                if (isNull(start, i)) {
+                    addLiteral(start, i, ColumnType.NULL);
+                } else if (isConstant(start, i)) {
+                    addLiteral(start, i, text.substring(start, i));
+                } else {
+                    add(WORD, start, i);
+                }
+            } else if ((c == '=' || c == '!' || c == '<' || c == '>') && i + 1 < length && text.charAt(i + 1) == '=') {
+                add(SYMBOL, i, i + 2);
+                i += 2;
+            } else if ("(),;*=<>.".indexOf(c) >= 0) {
+                add(SYMBOL, i, i + 1);
+                i++;
+            } else {
+                throw new IllegalArgumentException("Unexpected character '" + c + "'");
+            }
+        }
+    }
+
+    // Quotes inside a string are written as two quotes, as in SQL
+    private int scanString(int start) {
+        StringBuilder value = null;
+        int i = start + 1;
+        int segmentStart = i;
+        while (true) {
+            int quote = text.indexOf('\'', i);
+            if (quote < 0) {
+                throw new IllegalArgumentException("Unterminated string literal");
+            }
+            if (quote + 1 < text.length() && text.charAt(quote + 1) == '\'') {
+                if (value == null) {
+                    value = new StringBuilder();
+                }
+                value.append(text, segmentStart, quote + 1);
+                i = quote + 2;
+                segmentStart = i;
+                continue;
+            }
+            String literal = value == null ? text.substring(segmentStart, quote) : value.append(text, segmentStart, quote).toString();
+            addLiteral(start, quote + 1, literal);
+            return quote + 1;
+        }
+    }
+
+    private boolean isConstant(int start, int end) {
+        int length = end - start;
+        return (length == 4 && text.regionMatches(true, start, "TRUE", 0, 4))
+                || (length == 5 && text.regionMatches(true, start, "FALSE", 0, 5));
+    }
+
+    // The NULL keyword, unlike the string 'NULL', is passed on as ColumnType.NULL
+    private boolean isNull(int start, int end) {
+        return end - start == 4 && text.regionMatches(true, start, "NULL", 0, 4);
+    }
+
+    private void addLiteral(int start, int end, String value) {
+        parameters.add(value);
+        add(LITERAL, start, end);
+    }
+
+    private void add(byte type, int start, int end) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            parameterIndices = Arrays.copyOf(parameterIndices, count * 2);
+        }
+        parameterIndices[count] = type == LITERAL ? parameters.size() - 1 : -1;
+        types[count] = type;
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+        if (shape.length() > 0) {
+            shape.append(' ');
+        }
+        if (type == LITERAL) {
+            shape.append('?');
+        } else {
+            shape.append(text, start, end);
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
@@ -0,0 +1,287 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a DBServer with a mix of commands over many connections, to size hardware and check changes
+ * end to end. Commands are sent open loop: the n-th command is due at start + n / rate whatever happened
+ * to the ones before it, and is pipelined on its connection (see {@link DBClient#query}) without waiting
+ * for earlier responses. Latency is measured from when a command was due rather than when it was sent,
+ * so a server that falls behind shows up as queueing delay instead of quietly lowering the rate sent
+ * (coordinated omission).
+ *
+ * <p>Run as "LoadGenerator [--connections n] [--rate perSecond] [--duration seconds]
+ * [--mix select=70,insert=30,use=0,create=0] [--database name] [host [port]]". Every command goes to
+ * the table "load" in the database, which is created (and given a few rows to select) if need be.
+ */
+public class LoadGenerator {
+    private static final String TABLE = "load";
+    // SELECTs and INSERTs use keys below this, so every SELECT finds the rows seeded at setup
+    private static final int KEY_RANGE = 100;
+    private static final long DRAIN_TIMEOUT_MS = 30_000;
+
+    public enum Operation { SELECT, INSERT, USE, CREATE }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final double rate;
+    private final long durationMillis;
+    private final Map<Operation, Integer> mix;
+    private final String database;
+
+    // mix weighs how often each operation is sent; operations left out are never sent
+    public LoadGenerator(String host, int port, int connections, double rate, long durationMillis, Map<Operation, Integer> mix, String database) {
+        if (connections < 1 || rate <= 0 || durationMillis <= 0) {
+            throw new IllegalArgumentException("Connections, rate and duration all have to be positive");
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("The mix has to give at least one operation a weight");
+        }
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.rate = rate;
+        this.durationMillis = durationMillis;
+        this.mix = new EnumMap<>(mix);
+        this.database = database;
+    }
+
+    // Parses a mix such as "select=70,insert=30"
+    public static Map<Operation, Integer> parseMix(String text) {
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (String item : text.split(",")) {
+            String[] parts = item.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected operation=weight but found " + item);
+            }
+            mix.put(Operation.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+        }
+        return mix;
+    }
+
+    // Opens the connections, sends commands for the duration, and waits for the responses still due
+    public Report run() throws IOException, InterruptedException {
+        List<DBClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients.add(new DBClient(host, port));
+            }
+            setUp(clients);
+            return sendLoad(clients);
+        } finally {
+            for (DBClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    private void setUp(List<DBClient> clients) throws IOException {
+        DBClient first = clients.get(0);
+        // Either may fail because an earlier run created them already
+        first.send("CREATE DATABASE " + database + ";");
+        first.send("USE " + database + ";");
+        if (first.send("CREATE TABLE " + TABLE + " (name, value INT);").startsWith("[OK]")) {
+            StringBuilder insert = new StringBuilder("INSERT INTO " + TABLE + " VALUES ");
+            for (int key = 0; key < KEY_RANGE; key++) {
+                insert.append(key == 0 ? "" : ", ").append("('seed").append(key).append("', ").append(key).append(')');
+            }
+            first.send(insert.append(';').toString());
+        }
+        for (DBClient client : clients.subList(1, clients.size())) {
+            String response = client.send("USE " + database + ";");
+            if (!response.startsWith("[OK]")) {
+                throw new IOException("Could not use database " + database + ": " + response);
+            }
+        }
+    }
+
+    private Report sendLoad(List<DBClient> clients) throws InterruptedException {
+        Report report = new Report();
+        Random random = new Random();
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        long intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        long durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long start = System.nanoTime();
+        for (long sent = 0; sent * intervalNanos < durationNanos; sent++) {
+            long due = start + sent * intervalNanos;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Operation operation = pick(random.nextInt(totalWeight));
+            CompletableFuture<DBClient.Response> response = clients.get((int) (sent % clients.size())).query(command(operation, sent, random));
+            report.sent();
+            response.whenComplete((result, failure) -> report.completed(operation, due, result, failure));
+        }
+        report.awaitCompletion(DRAIN_TIMEOUT_MS);
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private Operation pick(int ticket) {
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            ticket -= entry.getValue();
+            if (ticket < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("The weights changed");
+    }
+
+    private String command(Operation operation, long sequence, Random random) {
+        int key = random.nextInt(KEY_RANGE);
+        switch (operation) {
+            case SELECT:
+                return "SELECT name FROM " + TABLE + " WHERE value == " + key + " LIMIT 10;";
+            case INSERT:
+                return "INSERT INTO " + TABLE + " VALUES ('row" + sequence + "', " + key + ");";
+            case USE:
+                return "USE " + database + ";";
+            default:
+                return "CREATE TABLE " + TABLE + "_" + Long.toString(System.nanoTime(), 36) + "_" + sequence + " (name, value INT);";
+        }
+    }
+
+    /**
+     * What a run measured. Latencies are in microseconds from when each command was due; a command whose
+     * response was not ok (an [ERROR], or a result an error cut short) still counts as completed, one whose
+     * connection failed does not.
+     */
+    public static final class Report {
+        private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        private final LatencyHistogram allLatencies = new LatencyHistogram();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private long elapsedNanos;
+
+        private Report() {
+            for (Operation operation : Operation.values()) {
+                latencies.put(operation, new LatencyHistogram());
+            }
+        }
+
+        private void sent() {
+            sent.incrementAndGet();
+        }
+
+        private void completed(Operation operation, long dueNanos, DBClient.Response response, Throwable failure) {
+            if (failure != null) {
+                failed.incrementAndGet();
+            } else {
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueNanos);
+                latencies.get(operation).record(micros);
+                allLatencies.record(micros);
+                completed.incrementAndGet();
+                if (!response.isOk()) {
+                    errors.incrementAndGet();
+                }
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        private synchronized void awaitCompletion(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining;
+            while (completed.get() + failed.get() < sent.get() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        }
+
+        public long getSent() {
+            return sent.get();
+        }
+
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        // Responses per second, over the time from the first command being due until the last response
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : completed.get() * 1e9 / elapsedNanos;
+        }
+
+        public LatencyHistogram getLatencies(Operation operation) {
+            return latencies.get(operation);
+        }
+
+        // One "name key=value ..." line per measure, as in STATS, with the latency percentiles of every operation sent
+        public String format() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("run seconds=%.2f sent=%d completed=%d errors=%d failed=%d throughput=%.1f\n",
+                    elapsedNanos / 1e9, sent.get(), completed.get(), errors.get(), failed.get(), getThroughput()));
+            appendLatencies(out, "ALL", allLatencies);
+            for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+                if (entry.getValue().getCount() > 0) {
+                    appendLatencies(out, entry.getKey().name(), entry.getValue());
+                }
+            }
+            return out.toString();
+        }
+
+        private static void appendLatencies(StringBuilder out, String name, LatencyHistogram histogram) {
+            out.append("latency ").append(name).append(" count=").append(histogram.getCount());
+            for (double percentile : new double[] {50, 90, 99, 99.9, 99.99}) {
+                out.append(" p").append(percentile == (long) percentile ? Long.toString((long) percentile) : Double.toString(percentile))
+                        .append('=').append(histogram.getPercentile(percentile));
+            }
+            out.append(" max=").append(histogram.getMax()).append('\n');
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int connections = 16;
+        double rate = 1000;
+        long durationSeconds = 10;
+        String mix = "select=70,insert=30";
+        String database = "loadtest";
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--connections":
+                    connections = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--mix":
+                    mix = args[++i];
+                    break;
+                case "--database":
+                    database = args[++i];
+                    break;
+                default:
+                    positional.add(args[i]);
+                    break;
+            }
+        }
+        String host = positional.isEmpty() ? "localhost" : positional.get(0);
+        int port = positional.size() < 2 ? 8080 : Integer.parseInt(positional.get(1));
+        LoadGenerator generator = new LoadGenerator(host, port, connections, rate, TimeUnit.SECONDS.toMillis(durationSeconds), parseMix(mix), database);
+        System.out.print(generator.run().format());
+    }
+}
@@ -0,0 +1,17 @@
+package edu.uob;
+
+import java.io.IOException;
+
+/**
+ * Receives table rows together with the byte offset of their line in the table file, for UPDATE and
+ * DELETE, which have to be able to name the rows they replace.
+ */
+@FunctionalInterface
+public interface OffsetRowVisitor {
+    void visit(String[] row, long offset) throws IOException;
+
+    // Readers stop passing rows on once this is true, e.g. when a LIMIT has been reached
+    default boolean isDone() {
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+package edu.uob;
+
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A skip-list index that keeps keys in {@link Condition#compareValues} order, so it can answer
+ * range comparisons as well as equality.
+ */
+public class OrderedIndex extends TableIndex {
+    private final ConcurrentSkipListMap<String, OffsetList> entries = new ConcurrentSkipListMap<>(Condition::compareValues);
+
+    public OrderedIndex(String name, String column, int columnIndex) {
+        super(name, column, columnIndex);
+    }
+
+    @Override
+    public Kind getKind() {
+        return Kind.BTREE;
+    }
+
+    @Override
+    protected void add(String value, long offset) {
+        entries.computeIfAbsent(value, key -> new OffsetList()).add(offset);
+    }
+
+    @Override
+    public long[] lookup(Condition.Comparison comparison) {
+        String value = comparison.getValue();
+        switch (comparison.getOperator()) {
+            case EQUALS:
+                OffsetList offsets = entries.get(value);
+                return offsets == null ? new long[0] : offsets.toArray();
+            case LESS:
+                return collect(entries.headMap(value, false));
+            case LESS_OR_EQUAL:
+                return collect(entries.headMap(value, true));
+            case GREATER:
+                return collect(entries.tailMap(value, false));
+            case GREATER_OR_EQUAL:
+                return collect(entries.tailMap(value, true));
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    protected Iterable<OffsetList> offsetLists() {
+        return entries.values();
+    }
+
+    private static long[] collect(NavigableMap<String, OffsetList> range) {
+        long[] result = new long[16];
+        int size = 0;
+        for (OffsetList list : range.values()) {
+            long[] offsets = list.toArray();
+            if (size + offsets.length > result.length) {
+                result = Arrays.copyOf(result, Math.max(result.length * 2, size + offsets.length));
+            }
+            System.arraycopy(offsets, 0, result, size, offsets.length);
+            size += offsets.length;
+        }
+        result = Arrays.copyOf(result, size);
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,133 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scans a table file on several threads. The file is cut into ranges of about rangeBytes, which
+ * {@link TableFileReader#readRange} lines up with line boundaries, and each range is read and filtered
+ * on a thread of its own. The matching rows are passed on range by range in file order, so the visitor
+ * sees exactly what a scan on one thread would. No more than parallelism ranges are read ahead of the
+ * one being passed on, which bounds the rows held in memory while a slow client catches up.
+ */
+public class ParallelScan {
+    private final Executor executor;
+    private final int parallelism;
+    private final long rangeBytes;
+
+    public ParallelScan(Executor executor, int parallelism, long rangeBytes) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.rangeBytes = Math.max(1, rangeBytes);
+    }
+
+    // Whether a file of this size is split into more than one range
+    public boolean isWorthwhile(long fileBytes) {
+        return parallelism > 1 && fileBytes > rangeBytes;
+    }
+
+    /**
+     * Visits the rows whose lines start before endOffset, leaving out the header, those in dead and those
+     * that do not match the condition, if there is one, until the visitor is done. Returns the bytes read;
+     * rowsScanned is increased by the rows looked at.
+     */
+    public long scan(FileChannel channel, long endOffset, long[] dead, Condition condition, OffsetRowVisitor visitor, AtomicLong rowsScanned) throws IOException {
+        int rangeCount = (int) Math.max(1, (endOffset + rangeBytes - 1) / rangeBytes);
+        Deque<CompletableFuture<Range>> pending = new ArrayDeque<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        long bytesRead = 0;
+        int next = 0;
+        try {
+            while (!visitor.isDone() && (next < rangeCount || !pending.isEmpty())) {
+                while (next < rangeCount && pending.size() < parallelism) {
+                    long start = endOffset * next / rangeCount;
+                    long end = endOffset * (next + 1) / rangeCount;
+                    pending.add(CompletableFuture.supplyAsync(() -> Range.read(channel, start, end, dead, condition, stop), executor));
+                    next++;
+                }
+                Range range = join(pending.poll());
+                bytesRead += range.bytesRead;
+                rowsScanned.addAndGet(range.scanned);
+                for (int i = 0; i < range.rows.size() && !visitor.isDone(); i++) {
+                    visitor.visit(range.rows.get(i), range.offsets[i]);
+                }
+            }
+            return bytesRead;
+        } finally {
+            // Ranges still being read stop early, and are waited for so that none reads the channel once it is closed
+            stop.set(true);
+            for (CompletableFuture<Range> range : pending) {
+                try {
+                    range.join();
+                } catch (CompletionException e) {
+                    // the scan is over, or failed already
+                }
+            }
+        }
+    }
+
+    private static Range join(CompletableFuture<Range> range) throws IOException {
+        try {
+            return range.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    // The matching rows of one range, with their offsets
+    private static final class Range implements OffsetRowVisitor {
+        private final Condition condition;
+        private final AtomicBoolean stop;
+        final List<String[]> rows = new ArrayList<>();
+        long[] offsets = new long[16];
+        long scanned;
+        long bytesRead;
+
+        private Range(Condition condition, AtomicBoolean stop) {
+            this.condition = condition;
+            this.stop = stop;
+        }
+
+        static Range read(FileChannel channel, long start, long end, long[] dead, Condition condition, AtomicBoolean stop) {
+            Range range = new Range(condition, stop);
+            try {
+                range.bytesRead = TableFileReader.readRange(channel, start, end, dead, range);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return range;
+        }
+
+        @Override
+        public void visit(String[] row, long offset) {
+            scanned++;
+            if (condition != null && !condition.matches(row)) {
+                return;
+            }
+            if (rows.size() == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[rows.size()] = offset;
+            rows.add(row);
+        }
+
+        @Override
+        public boolean isDone() {
+            return stop.get();
+        }
+    }
+}
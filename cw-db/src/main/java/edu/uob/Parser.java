@@ -0,0 +1,404 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recursive-descent parser for the command grammar:
+ *
+ * <pre>
+ *   command      := statement [';']
+ *   statement    := CREATE DATABASE name
+ *                 | CREATE TABLE name [ '(' name [ type ] ( ',' name [ type ] )* ')' ]
+ *                 | CREATE INDEX name ON name '(' name ')' [ USING ( HASH | BTREE ) ]
+ *                 | USE name
+ *                 | INSERT INTO name VALUES tuple ( ',' tuple )*
+ *                 | LOAD DATA INFILE literal INTO TABLE name [ FORMAT ( CSV | TSV ) ] [ HEADER ]
+ *                 | SELECT ( '*' | item ( ',' item )* ) FROM name [ JOIN name ON column ( == | = ) column ]
+ *                          [ WHERE condition ] [ GROUP BY column ( ',' column )* ]
+ *                          [ ORDER BY sortKey ( ',' sortKey )* ] [ LIMIT literal [ OFFSET literal ] ]
+ *                 | UPDATE name SET name '=' literal ( ',' name '=' literal )* WHERE condition
+ *                 | DELETE FROM name WHERE condition
+ *                 | STATS
+ *   type         := INT | BIGINT | DOUBLE | BOOLEAN | VARCHAR
+ *   item         := column | aggregate '(' ( '*' | column ) ')'
+ *   aggregate    := COUNT | SUM | AVG | MIN | MAX
+ *   sortKey      := column [ ASC | DESC ]
+ *   tuple        := '(' literal ( ',' literal )* ')'
+ *   condition    := andCondition ( OR andCondition )*
+ *   andCondition := primary ( AND primary )*
+ *   primary      := '(' condition ')' | column operator literal
+ *   column       := name [ '.' name ]
+ *   operator     := == | = | != | &lt; | &gt; | &lt;= | &gt;= | LIKE
+ * </pre>
+ */
+public final class Parser {
+    // Conditions are parsed, bound and evaluated recursively, so their depth is kept well within the stack
+    static final int MAX_CONDITION_DEPTH = 256;
+
+    private final Lexer tokens;
+    private int next;
+    // How many parentheses the condition being parsed is inside
+    private int conditionNesting;
+    // The depth of the condition tree the last parseCondition, parseAndCondition or parsePrimary returned
+    private int conditionDepth;
+
+    private Parser(Lexer tokens) {
+        this.tokens = tokens;
+    }
+
+    public static Statement parse(Lexer tokens) {
+        Parser parser = new Parser(tokens);
+        Statement statement = parser.parseStatement();
+        parser.accept(";");
+        if (parser.hasMore()) {
+            throw new IllegalArgumentException("Unexpected '" + tokens.text(parser.next) + "' after end of command");
+        }
+        return statement;
+    }
+
+    private Statement parseStatement() {
+        if (accept("CREATE")) {
+            if (accept("DATABASE")) {
+                return new Statement.CreateDatabase(expectName());
+            }
+            if (accept("TABLE")) {
+                return parseCreateTable();
+            }
+            if (accept("INDEX")) {
+                return parseCreateIndex();
+            }
+            throw new IllegalArgumentException("Invalid CREATE command");
+        }
+        if (accept("USE")) {
+            return new Statement.Use(expectName());
+        }
+        if (accept("INSERT")) {
+            return parseInsert();
+        }
+        if (accept("LOAD")) {
+            return parseLoad();
+        }
+        if (accept("SELECT")) {
+            return parseSelect();
+        }
+        if (accept("UPDATE")) {
+            return parseUpdate();
+        }
+        if (accept("DELETE")) {
+            expect("FROM");
+            String tableName = expectName();
+            expect("WHERE");
+            return new Statement.Delete(tableName, parseCondition());
+        }
+        if (accept("STATS")) {
+            return new Statement.Stats();
+        }
+        throw new IllegalArgumentException("Unknown command");
+    }
+
+    private Statement parseCreateTable() {
+        String tableName = expectName();
+        List<String> columns = new ArrayList<>();
+        List<ColumnType> types = new ArrayList<>();
+        if (accept("(")) {
+            do {
+                columns.add(expectName());
+                boolean typed = hasMore() && tokens.type(next) == Lexer.WORD;
+                types.add(typed ? ColumnType.named(expectName()) : ColumnType.VARCHAR);
+            } while (accept(","));
+            expect(")");
+        }
+        return new Statement.CreateTable(tableName, columns, types);
+    }
+
+    private Statement parseCreateIndex() {
+        String indexName = expectName();
+        expect("ON");
+        String tableName = expectName();
+        expect("(");
+        String column = expectName();
+        expect(")");
+        TableIndex.Kind kind = TableIndex.Kind.BTREE;
+        if (accept("USING")) {
+            if (accept("HASH")) {
+                kind = TableIndex.Kind.HASH;
+            } else {
+                expect("BTREE");
+            }
+        }
+        return new Statement.CreateIndex(indexName, tableName, column, kind);
+    }
+
+    private Statement parseInsert() {
+        expect("INTO");
+        String tableName = expectName();
+        expect("VALUES");
+        List<int[]> rows = new ArrayList<>();
+        do {
+            rows.add(parseTuple());
+        } while (accept(","));
+        return new Statement.Insert(tableName, rows.toArray(new int[0][]));
+    }
+
+    private int[] parseTuple() {
+        expect("(");
+        int[] values = new int[8];
+        int count = 0;
+        do {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = expectLiteral();
+        } while (accept(","));
+        expect(")");
+        return Arrays.copyOf(values, count);
+    }
+
+    private Statement parseLoad() {
+        expect("DATA");
+        expect("INFILE");
+        int fileParameter = expectLiteral();
+        expect("INTO");
+        expect("TABLE");
+        String tableName = expectName();
+        DelimitedFileReader.Format format = null;
+        if (accept("FORMAT")) {
+            if (accept("CSV")) {
+                format = DelimitedFileReader.Format.CSV;
+            } else {
+                expect("TSV");
+                format = DelimitedFileReader.Format.TSV;
+            }
+        }
+        boolean header = accept("HEADER");
+        return new Statement.Load(fileParameter, tableName, format, header);
+    }
+
+    private Statement parseSelect() {
+        List<String> columns = null;
+        List<Statement.Aggregate> aggregates = null;
+        if (!accept("*")) {
+            columns = new ArrayList<>();
+            List<Statement.Aggregate> items = new ArrayList<>();
+            do {
+                Statement.Aggregate.Function function = peekAggregate();
+                if (function == null) {
+                    columns.add(expectColumn());
+                    items.add(null);
+                    continue;
+                }
+                String written = tokens.text(next);
+                next++;
+                expect("(");
+                String column = null;
+                if (accept("*")) {
+                    if (function != Statement.Aggregate.Function.COUNT) {
+                        throw new IllegalArgumentException(function + "(*) is not supported");
+                    }
+                } else {
+                    column = expectColumn();
+                }
+                expect(")");
+                columns.add(written + "(" + (column == null ? "*" : column) + ")");
+                items.add(new Statement.Aggregate(function, column));
+            } while (accept(","));
+            if (items.stream().anyMatch(item -> item != null)) {
+                aggregates = items;
+            }
+        }
+        expect("FROM");
+        String tableName = expectName();
+        Statement.Join join = null;
+        if (accept("JOIN")) {
+            String joinTable = expectName();
+            expect("ON");
+            String leftColumn = expectColumn();
+            if (!accept("==")) {
+                expect("=");
+            }
+            join = new Statement.Join(joinTable, leftColumn, expectColumn());
+        }
+        Condition where = accept("WHERE") ? parseCondition() : null;
+        List<String> groupBy = null;
+        if (accept("GROUP")) {
+            expect("BY");
+            groupBy = new ArrayList<>();
+            do {
+                groupBy.add(expectColumn());
+            } while (accept(","));
+        }
+        List<Statement.SortKey> orderBy = null;
+        if (accept("ORDER")) {
+            expect("BY");
+            orderBy = new ArrayList<>();
+            do {
+                String column = expectColumn();
+                boolean descending = accept("DESC");
+                if (!descending) {
+                    accept("ASC");
+                }
+                orderBy.add(new Statement.SortKey(column, descending));
+            } while (accept(","));
+        }
+        int limit = -1;
+        int offset = -1;
+        if (accept("LIMIT")) {
+            limit = expectLiteral();
+            if (accept("OFFSET")) {
+                offset = expectLiteral();
+            }
+        }
+        if ((aggregates != null || groupBy != null) && (orderBy != null || limit >= 0)) {
+            throw new IllegalArgumentException("ORDER BY and LIMIT cannot be used with aggregates or GROUP BY");
+        }
+        return new Statement.Select(columns, aggregates, tableName, join, where, groupBy, orderBy, limit, offset);
+    }
+
+    private Statement parseUpdate() {
+        String tableName = expectName();
+        expect("SET");
+        List<String> columns = new ArrayList<>();
+        int[] values = new int[4];
+        do {
+            if (columns.size() == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            columns.add(expectName());
+            expect("=");
+            values[columns.size() - 1] = expectLiteral();
+        } while (accept(","));
+        expect("WHERE");
+        return new Statement.Update(tableName, columns, Arrays.copyOf(values, columns.size()), parseCondition());
+    }
+
+    private Condition parseCondition() {
+        Condition condition = parseAndCondition();
+        int depth = conditionDepth;
+        while (accept("OR")) {
+            condition = new Condition.Or(condition, parseAndCondition());
+            depth = deeperCondition(depth);
+        }
+        conditionDepth = depth;
+        return condition;
+    }
+
+    private Condition parseAndCondition() {
+        Condition condition = parsePrimary();
+        int depth = conditionDepth;
+        while (accept("AND")) {
+            condition = new Condition.And(condition, parsePrimary());
+            depth = deeperCondition(depth);
+        }
+        conditionDepth = depth;
+        return condition;
+    }
+
+    private Condition parsePrimary() {
+        if (accept("(")) {
+            if (++conditionNesting > MAX_CONDITION_DEPTH) {
+                throw new IllegalArgumentException("Condition nested too deeply");
+            }
+            Condition condition = parseCondition();
+            expect(")");
+            conditionNesting--;
+            return condition;
+        }
+        String column = expectColumn();
+        Condition.Operator operator = parseOperator();
+        conditionDepth = 1;
+        return new Condition.Comparison(column, operator, expectLiteral());
+    }
+
+    // The depth of an AND or OR of a condition of the given depth and the one just parsed
+    private int deeperCondition(int depth) {
+        int combined = 1 + Math.max(depth, conditionDepth);
+        if (combined > MAX_CONDITION_DEPTH) {
+            throw new IllegalArgumentException("Condition nested too deeply");
+        }
+        return combined;
+    }
+
+    private Condition.Operator parseOperator() {
+        if (accept("==") || accept("=")) {
+            return Condition.Operator.EQUALS;
+        }
+        if (accept("!=")) {
+            return Condition.Operator.NOT_EQUALS;
+        }
+        if (accept("<=")) {
+            return Condition.Operator.LESS_OR_EQUAL;
+        }
+        if (accept(">=")) {
+            return Condition.Operator.GREATER_OR_EQUAL;
+        }
+        if (accept("<")) {
+            return Condition.Operator.LESS;
+        }
+        if (accept(">")) {
+            return Condition.Operator.GREATER;
+        }
+        if (accept("LIKE")) {
+            return Condition.Operator.LIKE;
+        }
+        throw new IllegalArgumentException("Expected a comparison operator but found " + describeNext());
+    }
+
+    private boolean hasMore() {
+        return next < tokens.size();
+    }
+
+    // Consumes the next token if it is the given keyword or symbol (keywords are case-insensitive)
+    private boolean accept(String expected) {
+        if (hasMore() && tokens.is(next, expected)) {
+            next++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String expected) {
+        if (!accept(expected)) {
+            throw new IllegalArgumentException("Expected " + expected + " but found " + describeNext());
+        }
+    }
+
+    private String expectName() {
+        if (!hasMore() || tokens.type(next) != Lexer.WORD) {
+            throw new IllegalArgumentException("Expected a name but found " + describeNext());
+        }
+        return tokens.text(next++);
+    }
+
+    // The aggregate function starting at the next token, or null if the next token is not one
+    private Statement.Aggregate.Function peekAggregate() {
+        if (next + 1 >= tokens.size() || tokens.type(next) != Lexer.WORD || !tokens.is(next + 1, "(")) {
+            return null;
+        }
+        for (Statement.Aggregate.Function function : Statement.Aggregate.Function.values()) {
+            if (tokens.is(next, function.name())) {
+                return function;
+            }
+        }
+        return null;
+    }
+
+    // A column name, optionally qualified with its table name
+    private String expectColumn() {
+        String name = expectName();
+        return accept(".") ? name + "." + expectName() : name;
+    }
+
+    // Returns the literal's index in the command's parameters
+    private int expectLiteral() {
+        if (!hasMore() || tokens.type(next) != Lexer.LITERAL) {
+            throw new IllegalArgumentException("Expected a value but found " + describeNext());
+        }
+        return tokens.parameterIndex(next++);
+    }
+
+    private String describeNext() {
+        return hasMore() ? "'" + tokens.text(next) + "'" : "end of command";
+    }
+}
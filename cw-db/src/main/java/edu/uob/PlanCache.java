@@ -0,0 +1,52 @@
+package edu.uob;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the parsed statement for recently seen command shapes, so that e.g. a stream of INSERTs
+ * that only differ in their values is parsed once. Bounded, least recently used shapes are dropped first.
+ */
+public class PlanCache {
+    private final LinkedHashMap<String, Statement> plans;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public PlanCache(int maxEntries) {
+        this.plans = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Statement> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public Statement getPlan(Lexer tokens) {
+        String shape = tokens.getShape();
+        Statement plan;
+        synchronized (this) {
+            plan = plans.get(shape);
+        }
+        if (plan != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            plan = Parser.parse(tokens);
+            synchronized (this) {
+                plans.put(shape, plan);
+            }
+        }
+        return plan;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
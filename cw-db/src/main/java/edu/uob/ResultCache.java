@@ -0,0 +1,194 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the whole response of recent SELECTs, so that a query repeated against tables that have not
+ * changed is answered without reading them. Entries are keyed on the database and the query as the
+ * {@link Lexer} normalises it (its shape plus its values), and carry the version of every table the query
+ * read, taken before it ran (see {@link TableCatalog.TableInfo#getVersion}). Any change to one of those
+ * tables gives it a new version, which makes the entry stale; stale entries are dropped when they are
+ * next looked up, or evicted like any other. Like the {@link TableCache}, entries are evicted least
+ * recently used first once their estimated size goes over the budget. A SELECT result is kept as the
+ * text protocol's response together with its column types, so that it can be sent as rows again.
+ */
+public class ResultCache {
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // accessOrder = true turns the map into an LRU list, eldest entry first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    public static final class Entry {
+        final long[] versions;
+        final String response;
+        final ColumnType[] types;
+        final long bytes;
+
+        Entry(String key, long[] versions, String response, ColumnType[] types) {
+            this.versions = versions;
+            this.response = response;
+            this.types = types;
+            this.bytes = ENTRY_OVERHEAD_BYTES + 2L * (key.length() + response.length()) + 8L * versions.length;
+        }
+
+        public String getResponse() {
+            return response;
+        }
+
+        // Writes the response to out as it was first written, a result as rows so that NULLs are shown as out shows them
+        public void writeTo(Writer out) throws IOException {
+            if (types == null) {
+                out.write(response);
+                return;
+            }
+            RowWriter rows = RowWriter.of(out);
+            rows.startRows(types);
+            int start = response.indexOf('\n') + 1;
+            while (start > 0) {
+                int end = response.indexOf('\n', start);
+                rows.writeRow(response.substring(start, end < 0 ? response.length() : end).split("\t", -1));
+                start = end + 1;
+            }
+        }
+    }
+
+    // maxBytes of 0 turns the cache off; responses longer than maxEntryBytes are never cached
+    public ResultCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    // The same key for the same query however it is spaced
+    public static String keyOf(String database, Lexer tokens) {
+        StringBuilder key = new StringBuilder(database).append('\n').append(tokens.getShape()).append('\n');
+        // Length-prefixed, so no value can run into the next
+        for (String parameter : tokens.getParameters()) {
+            key.append(parameter.length()).append(':').append(parameter);
+        }
+        return key.toString();
+    }
+
+    // The cached response, or null if there is none made from these versions of the tables
+    public synchronized Entry get(String key, long[] versions) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!Arrays.equals(entry.versions, versions)) {
+            entries.remove(key);
+            cachedBytes -= entry.bytes;
+            return null;
+        }
+        return entry;
+    }
+
+    // types are those of a SELECT result's columns, or null if the response is not one
+    public synchronized void put(String key, long[] versions, String response, ColumnType[] types) {
+        Entry entry = new Entry(key, versions, response, types);
+        if (entry.bytes > maxEntryBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            cachedBytes -= previous.bytes;
+        }
+        cachedBytes += entry.bytes;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Passes a response through to out while keeping a copy of it as text, until it grows too long to be
+     * cached; {@link #getResponse} is then null. Rows are passed on as rows.
+     */
+    public Recorder record(Writer out) {
+        return new Recorder(out, maxEntryBytes / 2);
+    }
+
+    public static final class Recorder extends Writer implements RowWriter {
+        private final Writer out;
+        private final RowWriter rows;
+        private final long maxChars;
+        private StringBuilder copy = new StringBuilder();
+        private ColumnType[] types;
+
+        private Recorder(Writer out, long maxChars) {
+            this.out = out;
+            this.rows = RowWriter.of(out);
+            this.maxChars = maxChars;
+        }
+
+        @Override
+        public void startRows(ColumnType[] types) throws IOException {
+            rows.startRows(types);
+            this.types = types;
+            append("[OK]");
+        }
+
+        @Override
+        public void writeRow(String[] values) throws IOException {
+            rows.writeRow(values);
+            if (copy != null) {
+                append("\n");
+                append(String.join("\t", values));
+            }
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            if (copy != null) {
+                copy = copy.length() + length > maxChars ? null : copy.append(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public void write(String text) throws IOException {
+            out.write(text);
+            append(text);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        public String getResponse() {
+            return copy == null ? null : copy.toString();
+        }
+
+        // The types of the result, or null if the response is not one
+        public ColumnType[] getTypes() {
+            return types;
+        }
+
+        private void append(String text) {
+            if (copy != null) {
+                copy = copy.length() + text.length() > maxChars ? null : copy.append(text);
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package edu.uob;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Puts SELECT rows in ORDER BY order, then leaves out the first offset of them and passes on at most
+ * limit. With a LIMIT only the first offset + limit rows can ever be returned, so only that many are
+ * kept, in a heap whose head is the row that would be dropped next (a top-k sort). Whatever is kept
+ * in memory is sorted and written to a run file once it outgrows memoryBytes, and the runs are merged
+ * at the end (an external merge sort), at most mergeFanIn at a time: while there are more, groups of them
+ * are merged into longer runs first. Values are compared like WHERE's comparisons, numbers before text,
+ * and rows that compare equal come out in the order they were visited. Each row's sort keys are parsed
+ * once, when it is visited or read back from a run, rather than on every comparison.
+ */
+public class RowSorter implements RowVisitor, Closeable {
+    private static final long ROW_OVERHEAD_BYTES = 48;
+    private static final long VALUE_OVERHEAD_BYTES = 48;
+
+    private final int[] keyColumns;
+    private final Comparator<Entry> order;
+    private final long offset;
+    private final long limit;
+    private final long memoryBytes;
+    private final int mergeFanIn;
+    private final Path spillDirectory;
+    // The rows that are kept, in visiting order or, with a LIMIT, as a heap with the last row first
+    private final List<Entry> rows = new ArrayList<>();
+    private final PriorityQueue<Entry> topRows;
+    private long bytes;
+    private long sequence;
+    private Path runDirectory;
+    private final List<Path> runs = new ArrayList<>();
+    private int runsCreated;
+
+    private static final class Entry {
+        final String[] row;
+        final long sequence;
+        final long bytes;
+        // The value of each sort key as a number, or NaN (which no value parses to) if it is text
+        final double[] numbers;
+
+        Entry(String[] row, long sequence, long bytes, double[] numbers) {
+            this.row = row;
+            this.sequence = sequence;
+            this.bytes = bytes;
+            this.numbers = numbers;
+        }
+    }
+
+    // keyColumns and descending are parallel; limit is -1 for no limit; mergeFanIn is at least 2
+    public RowSorter(int[] keyColumns, boolean[] descending, long offset, long limit, long memoryBytes, int mergeFanIn, Path spillDirectory) {
+        if (mergeFanIn < 2) {
+            throw new IllegalArgumentException("A merge needs a fan-in of at least 2");
+        }
+        this.keyColumns = keyColumns;
+        Comparator<Entry> byKeys = (left, right) -> 0;
+        for (int i = 0; i < keyColumns.length; i++) {
+            int key = i;
+            Comparator<Entry> byKey = (left, right) -> compareKeys(left, right, key);
+            byKeys = byKeys.thenComparing(descending[i] ? byKey.reversed() : byKey);
+        }
+        this.order = byKeys.thenComparingLong(entry -> entry.sequence);
+        this.offset = offset;
+        this.limit = limit;
+        this.memoryBytes = memoryBytes;
+        this.mergeFanIn = mergeFanIn;
+        this.spillDirectory = spillDirectory;
+        this.topRows = limit < 0 ? null : new PriorityQueue<>(order.reversed());
+    }
+
+    @Override
+    public void visit(String[] row) throws IOException {
+        Entry entry = newEntry(row, sequence++, estimateBytes(row));
+        bytes += entry.bytes;
+        if (topRows == null) {
+            rows.add(entry);
+        } else {
+            topRows.add(entry);
+            if (topRows.size() > offset + limit) {
+                bytes -= topRows.poll().bytes;
+            }
+        }
+        if (bytes > memoryBytes) {
+            spill();
+        }
+    }
+
+    // Visits the sorted rows, from the offset-th up to the limit, and returns how many that was
+    public long writeTo(RowVisitor out) throws IOException {
+        List<Entry> sorted = sortedRows();
+        long skipped = 0;
+        long written = 0;
+        if (runs.isEmpty()) {
+            for (Entry entry : sorted) {
+                if (limit >= 0 && written >= limit) {
+                    break;
+                }
+                if (skipped++ >= offset) {
+                    out.visit(entry.row);
+                    written++;
+                }
+            }
+            return written;
+        }
+        reduceRuns();
+        // The rows still in memory are merged as one more run
+        List<Run> cursors = openRuns(runs);
+        cursors.add(new Run(sorted));
+        try {
+            long[] position = {0, 0};
+            merge(cursors, entry -> {
+                if (limit >= 0 && position[1] >= limit) {
+                    return false;
+                }
+                if (position[0]++ >= offset) {
+                    out.visit(entry.row);
+                    position[1]++;
+                }
+                return true;
+            });
+            return position[1];
+        } finally {
+            closeRuns(cursors);
+        }
+    }
+
+    // Deletes the run files
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        if (runDirectory != null) {
+            Files.deleteIfExists(runDirectory);
+            runDirectory = null;
+        }
+    }
+
+    private List<Entry> sortedRows() {
+        List<Entry> sorted = new ArrayList<>(topRows == null ? rows : topRows);
+        sorted.sort(order);
+        return sorted;
+    }
+
+    // Writes the rows kept so far to a new run file, at most offset + limit of them
+    private void spill() throws IOException {
+        Path run = newRun();
+        try (BufferedWriter writer = Files.newBufferedWriter(run)) {
+            long count = 0;
+            for (Entry entry : sortedRows()) {
+                if (limit >= 0 && count++ >= offset + limit) {
+                    break;
+                }
+                writeEntry(writer, entry);
+            }
+        }
+        runs.add(run);
+        rows.clear();
+        if (topRows != null) {
+            topRows.clear();
+        }
+        bytes = 0;
+    }
+
+    /**
+     * Merges the run files, mergeFanIn at a time, into longer ones until there are few enough left to be
+     * merged with the rows in memory in one last pass. Each merged run keeps at most offset + limit rows.
+     */
+    private void reduceRuns() throws IOException {
+        while (runs.size() + 1 > mergeFanIn) {
+            List<Path> merged = new ArrayList<>();
+            for (int start = 0; start < runs.size(); start += mergeFanIn) {
+                List<Path> group = runs.subList(start, Math.min(start + mergeFanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                Path run = newRun();
+                List<Run> cursors = openRuns(group);
+                try (BufferedWriter writer = Files.newBufferedWriter(run)) {
+                    long[] count = {0};
+                    merge(cursors, entry -> {
+                        if (limit >= 0 && count[0]++ >= offset + limit) {
+                            return false;
+                        }
+                        writeEntry(writer, entry);
+                        return true;
+                    });
+                } finally {
+                    closeRuns(cursors);
+                }
+                merged.add(run);
+                for (Path input : group) {
+                    Files.delete(input);
+                }
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+    }
+
+    // Passes the rows of the runs to out in order, until out turns one down or the runs are used up
+    private void merge(List<Run> cursors, EntryVisitor out) throws IOException {
+        PriorityQueue<Run> merge = new PriorityQueue<>(Comparator.<Run, Entry>comparing(run -> run.head, order));
+        for (Run run : cursors) {
+            if (run.advance()) {
+                merge.add(run);
+            }
+        }
+        while (!merge.isEmpty()) {
+            Run run = merge.poll();
+            if (!out.visit(run.head)) {
+                return;
+            }
+            if (run.advance()) {
+                merge.add(run);
+            }
+        }
+    }
+
+    private List<Run> openRuns(List<Path> files) throws IOException {
+        List<Run> cursors = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                cursors.add(new Run(new TableFileReader(file)));
+            }
+        } catch (IOException e) {
+            closeRuns(cursors);
+            throw e;
+        }
+        return cursors;
+    }
+
+    private static void closeRuns(List<Run> cursors) throws IOException {
+        for (Run run : cursors) {
+            run.close();
+        }
+    }
+
+    private Path newRun() throws IOException {
+        if (runDirectory == null) {
+            runDirectory = Files.createTempDirectory(spillDirectory, "cwdb-sort-");
+        }
+        return runDirectory.resolve("run-" + runsCreated++ + ".tsv");
+    }
+
+    // A line of a run file: the row's sequence number, then its values
+    private static void writeEntry(BufferedWriter writer, Entry entry) throws IOException {
+        writer.write(Long.toString(entry.sequence));
+        for (String value : entry.row) {
+            writer.write('\t');
+            // Columns that were not read are null; they are never compared or written
+            writer.write(value == null ? "" : value);
+        }
+        writer.write('\n');
+    }
+
+    private Entry newEntry(String[] row, long sequence, long bytes) {
+        double[] numbers = new double[keyColumns.length];
+        for (int i = 0; i < numbers.length; i++) {
+            String value = valueOf(row, keyColumns[i]);
+            numbers[i] = Condition.isNumeric(value) ? Double.parseDouble(value) : Double.NaN;
+        }
+        return new Entry(row, sequence, bytes + 8L * numbers.length, numbers);
+    }
+
+    // As Condition.compareValues: numbers by value and before text, and text as strings
+    private int compareKeys(Entry left, Entry right, int key) {
+        double leftNumber = left.numbers[key];
+        double rightNumber = right.numbers[key];
+        boolean leftNumeric = !Double.isNaN(leftNumber);
+        if (leftNumeric && !Double.isNaN(rightNumber)) {
+            int order = Double.compare(leftNumber, rightNumber);
+            // Large integers can round to the same double, so ties are settled on the exact values
+            return order != 0 ? order : Condition.compareValues(valueOf(left.row, keyColumns[key]),
+                    valueOf(right.row, keyColumns[key]));
+        }
+        if (leftNumeric != !Double.isNaN(rightNumber)) {
+            return leftNumeric ? -1 : 1;
+        }
+        return valueOf(left.row, keyColumns[key]).compareTo(valueOf(right.row, keyColumns[key]));
+    }
+
+    private static String valueOf(String[] row, int column) {
+        return column < row.length && row[column] != null ? row[column] : "";
+    }
+
+    private static long estimateBytes(String[] row) {
+        long estimate = ROW_OVERHEAD_BYTES + 4L * row.length;
+        for (String value : row) {
+            if (value != null) {
+                estimate += VALUE_OVERHEAD_BYTES + value.length();
+            }
+        }
+        return estimate;
+    }
+
+    @FunctionalInterface
+    private interface EntryVisitor {
+        // Returns false once no more rows are wanted
+        boolean visit(Entry entry) throws IOException;
+    }
+
+    // One sorted run being merged: a run file, or the rows that were still in memory
+    private final class Run {
+        private final TableFileReader reader;
+        private final List<Entry> rows;
+        private int next;
+        Entry head;
+
+        Run(TableFileReader reader) {
+            this.reader = reader;
+            this.rows = null;
+        }
+
+        Run(List<Entry> rows) {
+            this.reader = null;
+            this.rows = rows;
+        }
+
+        // Moves head on to the next row, returning false at the end of the run
+        boolean advance() throws IOException {
+            if (reader == null) {
+                head = next < rows.size() ? rows.get(next++) : null;
+            } else {
+                String[] line = reader.readRow();
+                head = line == null ? null : newEntry(Arrays.copyOfRange(line, 1, line.length), Long.parseLong(line[0]), 0);
+            }
+            return head != null;
+        }
+
+        void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package edu.uob;
+
+import java.io.IOException;
+
+/**
+ * Receives table rows one at a time, e.g. to write them straight to a client socket.
+ */
+@FunctionalInterface
+public interface RowVisitor {
+    void visit(String[] row) throws IOException;
+
+    // Sources stop passing rows on once this is true, e.g. when a LIMIT has been reached
+    default boolean isDone() {
+        return false;
+    }
+}
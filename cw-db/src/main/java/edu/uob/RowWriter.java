@@ -0,0 +1,56 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Takes the rows of a SELECT result as values rather than text, together with the type each column is
+ * declared with, so that a response writer such as the binary protocol's can encode them without
+ * parsing anything. A result always starts with {@link #startRows}, in place of its "[OK]" line.
+ */
+public interface RowWriter {
+    // types has one entry per value of each row
+    void startRows(ColumnType[] types) throws IOException;
+
+    void writeRow(String[] values) throws IOException;
+
+    /**
+     * Whether a line of a text result is "[ERROR]" after zero or more backslashes. A row line like that
+     * is written with one more backslash in front, so that it cannot be taken for the error line that ends
+     * a result cut short.
+     */
+    static boolean isEscapedRow(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) == '\\') {
+            i++;
+        }
+        return line.startsWith("[ERROR]", i);
+    }
+
+    // out itself if it takes rows, and otherwise a RowWriter that writes them to it as the text protocol's lines
+    static RowWriter of(Writer out) {
+        if (out instanceof RowWriter) {
+            return (RowWriter) out;
+        }
+        return new RowWriter() {
+            @Override
+            public void startRows(ColumnType[] types) throws IOException {
+                out.write("[OK]");
+            }
+
+            @Override
+            public void writeRow(String[] values) throws IOException {
+                out.write('\n');
+                if (values.length > 0 && isEscapedRow(values[0])) {
+                    out.write('\\');
+                }
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        out.write('\t');
+                    }
+                    out.write(ColumnType.display(values[i]));
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,596 @@
+package edu.uob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * The network front end. One selector thread accepts every connection and does all of their reads and
+ * writes, and commands run on a pool of worker threads, so an idle connection costs a few small buffers
+ * and no thread of its own.
+ *
+ * <p>A command is one line of text, and its response is followed by a line holding only EOT (a line of the
+ * response that would read as EOT is escaped with a backslash). Clients may send further commands without
+ * waiting for the responses (pipelining). Each connection's commands run one at a time, in the order they
+ * arrived, so the responses come back in that order and a USE applies to the commands sent after it. A
+ * connection is not read while too many of its commands are waiting, and a worker writing a response waits
+ * while too much of it is unsent, so neither a client that sends faster than its commands run nor one that
+ * reads slowly can make the server buffer without limit.
+ *
+ * <p>A client can switch its connection to binary frames by sending {@link BinaryProtocol#HANDSHAKE};
+ * the handshake itself is answered in text, and every later response in frames.
+ */
+public class SelectorServer implements Closeable {
+    public static final String END_OF_TRANSMISSION = "EOT";
+
+    interface CommandHandler {
+        void handleCommand(DBSession session, String command, Writer out) throws IOException;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SelectorServer.class.getName());
+    private static final byte[] END_OF_RESPONSE = ("\n" + END_OF_TRANSMISSION + "\n").getBytes(StandardCharsets.UTF_8);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int RESPONSE_CHUNK_CHARS = 16 * 1024;
+    private static final int ROWS_FRAME_BYTES = 64 * 1024;
+
+    private final CommandHandler handler;
+    private final ServerMetrics metrics;
+    private final ExecutorService workers;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread selectorThread;
+    // Only the selector thread reads, so one buffer does for every connection
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean closed;
+
+    // Binds the port straight away (0 for any free one); clients are served once start is called
+    public SelectorServer(CommandHandler handler, ServerMetrics metrics, ExecutorService workers, int portNumber) throws IOException {
+        this.handler = handler;
+        this.metrics = metrics;
+        this.workers = workers;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(portNumber), DBConfig.SERVER_ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        this.selectorThread = new Thread(this::runSelector, "db-selector");
+    }
+
+    public void start() {
+        LOGGER.info("Server listening on port " + getPort());
+        selectorThread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Blocks until the server has been closed
+    public void join() throws InterruptedException {
+        selectorThread.join();
+    }
+
+    // Stops accepting, closes every connection and stops the workers
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    private void runSelector() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.isValid()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.severe("Selector failed: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warning("Error closing the server socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            // Responses are small and written whole, so there is nothing to gain from Nagle's algorithm
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            metrics.connectionOpened();
+        }
+    }
+
+    /**
+     * One client. The selector thread adds the commands it reads and sends what workers could not write
+     * straight away; at most one worker at a time runs one of its commands. Everything that both touch
+     * is guarded by the connection's monitor.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final DBSession session = new DBSession();
+        // Replaced when the client switches to the binary protocol; only used by the worker running a command
+        private ResponseWriter writer = new TextResponseWriter(this);
+        private SelectionKey key;
+        // The start of a command whose line break has not arrived yet
+        private byte[] partialLine = new byte[256];
+        private int partialLength;
+        private final ArrayDeque<String> commands = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> unsent = new ArrayDeque<>();
+        private long unsentBytes;
+        // A worker is running, or about to run, one of the commands
+        private boolean running;
+        private boolean readPaused;
+        // The client has sent its last command; the connection closes once it has been answered
+        private boolean inputEnded;
+        private boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Called by the selector thread when the socket has data
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            synchronized (this) {
+                if (read < 0) {
+                    endInput();
+                    return;
+                }
+                readBuffer.flip();
+                while (readBuffer.hasRemaining() && !inputEnded) {
+                    byte b = readBuffer.get();
+                    if (b != '\n') {
+                        appendToLine(b);
+                        continue;
+                    }
+                    int length = partialLength > 0 && partialLine[partialLength - 1] == '\r' ? partialLength - 1 : partialLength;
+                    String command = new String(partialLine, 0, length, StandardCharsets.UTF_8);
+                    partialLength = 0;
+                    // An empty line ends the session, as it always has
+                    if (command.trim().isEmpty()) {
+                        endInput();
+                    } else {
+                        commands.add(command);
+                    }
+                }
+                if (commands.size() >= DBConfig.SERVER_MAX_PIPELINED_COMMANDS && !readPaused) {
+                    readPaused = true;
+                    key.interestOpsAnd(~SelectionKey.OP_READ);
+                }
+                runNextCommand();
+            }
+        }
+
+        private void appendToLine(byte b) throws IOException {
+            if (partialLength == partialLine.length) {
+                if (partialLength >= DBConfig.SERVER_MAX_COMMAND_BYTES) {
+                    throw new IOException("Command longer than " + DBConfig.SERVER_MAX_COMMAND_BYTES + " bytes");
+                }
+                partialLine = Arrays.copyOf(partialLine, Math.min(partialLength * 2, DBConfig.SERVER_MAX_COMMAND_BYTES));
+            }
+            partialLine[partialLength++] = b;
+        }
+
+        private void endInput() {
+            inputEnded = true;
+            key.interestOpsAnd(~SelectionKey.OP_READ);
+            closeIfDone();
+        }
+
+        // Hands the next command to a worker unless one is already running; called with the monitor held
+        private void runNextCommand() {
+            if (running || closed || commands.isEmpty()) {
+                return;
+            }
+            running = true;
+            try {
+                workers.execute(this::runCommand);
+            } catch (RejectedExecutionException e) {
+                // The server is closing
+                running = false;
+            }
+        }
+
+        // Runs on a worker: one command, then hands the next one to a worker, so busy connections take turns
+        private void runCommand() {
+            String command;
+            synchronized (this) {
+                command = commands.poll();
+                if (readPaused && commands.size() < DBConfig.SERVER_MAX_PIPELINED_COMMANDS / 2 && !inputEnded && !closed) {
+                    readPaused = false;
+                    key.interestOpsOr(SelectionKey.OP_READ);
+                    selector.wakeup();
+                }
+            }
+            try {
+                if (BinaryProtocol.isHandshake(command)) {
+                    writer.write("[OK] Binary protocol");
+                    writer.endResponse();
+                    writer = new FrameWriter(this, BinaryProtocol.isCompressedHandshake(command));
+                } else {
+                    handler.handleCommand(session, command, writer);
+                    writer.endResponse();
+                }
+            } catch (IOException e) {
+                LOGGER.fine(() -> "Closing a connection: " + e.getMessage());
+                close();
+                return;
+            } catch (RuntimeException | Error e) {
+                // The response may be half written, so the connection cannot be trusted with another command
+                LOGGER.severe(() -> "Closing a connection after its command failed: " + e);
+                close();
+                return;
+            }
+            synchronized (this) {
+                running = false;
+                runNextCommand();
+                closeIfDone();
+            }
+        }
+
+        /**
+         * Called by a worker with the next bytes of a response. They are written straight to the socket if
+         * nothing is waiting ahead of them, and whatever the socket does not take is left to the selector
+         * thread. Blocks while more than SERVER_MAX_UNSENT_BYTES are waiting.
+         */
+        synchronized void send(ByteBuffer bytes) throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            if (unsent.isEmpty()) {
+                channel.write(bytes);
+            }
+            if (bytes.hasRemaining()) {
+                unsent.add(bytes);
+                unsentBytes += bytes.remaining();
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                selector.wakeup();
+            }
+            try {
+                while (unsentBytes > DBConfig.SERVER_MAX_UNSENT_BYTES && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending a response");
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+        }
+
+        // Called by the selector thread when the socket can take more of what is unsent
+        synchronized void write() throws IOException {
+            while (!unsent.isEmpty()) {
+                ByteBuffer head = unsent.peek();
+                unsentBytes -= channel.write(head);
+                if (head.hasRemaining()) {
+                    break;
+                }
+                unsent.poll();
+            }
+            notifyAll();
+            if (unsent.isEmpty()) {
+                key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                closeIfDone();
+            }
+        }
+
+        private void closeIfDone() {
+            if (inputEnded && !running && commands.isEmpty() && unsent.isEmpty()) {
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.fine(() -> "Error closing a connection: " + e.getMessage());
+            }
+            notifyAll();
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Sends a response on in chunks, so a large SELECT result goes out as it is written rather than being
+     * held in memory. Only used by the worker running the connection's command.
+     */
+    private abstract static class ResponseWriter extends Writer {
+        protected final Connection connection;
+        protected final StringBuilder chunk = new StringBuilder();
+
+        ResponseWriter(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            chunk.append(buffer, offset, length);
+            if (chunk.length() >= RESPONSE_CHUNK_CHARS) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void write(String text) throws IOException {
+            chunk.append(text);
+            if (chunk.length() >= RESPONSE_CHUNK_CHARS) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sendChunk();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        // Sends what is left of the response and marks its end
+        abstract void endResponse() throws IOException;
+
+        // Sends as much of the chunk as can be sent before the rest of the response is written
+        abstract void sendChunk() throws IOException;
+    }
+
+    /**
+     * The text protocol: the response as UTF-8, followed by the EOT line. A line of the response that is
+     * EOT, or EOT after some backslashes, is sent with one more backslash in front, so that a stored value
+     * cannot end the response early; see {@link #isEscapedLine}.
+     */
+    private static final class TextResponseWriter extends ResponseWriter {
+        // Whether the next character sent starts a line
+        private boolean lineStart = true;
+
+        TextResponseWriter(Connection connection) {
+            super(connection);
+        }
+
+        @Override
+        void endResponse() throws IOException {
+            byte[] bytes = takeEscaped(chunk.length(), true).getBytes(StandardCharsets.UTF_8);
+            lineStart = true;
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length + END_OF_RESPONSE.length);
+            buffer.put(bytes).put(END_OF_RESPONSE).flip();
+            connection.send(buffer);
+        }
+
+        // A high surrogate at the end waits for the rest of its character
+        @Override
+        void sendChunk() throws IOException {
+            int end = chunk.length();
+            if (end > 0 && Character.isHighSurrogate(chunk.charAt(end - 1))) {
+                end--;
+            }
+            String text = takeEscaped(end, false);
+            if (!text.isEmpty()) {
+                connection.send(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+
+        /**
+         * Removes the chunk up to end and returns it escaped. Unless it is the end of the response, an
+         * unfinished last line that could still turn out to need escaping is left in the chunk.
+         */
+        private String takeEscaped(int end, boolean last) {
+            StringBuilder text = new StringBuilder(end + 1);
+            boolean atLineStart = lineStart;
+            int start = 0;
+            while (start < end) {
+                int lineEnd = start;
+                while (lineEnd < end && chunk.charAt(lineEnd) != '\n' && chunk.charAt(lineEnd) != '\r') {
+                    lineEnd++;
+                }
+                if (atLineStart && lineEnd == end && !last && couldBeEscapedLine(start, end)) {
+                    break;
+                }
+                if (atLineStart && (lineEnd < end || last) && isEscapedLine(chunk, start, lineEnd)) {
+                    text.append('\\');
+                }
+                int next = Math.min(lineEnd + 1, end);
+                text.append(chunk, start, next);
+                atLineStart = next > start && (chunk.charAt(next - 1) == '\n' || chunk.charAt(next - 1) == '\r');
+                start = next;
+            }
+            chunk.delete(0, start);
+            if (start > 0) {
+                lineStart = atLineStart;
+            }
+            return text.toString();
+        }
+
+        // Whether an unfinished line is backslashes followed by the start of EOT
+        private boolean couldBeEscapedLine(int start, int end) {
+            int i = start;
+            while (i < end && chunk.charAt(i) == '\\') {
+                i++;
+            }
+            return END_OF_TRANSMISSION.startsWith(chunk.substring(i, end));
+        }
+    }
+
+    // Whether a line is EOT after zero or more backslashes, which the text protocol sends with one more
+    static boolean isEscapedLine(CharSequence text, int start, int end) {
+        int i = start;
+        while (i < end && text.charAt(i) == '\\') {
+            i++;
+        }
+        return end - i == END_OF_TRANSMISSION.length()
+                && END_OF_TRANSMISSION.contentEquals(text.subSequence(i, end));
+    }
+
+    /**
+     * The binary protocol (see {@link BinaryProtocol}). A SELECT result's rows come through
+     * {@link RowWriter} and are encoded by their columns' types, in ROWS frames of about ROWS_FRAME_BYTES;
+     * anything written as text is sent in TEXT frames. The last frame of a response goes out together with
+     * its END frame.
+     */
+    private static final class FrameWriter extends ResponseWriter implements RowWriter {
+        private static final byte[] END_FRAME = {BinaryProtocol.FRAME_END, 0, 0, 0, 0};
+
+        private final Deflater deflater;
+        private final BinaryProtocol.FrameBuffer rows = new BinaryProtocol.FrameBuffer();
+        private final BinaryProtocol.FrameBuffer payload = new BinaryProtocol.FrameBuffer();
+        private int rowCount;
+        // The types of the result being written, or null while the response is text
+        private ColumnType[] types;
+
+        FrameWriter(Connection connection, boolean compressed) {
+            super(connection);
+            this.deflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+        }
+
+        @Override
+        public void startRows(ColumnType[] types) throws IOException {
+            sendChunk();
+            this.types = types;
+        }
+
+        @Override
+        public void writeRow(String[] values) throws IOException {
+            rows.writeVarLong(values.length);
+            for (int i = 0; i < values.length; i++) {
+                rows.writeValue(values[i], i < types.length ? types[i] : ColumnType.VARCHAR);
+            }
+            rowCount++;
+            if (rows.length() >= ROWS_FRAME_BYTES) {
+                connection.send(takeRows());
+            }
+        }
+
+        // Text written after rows ends them, so the rows are sent first
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            endRows();
+            super.write(buffer, offset, length);
+        }
+
+        @Override
+        public void write(String text) throws IOException {
+            endRows();
+            super.write(text);
+        }
+
+        @Override
+        void sendChunk() throws IOException {
+            ByteBuffer frame = textFrame(false);
+            if (frame != null) {
+                connection.send(frame);
+            }
+        }
+
+        @Override
+        void endResponse() throws IOException {
+            ByteBuffer last = types != null ? takeRows() : textFrame(true);
+            types = null;
+            int lastLength = last == null ? 0 : last.remaining();
+            ByteBuffer buffer = ByteBuffer.allocate(lastLength + END_FRAME.length);
+            if (last != null) {
+                buffer.put(last);
+            }
+            buffer.put(END_FRAME).flip();
+            connection.send(buffer);
+        }
+
+        private void endRows() throws IOException {
+            if (types != null) {
+                types = null;
+                connection.send(takeRows());
+            }
+        }
+
+        // The chunk as a TEXT frame, but for a high surrogate at the end unless the response has ended; null if empty
+        private ByteBuffer textFrame(boolean ended) {
+            int end = chunk.length();
+            if (!ended && end > 0 && Character.isHighSurrogate(chunk.charAt(end - 1))) {
+                end--;
+            }
+            if (end == 0) {
+                return null;
+            }
+            byte[] bytes = chunk.substring(0, end).getBytes(StandardCharsets.UTF_8);
+            chunk.delete(0, end);
+            payload.clear();
+            payload.writeBytes(bytes, 0, bytes.length);
+            return payload.toFrame(BinaryProtocol.FRAME_TEXT, deflater);
+        }
+
+        private ByteBuffer takeRows() {
+            payload.clear();
+            payload.writeVarLong(rowCount);
+            payload.writeBuffer(rows);
+            rows.clear();
+            rowCount = 0;
+            return payload.toFrame(BinaryProtocol.FRAME_ROWS, deflater);
+        }
+    }
+}
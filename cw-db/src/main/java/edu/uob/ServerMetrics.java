@@ -0,0 +1,123 @@
+package edu.uob;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the STATS command and the periodic stats dump. Everything here is updated on the
+ * request path, so it is all lock-free: LongAdders for counts and a LatencyHistogram per command type.
+ */
+public class ServerMetrics {
+    private final Map<Statement.Type, LatencyHistogram> latencies = new EnumMap<>(Statement.Type.class);
+    private final LongAdder failedCommands = new LongAdder();
+    private final LongAdder rowsScanned = new LongAdder();
+    private final LongAdder rowsReturned = new LongAdder();
+    private final LongAdder tableCacheHits = new LongAdder();
+    private final LongAdder tableCacheMisses = new LongAdder();
+    private final LongAdder resultCacheHits = new LongAdder();
+    private final LongAdder resultCacheMisses = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final Map<Path, TableCounters> tables = new ConcurrentHashMap<>();
+
+    public ServerMetrics() {
+        for (Statement.Type type : Statement.Type.values()) {
+            latencies.put(type, new LatencyHistogram());
+        }
+    }
+
+    private static final class TableCounters {
+        final LongAdder bytesRead = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+    }
+
+    public void commandCompleted(Statement.Type type, long micros) {
+        latencies.get(type).record(micros);
+    }
+
+    // Commands that could not be parsed, and so have no type
+    public void commandFailed() {
+        failedCommands.increment();
+    }
+
+    public void rowsScanned(long rows, long returned) {
+        rowsScanned.add(rows);
+        rowsReturned.add(returned);
+    }
+
+    public void tableCacheLookup(boolean hit) {
+        (hit ? tableCacheHits : tableCacheMisses).increment();
+    }
+
+    public void resultCacheLookup(boolean hit) {
+        (hit ? resultCacheHits : resultCacheMisses).increment();
+    }
+
+    public void bytesRead(Path tablePath, long bytes) {
+        countersFor(tablePath).bytesRead.add(bytes);
+    }
+
+    public void bytesWritten(Path tablePath, long bytes) {
+        countersFor(tablePath).bytesWritten.add(bytes);
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * One "name key=value ..." line per metric, with latencies in microseconds. Command types that
+     * have never run are left out, and tables are listed as db/table in name order.
+     */
+    public String format(PlanCache planCache) {
+        StringBuilder out = new StringBuilder();
+        out.append("connections active=").append(activeConnections.get()).append('\n');
+        for (Map.Entry<Statement.Type, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            out.append("command ").append(entry.getKey())
+                    .append(" count=").append(histogram.getCount())
+                    .append(" p50=").append(histogram.getPercentile(50))
+                    .append(" p99=").append(histogram.getPercentile(99))
+                    .append(" max=").append(histogram.getMax()).append('\n');
+        }
+        out.append("command INVALID count=").append(failedCommands.sum()).append('\n');
+        out.append("rows scanned=").append(rowsScanned.sum()).append(" returned=").append(rowsReturned.sum()).append('\n');
+        appendCache(out, "tableCache", tableCacheHits.sum(), tableCacheMisses.sum());
+        appendCache(out, "planCache", planCache.getHits(), planCache.getMisses());
+        appendCache(out, "resultCache", resultCacheHits.sum(), resultCacheMisses.sum());
+        Map<String, TableCounters> sorted = new TreeMap<>();
+        for (Map.Entry<Path, TableCounters> entry : tables.entrySet()) {
+            Path tablePath = entry.getKey();
+            String fileName = tablePath.getFileName().toString();
+            sorted.put(tablePath.getParent().getFileName() + "/" + fileName.substring(0, fileName.length() - ".tsv".length()), entry.getValue());
+        }
+        for (Map.Entry<String, TableCounters> entry : sorted.entrySet()) {
+            out.append("table ").append(entry.getKey())
+                    .append(" bytesRead=").append(entry.getValue().bytesRead.sum())
+                    .append(" bytesWritten=").append(entry.getValue().bytesWritten.sum()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendCache(StringBuilder out, String name, long hits, long misses) {
+        long lookups = hits + misses;
+        out.append("cache ").append(name).append(" hits=").append(hits).append(" misses=").append(misses)
+                .append(" hitRate=").append(lookups == 0 ? "0.00" : String.format(Locale.ROOT, "%.2f", 100.0 * hits / lookups)).append('\n');
+    }
+
+    private TableCounters countersFor(Path tablePath) {
+        return tables.computeIfAbsent(tablePath, path -> new TableCounters());
+    }
+}
@@ -0,0 +1,412 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parsed form of a command. Statements never hold literal values themselves, only the
+ * positions of those values in the command's parameters (see {@link Lexer}), so a statement
+ * can be cached and shared by every command with the same shape.
+ */
+public abstract class Statement {
+
+    public enum Type { CREATE_DATABASE, CREATE_TABLE, CREATE_INDEX, USE, INSERT, LOAD, SELECT, UPDATE, DELETE, STATS }
+
+    public abstract Type getType();
+
+    public static final class CreateDatabase extends Statement {
+        private final String databaseName;
+
+        CreateDatabase(String databaseName) {
+            this.databaseName = databaseName;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.CREATE_DATABASE;
+        }
+
+        public String getDatabaseName() {
+            return databaseName;
+        }
+    }
+
+    public static final class CreateTable extends Statement {
+        private final String tableName;
+        private final List<String> columns;
+        // Parallel to columns
+        private final List<ColumnType> types;
+
+        CreateTable(String tableName, List<String> columns, List<ColumnType> types) {
+            this.tableName = tableName;
+            this.columns = columns;
+            this.types = types;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.CREATE_TABLE;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public List<ColumnType> getTypes() {
+            return types;
+        }
+    }
+
+    public static final class CreateIndex extends Statement {
+        private final String indexName;
+        private final String tableName;
+        private final String column;
+        private final TableIndex.Kind kind;
+
+        CreateIndex(String indexName, String tableName, String column, TableIndex.Kind kind) {
+            this.indexName = indexName;
+            this.tableName = tableName;
+            this.column = column;
+            this.kind = kind;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.CREATE_INDEX;
+        }
+
+        public String getIndexName() {
+            return indexName;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public TableIndex.Kind getKind() {
+            return kind;
+        }
+    }
+
+    public static final class Use extends Statement {
+        private final String databaseName;
+
+        Use(String databaseName) {
+            this.databaseName = databaseName;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.USE;
+        }
+
+        public String getDatabaseName() {
+            return databaseName;
+        }
+    }
+
+    public static final class Insert extends Statement {
+        private final String tableName;
+        // One entry per row in the VALUES list
+        private final int[][] valueParameters;
+
+        Insert(String tableName, int[][] valueParameters) {
+            this.tableName = tableName;
+            this.valueParameters = valueParameters;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.INSERT;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public List<String[]> getRows(String[] parameters) {
+            List<String[]> rows = new ArrayList<>(valueParameters.length);
+            for (int[] rowParameters : valueParameters) {
+                String[] values = new String[rowParameters.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = parameters[rowParameters[i]];
+                }
+                rows.add(values);
+            }
+            return rows;
+        }
+    }
+
+    public static final class Load extends Statement {
+        private final int fileParameter;
+        private final String tableName;
+        // null to go by the file's extension
+        private final DelimitedFileReader.Format format;
+        private final boolean header;
+
+        Load(int fileParameter, String tableName, DelimitedFileReader.Format format, boolean header) {
+            this.fileParameter = fileParameter;
+            this.tableName = tableName;
+            this.format = format;
+            this.header = header;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.LOAD;
+        }
+
+        public String getFileName(String[] parameters) {
+            return parameters[fileParameter];
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public DelimitedFileReader.Format getFormat() {
+            return format;
+        }
+
+        public boolean hasHeader() {
+            return header;
+        }
+    }
+
+    public static final class Select extends Statement {
+        // null for SELECT *
+        private final List<String> columns;
+        // null unless the query aggregates; otherwise one entry per column, null where the column is not an aggregate
+        private final List<Aggregate> aggregates;
+        private final String tableName;
+        private final Join join;
+        private final Condition where;
+        private final List<String> groupBy;
+        private final List<SortKey> orderBy;
+        // Parameter indices, or -1 if there is no LIMIT or OFFSET
+        private final int limitParameter;
+        private final int offsetParameter;
+
+        Select(List<String> columns, List<Aggregate> aggregates, String tableName, Join join, Condition where, List<String> groupBy,
+               List<SortKey> orderBy, int limitParameter, int offsetParameter) {
+            this.columns = columns;
+            this.aggregates = aggregates;
+            this.tableName = tableName;
+            this.join = join;
+            this.where = where;
+            this.groupBy = groupBy;
+            this.orderBy = orderBy;
+            this.limitParameter = limitParameter;
+            this.offsetParameter = offsetParameter;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.SELECT;
+        }
+
+        // For an aggregate column this is how it was written, e.g. COUNT(*)
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public List<Aggregate> getAggregates() {
+            return aggregates;
+        }
+
+        public boolean isAggregate() {
+            return aggregates != null || groupBy != null;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        // null if only one table is read
+        public Join getJoin() {
+            return join;
+        }
+
+        // Unbound, or null if there is no WHERE clause
+        public Condition getWhere() {
+            return where;
+        }
+
+        // null if there is no GROUP BY clause
+        public List<String> getGroupBy() {
+            return groupBy;
+        }
+
+        // null if there is no ORDER BY clause
+        public List<SortKey> getOrderBy() {
+            return orderBy;
+        }
+
+        // The most rows to return, or -1 for all of them
+        public long getLimit(String[] parameters) {
+            return limitParameter < 0 ? -1 : count(parameters[limitParameter], "LIMIT");
+        }
+
+        // How many rows to leave out before the first one returned
+        public long getOffset(String[] parameters) {
+            return offsetParameter < 0 ? 0 : count(parameters[offsetParameter], "OFFSET");
+        }
+
+        private static long count(String value, String clause) {
+            try {
+                long count = Long.parseLong(value);
+                if (count >= 0) {
+                    return count;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException(clause + " has to be a whole number that is not negative");
+        }
+    }
+
+    // A column in an ORDER BY clause
+    public static final class SortKey {
+        private final String column;
+        private final boolean descending;
+
+        SortKey(String column, boolean descending) {
+            this.column = column;
+            this.descending = descending;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public boolean isDescending() {
+            return descending;
+        }
+    }
+
+    // An aggregate function in a SELECT list; column is null for COUNT(*)
+    public static final class Aggregate {
+        public enum Function { COUNT, SUM, AVG, MIN, MAX }
+
+        private final Function function;
+        private final String column;
+
+        Aggregate(Function function, String column) {
+            this.function = function;
+            this.column = column;
+        }
+
+        public Function getFunction() {
+            return function;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+    }
+
+    public static final class Update extends Statement {
+        private final String tableName;
+        private final List<String> columns;
+        // Parallel to columns
+        private final int[] valueParameters;
+        private final Condition where;
+
+        Update(String tableName, List<String> columns, int[] valueParameters, Condition where) {
+            this.tableName = tableName;
+            this.columns = columns;
+            this.valueParameters = valueParameters;
+            this.where = where;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.UPDATE;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public String[] getValues(String[] parameters) {
+            String[] values = new String[valueParameters.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = parameters[valueParameters[i]];
+            }
+            return values;
+        }
+
+        // Unbound
+        public Condition getWhere() {
+            return where;
+        }
+    }
+
+    public static final class Delete extends Statement {
+        private final String tableName;
+        private final Condition where;
+
+        Delete(String tableName, Condition where) {
+            this.tableName = tableName;
+            this.where = where;
+        }
+
+        @Override
+        public Type getType() {
+            return Type.DELETE;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        // Unbound
+        public Condition getWhere() {
+            return where;
+        }
+    }
+
+    public static final class Stats extends Statement {
+        @Override
+        public Type getType() {
+            return Type.STATS;
+        }
+    }
+
+    // JOIN tableName ON leftColumn == rightColumn, where either column may be written as table.column
+    public static final class Join {
+        private final String tableName;
+        private final String leftColumn;
+        private final String rightColumn;
+
+        Join(String tableName, String leftColumn, String rightColumn) {
+            this.tableName = tableName;
+            this.leftColumn = leftColumn;
+            this.rightColumn = rightColumn;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String getLeftColumn() {
+            return leftColumn;
+        }
+
+        public String getRightColumn() {
+            return rightColumn;
+        }
+    }
+}
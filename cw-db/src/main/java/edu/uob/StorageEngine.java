@@ -0,0 +1,56 @@
+package edu.uob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How the rows of a table are kept for reading. Whatever the engine, writes go to the .tsv file through
+ * the write-ahead log, which stays the durable record of each table (and what replay, tombstones and
+ * compaction work on); the engine hears about every row once it is in the file and decides how to serve
+ * reads from then on. {@link TsvStorageEngine} reads the file itself, {@link ColumnarStorageEngine}
+ * keeps a copy of every column in its own memory-mapped file. Chosen with -Dcwdb.storage.engine.
+ */
+public interface StorageEngine {
+
+    /**
+     * Called under the table's read lock when a {@link TableSnapshot} is taken: a reader for the rows
+     * the table has right now, which has to keep reading exactly those rows after the lock is released.
+     */
+    TableReader openReader(Path tablePath, TableCatalog.TableInfo info) throws IOException;
+
+    // types is parallel to columns
+    void tableCreated(Path tablePath, String[] columns, ColumnType[] types);
+
+    // Called under the table's write lock once the row's line, length bytes at offset, is in the table file
+    void rowAppended(Path tablePath, String[] row, long offset, long length);
+
+    // Called under the table's write lock once a compaction has replaced the table file
+    void tableReplaced(Path tablePath);
+
+    // Called after each write-ahead log checkpoint, when the table files of the database have been synced
+    void checkpoint(Path dbPath);
+
+    /**
+     * The rows a snapshot sees. Rows that were dead when the snapshot was taken are passed in, rather
+     * than being the reader's business, since UPDATE and DELETE only ever record them as tombstones.
+     */
+    interface TableReader extends Closeable {
+
+        /**
+         * Visits the rows at offsets (ascending), or every row if offsets is null, leaving out those in
+         * dead and those that do not match the condition, if there is one. Only the columns in columns
+         * have to be filled in, or every column if it is null; the others may be null. Stops early once
+         * the visitor is done. Returns the number of bytes read from the table's files.
+         */
+        long forEachRow(long[] offsets, long[] dead, BitSet columns, Condition condition, OffsetRowVisitor visitor) throws IOException;
+
+        // The rows forEachRow has looked at so far, whether they matched or not
+        long getRowsScanned();
+
+        // Runs the aggregate over every row that is not in dead; bytesRead is increased by the bytes read
+        Aggregation.Partial aggregate(Aggregation aggregation, long[] dead, int parallelism, AtomicLong bytesRead) throws IOException;
+    }
+}
@@ -0,0 +1,423 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The parsed contents of one .tsv table file: the header row plus every data row, in file order. Like the
+ * file, it is only ever appended to: a row that is deleted or replaced stays, and each reader skips the
+ * rows that were dead in its {@link TableSnapshot}. That way a reader that only looks at the first
+ * rowCount rows sees the same table however many rows are added meanwhile. Dead rows go when a
+ * compaction drops the table from the cache.
+ *
+ * <p>Rows are held column by column, each column in an array of its {@link ColumnType}: an INT column
+ * is an int[], a VARCHAR column a String[], and so on. A value a typed column cannot hold (NULL, or
+ * anything written to the file by hand) is kept as text on the side. Conditions are evaluated on the
+ * columns directly, and only the rows that match are turned back into String[]. Rows shorter than the
+ * header read back padded with empty values.
+ */
+public class Table {
+    private static final long ROW_OVERHEAD_BYTES = 16;
+    private static final long VALUE_OVERHEAD_BYTES = 48;
+    private static final int VISIT_CHUNK_SIZE = 1024;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final String[] columns;
+    private final ColumnType[] types;
+    private final Map<String, Integer> columnIndices = new HashMap<>();
+    private final Column[] data;
+    // Byte offset of each row in the .tsv file, ascending, so index lookups can be mapped back to rows
+    private long[] rowOffsets = new long[INITIAL_CAPACITY];
+    private int rowCount;
+    private long estimatedBytes;
+
+    // types is parallel to columns
+    public Table(String[] columns, ColumnType[] types) {
+        this.columns = columns;
+        this.types = types;
+        this.data = new Column[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnIndices.put(columns[i], i);
+            data[i] = newColumn(i < types.length ? types[i] : ColumnType.VARCHAR);
+        }
+        this.estimatedBytes = estimateRowBytes(columns);
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    public ColumnType[] getTypes() {
+        return types;
+    }
+
+    public int getColumnIndex(String columnName) {
+        return columnIndices.getOrDefault(columnName, -1);
+    }
+
+    public synchronized void addRow(String[] row, long offset) {
+        if (rowCount == rowOffsets.length) {
+            int capacity = rowOffsets.length * 2;
+            rowOffsets = Arrays.copyOf(rowOffsets, capacity);
+            for (Column column : data) {
+                column.grow(capacity);
+            }
+        }
+        rowOffsets[rowCount] = offset;
+        long bytes = Long.BYTES;
+        for (int i = 0; i < data.length; i++) {
+            bytes += data[i].set(rowCount, i < row.length ? row[i] : "");
+        }
+        rowCount++;
+        estimatedBytes += bytes;
+    }
+
+    // The row stored at the given file offset, or null if there is none
+    public synchronized String[] getRowAtOffset(long offset) {
+        int index = Arrays.binarySearch(rowOffsets, 0, rowCount, offset);
+        return index < 0 ? null : rowAt(index);
+    }
+
+    /**
+     * Visits the first rowCount rows that match the condition (or all of them if it is null), except those
+     * at the offsets in dead, and returns how many rows that looked at. Rows are checked and copied out in
+     * small chunks so the table is never locked while the visitor runs, which may be writing to a slow client.
+     * Stops after the chunk in which the visitor is done.
+     */
+    public long forEachRow(int rowCount, long[] dead, Condition condition, OffsetRowVisitor visitor) throws IOException {
+        String[][] chunk = new String[Math.min(rowCount, VISIT_CHUNK_SIZE)][];
+        long[] chunkOffsets = new long[chunk.length];
+        long scanned = 0;
+        for (int start = 0; start < rowCount && !visitor.isDone(); start += chunk.length) {
+            int end = Math.min(start + chunk.length, rowCount);
+            int size = 0;
+            synchronized (this) {
+                for (int index = start; index < end; index++) {
+                    if (Tombstones.isDead(dead, rowOffsets[index])) {
+                        continue;
+                    }
+                    scanned++;
+                    if (condition == null || condition.matches(this, index)) {
+                        chunk[size] = rowAt(index);
+                        chunkOffsets[size++] = rowOffsets[index];
+                    }
+                }
+            }
+            for (int i = 0; i < size && !visitor.isDone(); i++) {
+                visitor.visit(chunk[i], chunkOffsets[i]);
+            }
+        }
+        return scanned;
+    }
+
+    // A copy of the first rowCount rows without the dead ones, for scans that split the rows between threads
+    public synchronized List<String[]> getRows(int rowCount, long[] dead) {
+        List<String[]> copy = new ArrayList<>(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            if (!Tombstones.isDead(dead, rowOffsets[i])) {
+                copy.add(rowAt(i));
+            }
+        }
+        return copy;
+    }
+
+    // The number of rows added so far, dead or not
+    public synchronized int getRowCount() {
+        return rowCount;
+    }
+
+    public synchronized long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    // The value as text; only called with the monitor held, as forEachRow does for conditions
+    String valueAt(int row, int column) {
+        return data[column].get(row);
+    }
+
+    // Whether the value is NULL, without turning it into text; only called with the monitor held
+    boolean isNullAt(int row, int column) {
+        return data[column].isNull(row);
+    }
+
+    // Condition.compareValues of the value against another; only called with the monitor held
+    int compareValueAt(int row, int column, Condition.Literal value) {
+        return data[column].compare(row, value);
+    }
+
+    private String[] rowAt(int index) {
+        String[] row = new String[data.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = data[i].get(index);
+        }
+        return row;
+    }
+
+    static long estimateRowBytes(String[] row) {
+        long bytes = ROW_OVERHEAD_BYTES + 4L * row.length;
+        for (String value : row) {
+            bytes += VALUE_OVERHEAD_BYTES + value.length();
+        }
+        return bytes;
+    }
+
+    private static Column newColumn(ColumnType type) {
+        switch (type) {
+            case INT:
+                return new IntColumn();
+            case BIGINT:
+                return new LongColumn();
+            case DOUBLE:
+                return new DoubleColumn();
+            case BOOLEAN:
+                return new BooleanColumn();
+            default:
+                return new StringColumn();
+        }
+    }
+
+    private abstract static class Column {
+        abstract void grow(int capacity);
+
+        // Stores the value of a new row and returns roughly how many bytes that takes
+        abstract long set(int row, String value);
+
+        abstract String get(int row);
+
+        abstract boolean isNull(int row);
+
+        abstract int compare(int row, Condition.Literal value);
+    }
+
+    private static final class StringColumn extends Column {
+        private String[] values = new String[INITIAL_CAPACITY];
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        long set(int row, String value) {
+            values[row] = value;
+            return 4 + VALUE_OVERHEAD_BYTES + value.length();
+        }
+
+        @Override
+        String get(int row) {
+            return values[row];
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return ColumnType.NULL.equals(values[row]);
+        }
+
+        @Override
+        int compare(int row, Condition.Literal value) {
+            return Condition.compareValues(values[row], value);
+        }
+    }
+
+    /**
+     * A column of one of the primitive types. Values the type cannot hold are kept as text in irregular,
+     * and flagged in isIrregular so that the map is only looked at for them.
+     */
+    private abstract static class PrimitiveColumn extends Column {
+        private final ColumnType type;
+        private final BitSet isIrregular = new BitSet();
+        private final Map<Integer, String> irregular = new HashMap<>();
+
+        PrimitiveColumn(ColumnType type) {
+            this.type = type;
+        }
+
+        // Stores a value that is canonical for the type
+        abstract void setValue(int row, String value);
+
+        abstract String format(int row);
+
+        // Compares the primitive value of a row that is not irregular
+        abstract int compareValue(int row, Condition.Literal value);
+
+        abstract int valueBytes();
+
+        @Override
+        long set(int row, String value) {
+            if (type.isCanonical(value)) {
+                setValue(row, value);
+                return valueBytes();
+            }
+            isIrregular.set(row);
+            irregular.put(row, value);
+            return valueBytes() + 2 * VALUE_OVERHEAD_BYTES + value.length();
+        }
+
+        @Override
+        String get(int row) {
+            return isIrregular.get(row) ? irregular.get(row) : format(row);
+        }
+
+        // NULL is never canonical, so it is always one of the irregular values
+        @Override
+        boolean isNull(int row) {
+            return isIrregular.get(row) && ColumnType.NULL.equals(irregular.get(row));
+        }
+
+        @Override
+        int compare(int row, Condition.Literal value) {
+            if (isIrregular.get(row)) {
+                return Condition.compareValues(irregular.get(row), value);
+            }
+            return compareValue(row, value);
+        }
+    }
+
+    // Numbers come before any value that is not one, as in Condition.compareValues
+    private abstract static class NumericColumn extends PrimitiveColumn {
+        NumericColumn(ColumnType type) {
+            super(type);
+        }
+
+        // Compares the value of a row with a numeric value
+        abstract int compareNumber(int row, Condition.Literal value);
+
+        @Override
+        int compareValue(int row, Condition.Literal value) {
+            return value.numeric ? compareNumber(row, value) : -1;
+        }
+    }
+
+    private static final class IntColumn extends NumericColumn {
+        private int[] values = new int[INITIAL_CAPACITY];
+
+        IntColumn() {
+            super(ColumnType.INT);
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void setValue(int row, String value) {
+            values[row] = Integer.parseInt(value);
+        }
+
+        @Override
+        String format(int row) {
+            return Integer.toString(values[row]);
+        }
+
+        @Override
+        int compareNumber(int row, Condition.Literal value) {
+            return Condition.compareNumbers(values[row], value);
+        }
+
+        @Override
+        int valueBytes() {
+            return Integer.BYTES;
+        }
+    }
+
+    private static final class LongColumn extends NumericColumn {
+        private long[] values = new long[INITIAL_CAPACITY];
+
+        LongColumn() {
+            super(ColumnType.BIGINT);
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void setValue(int row, String value) {
+            values[row] = Long.parseLong(value);
+        }
+
+        @Override
+        String format(int row) {
+            return Long.toString(values[row]);
+        }
+
+        @Override
+        int compareNumber(int row, Condition.Literal value) {
+            return Condition.compareNumbers(values[row], value);
+        }
+
+        @Override
+        int valueBytes() {
+            return Long.BYTES;
+        }
+    }
+
+    private static final class DoubleColumn extends NumericColumn {
+        private double[] values = new double[INITIAL_CAPACITY];
+
+        DoubleColumn() {
+            super(ColumnType.DOUBLE);
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void setValue(int row, String value) {
+            values[row] = Double.parseDouble(value);
+        }
+
+        @Override
+        String format(int row) {
+            return ColumnType.formatDouble(values[row]);
+        }
+
+        @Override
+        int compareNumber(int row, Condition.Literal value) {
+            return Condition.compareNumbers(values[row], value);
+        }
+
+        @Override
+        int valueBytes() {
+            return Double.BYTES;
+        }
+    }
+
+    // TRUE and FALSE are not numbers, so they come after any number and compare to other text as text
+    private static final class BooleanColumn extends PrimitiveColumn {
+        private boolean[] values = new boolean[INITIAL_CAPACITY];
+
+        BooleanColumn() {
+            super(ColumnType.BOOLEAN);
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void setValue(int row, String value) {
+            values[row] = value.equals("TRUE");
+        }
+
+        @Override
+        String format(int row) {
+            return values[row] ? "TRUE" : "FALSE";
+        }
+
+        @Override
+        int compareValue(int row, Condition.Literal value) {
+            return value.numeric ? 1 : format(row).compareTo(value.text);
+        }
+
+        @Override
+        int valueBytes() {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently used tables parsed in memory so that SELECT does not have to re-read the .tsv file.
+ * Tables are keyed on their file path and the least recently used ones are evicted once the
+ * estimated size of all cached tables goes over the configured budget. Tables are parsed from a
+ * {@link TableSnapshot} without holding the table lock and only put in the cache once they have caught
+ * up with the file.
+ */
+public class TableCache {
+    private final long maxBytes;
+    // accessOrder = true turns the map into an LRU list, eldest entry first
+    private final LinkedHashMap<Path, Table> tables = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    public TableCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized Table getIfPresent(Path tablePath) {
+        return tables.get(tablePath);
+    }
+
+    public synchronized void put(Path tablePath, Table table) {
+        Table previous = tables.put(tablePath, table);
+        if (previous != null) {
+            cachedBytes -= previous.getEstimatedBytes();
+        }
+        cachedBytes += table.getEstimatedBytes();
+        evictIfOverBudget(tablePath);
+    }
+
+    // Write-through for INSERT: only tables that are already cached are updated
+    public synchronized void appendRow(Path tablePath, String[] row, long offset) {
+        Table table = tables.get(tablePath);
+        if (table == null) {
+            return;
+        }
+        long before = table.getEstimatedBytes();
+        table.addRow(row, offset);
+        cachedBytes += table.getEstimatedBytes() - before;
+        evictIfOverBudget(tablePath);
+    }
+
+    public synchronized void invalidate(Path tablePath) {
+        Table removed = tables.remove(tablePath);
+        if (removed != null) {
+            cachedBytes -= removed.getEstimatedBytes();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private void evictIfOverBudget(Path keep) {
+        Iterator<Map.Entry<Path, Table>> eldest = tables.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Path, Table> entry = eldest.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            cachedBytes -= entry.getValue().getEstimatedBytes();
+            eldest.remove();
+        }
+    }
+
+    // Parses the first endOffset bytes of a table file with the given column types; dead rows are kept, tombstone lines are not
+    public static Table readTable(FileChannel channel, long endOffset, ColumnType[] types) throws IOException {
+        try (TableFileReader reader = new TableFileReader(channel, 0, endOffset)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("Table file has no header");
+            }
+            Table table = new Table(header.split("\t"), types);
+            addRows(reader, table);
+            return table;
+        }
+    }
+
+    // Adds the rows whose lines start in [startOffset, endOffset) to the table and returns the bytes read
+    public static long readRows(FileChannel channel, long startOffset, long endOffset, Table table) throws IOException {
+        try (TableFileReader reader = new TableFileReader(channel, startOffset, endOffset)) {
+            addRows(reader, table);
+            return reader.getBytesRead();
+        }
+    }
+
+    private static void addRows(TableFileReader reader, Table table) throws IOException {
+        String[] row;
+        while ((row = reader.readRow()) != null) {
+            if (!Tombstones.isTombstone(row[0])) {
+                table.addRow(row, reader.getLineOffset());
+            }
+        }
+    }
+}
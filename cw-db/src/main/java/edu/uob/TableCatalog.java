@@ -0,0 +1,417 @@
+package edu.uob;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Schema, next ID and row count of every table, so that starting the server does not mean reading
+ * every table file. They are saved in data/&lt;db&gt;/catalog.meta
+ * ("table \t nextId \t rowCount \t fileBytes \t columns..." per line) along with how much of the
+ * table file they account for. On startup a table whose file still has that size is ready straight away;
+ * one that has grown only has the rows after the saved size scanned, and one without an entry (or
+ * that has shrunk) is scanned in full. Scans run in the background on the loader executor, in
+ * parallel across tables, and a command that needs a table waits for its scan to finish.
+ *
+ * <p>A table's {@link Tombstones} are saved next to it in &lt;table&gt;.tombstones (one dead offset per
+ * line) and are only trusted together with the table's catalog entry; a full scan finds them again from
+ * the tombstone lines in the file.
+ *
+ * <p>Column types are written to &lt;table&gt;.schema (the type of every column, tab-separated, on one
+ * line) when the table is created, and never change. A table without one, such as one created before
+ * types were added, has an INT id and VARCHAR columns.
+ */
+public class TableCatalog {
+    public static final String FILE_NAME = "catalog.meta";
+    public static final String TOMBSTONES_SUFFIX = ".tombstones";
+    public static final String SCHEMA_SUFFIX = ".schema";
+
+    private static final Logger LOGGER = Logger.getLogger(TableCatalog.class.getName());
+    // Every table version comes from here, so no two states of any tables share one, even across a reload
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final Map<Path, CompletableFuture<TableInfo>> tables = new ConcurrentHashMap<>();
+    // Tables whose file is being replaced by a compaction, which are left out of the saved catalog until it is done
+    private final Set<Path> rewriting = ConcurrentHashMap.newKeySet();
+    private final TableLocks tableLocks;
+    private final Executor loader;
+
+    public TableCatalog(TableLocks tableLocks, Executor loader) {
+        this.tableLocks = tableLocks;
+        this.loader = loader;
+    }
+
+    public static final class TableInfo {
+        private final String[] columns;
+        private final ColumnType[] types;
+        private final AtomicInteger nextId;
+        // Every line after the header, live or dead, tombstones included
+        private final AtomicLong rowCount;
+        // The length of the table file the counts cover, which is less than its size if rows were added behind the server's back
+        private final AtomicLong fileBytes;
+        private final Tombstones tombstones;
+        // Counts the times a compaction has replaced the table file; only changed under the table's write lock
+        private volatile long generation;
+        private volatile long version = VERSIONS.incrementAndGet();
+
+        TableInfo(String[] columns, ColumnType[] types, int nextId, long rowCount, long fileBytes, Tombstones tombstones) {
+            this.columns = columns;
+            this.types = types;
+            this.nextId = new AtomicInteger(nextId);
+            this.rowCount = new AtomicLong(rowCount);
+            this.fileBytes = new AtomicLong(fileBytes);
+            this.tombstones = tombstones;
+        }
+
+        public String[] getColumns() {
+            return columns;
+        }
+
+        // Parallel to the columns
+        public ColumnType[] getTypes() {
+            return types;
+        }
+
+        public long getRowCount() {
+            return rowCount.get();
+        }
+
+        public Tombstones getTombstones() {
+            return tombstones;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Changes whenever a row is added to or deleted from the table, under its write lock, and is
+         * never the same for two tables. A result computed from a snapshot taken after reading the
+         * version is up to date for as long as the version stays the same.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        // Reserves count consecutive IDs and returns the first
+        public int allocateIds(int count) {
+            return nextId.getAndAdd(count);
+        }
+    }
+
+    // Must be called after the database's write-ahead log has been replayed, and before anything is appended to its tables
+    public void loadDatabase(Path dbPath) {
+        Map<String, String[]> saved = readCatalogFile(dbPath);
+        try (Stream<Path> paths = Files.list(dbPath)) {
+            paths.filter(path -> path.getFileName().toString().endsWith(".tsv") && Files.isRegularFile(path))
+                    .forEach(tablePath -> tables.put(tablePath, open(tablePath, saved.get(tableName(tablePath)))));
+        } catch (IOException e) {
+            LOGGER.severe("Error loading the catalog of " + dbPath + ": " + e.getMessage());
+        }
+    }
+
+    // Blocks until the table's entry has been loaded
+    public TableInfo get(Path tablePath) throws IOException {
+        CompletableFuture<TableInfo> info = tables.computeIfAbsent(tablePath, path -> open(path, null));
+        try {
+            return info.join();
+        } catch (CompletionException e) {
+            // A failed scan is retried the next time the table is used
+            tables.remove(tablePath, info);
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Called once the table file has been created, with its header; writes the table's schema file
+    public void createTable(Path tablePath, String[] columns, ColumnType[] types, long fileBytes) throws IOException {
+        Path schemaPath = schemaPath(tablePath);
+        Path tempPath = schemaPath.resolveSibling(schemaPath.getFileName() + ".tmp");
+        Files.writeString(tempPath, Arrays.stream(types).map(ColumnType::name).collect(Collectors.joining("\t")) + "\n");
+        Files.move(tempPath, schemaPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        tables.put(tablePath, CompletableFuture.completedFuture(new TableInfo(columns, types, 1, 0, fileBytes, new Tombstones())));
+        save(tablePath.getParent());
+    }
+
+    // The table's entry if it has finished loading, or null; never blocks
+    public TableInfo getIfLoaded(Path tablePath) {
+        CompletableFuture<TableInfo> info = tables.get(tablePath);
+        return info != null && info.isDone() && !info.isCompletedExceptionally() ? info.join() : null;
+    }
+
+    // Called under the table's write lock, once the row is in the table file and ends at endOffset
+    public void rowAppended(Path tablePath, long endOffset) {
+        TableInfo info = getIfLoaded(tablePath);
+        if (info != null) {
+            info.rowCount.incrementAndGet();
+            info.fileBytes.accumulateAndGet(endOffset, Math::max);
+            info.version = VERSIONS.incrementAndGet();
+        }
+    }
+
+    // Called under the table's write lock, once the tombstone line for the row is in the table file and ends at endOffset
+    public void rowDeleted(Path tablePath, long rowOffset, long tombstoneOffset, long endOffset) {
+        TableInfo info = getIfLoaded(tablePath);
+        if (info != null) {
+            info.rowCount.incrementAndGet();
+            info.fileBytes.accumulateAndGet(endOffset, Math::max);
+            info.tombstones.add(rowOffset);
+            info.tombstones.add(tombstoneOffset);
+            info.version = VERSIONS.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called before a compaction replaces the table file. Until {@link #endRewrite}, the table is left out
+     * of the saved catalog, so a crash in between makes the next startup scan whichever file it finds.
+     */
+    public void beginRewrite(Path tablePath) {
+        rewriting.add(tablePath);
+        save(tablePath.getParent());
+    }
+
+    // Called under the table's write lock once the compacted file, with rowCount lines and no dead ones, has replaced the table file
+    public void tableRewritten(Path tablePath, long rowCount, long fileBytes) {
+        TableInfo info = getIfLoaded(tablePath);
+        if (info != null) {
+            info.tombstones.clear();
+            info.rowCount.set(rowCount);
+            info.fileBytes.set(fileBytes);
+            info.generation++;
+        }
+    }
+
+    // Called once the compaction is over, whether or not it replaced the file; not under the table's lock, since saving takes it
+    public void endRewrite(Path tablePath) {
+        rewriting.remove(tablePath);
+        save(tablePath.getParent());
+    }
+
+    /**
+     * Writes the database's catalog file. Each table's counts, tombstones and covered length are read
+     * together under its read lock, so they always match. Tables still being scanned are left out and
+     * will be scanned again on the next startup.
+     */
+    public synchronized void save(Path dbPath) {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<Path, CompletableFuture<TableInfo>> entry : tables.entrySet()) {
+            Path tablePath = entry.getKey();
+            CompletableFuture<TableInfo> future = entry.getValue();
+            if (!tablePath.getParent().equals(dbPath) || !future.isDone() || future.isCompletedExceptionally()
+                    || rewriting.contains(tablePath)) {
+                continue;
+            }
+            TableInfo info = future.join();
+            Lock readLock = tableLocks.forTable(tablePath).readLock();
+            readLock.lock();
+            try {
+                // The tombstones go first, so a crash before the catalog is replaced leaves the old entry with a superset of its tombstones
+                writeTombstones(tablePath, info.tombstones.snapshot());
+                lines.append(tableName(tablePath)).append('\t').append(info.nextId.get())
+                        .append('\t').append(info.rowCount.get())
+                        .append('\t').append(info.fileBytes.get())
+                        .append('\t').append(String.join("\t", info.columns)).append('\n');
+            } catch (IOException e) {
+                LOGGER.warning("Leaving " + tablePath + " out of the catalog: " + e.getMessage());
+            } finally {
+                readLock.unlock();
+            }
+        }
+        // Written to a temporary file first so a crash never leaves a half-written catalog behind
+        Path catalogPath = dbPath.resolve(FILE_NAME);
+        Path tempPath = dbPath.resolve(FILE_NAME + ".tmp");
+        try {
+            Files.writeString(tempPath, lines);
+            Files.move(tempPath, catalogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.severe("Error saving the catalog of " + dbPath + ": " + e.getMessage());
+        }
+    }
+
+    // Saves every database once all of its tables have been loaded, so the next startup has nothing to scan
+    public void saveWhenLoaded(Path dbPath) {
+        CompletableFuture<?>[] loading = tables.entrySet().stream()
+                .filter(entry -> entry.getKey().getParent().equals(dbPath))
+                .map(Map.Entry::getValue)
+                .toArray(CompletableFuture<?>[]::new);
+        CompletableFuture.allOf(loading).whenComplete((ignored, error) -> save(dbPath));
+    }
+
+    private CompletableFuture<TableInfo> open(Path tablePath, String[] saved) {
+        try {
+            if (saved != null && Long.parseLong(saved[3]) == Files.size(tablePath)) {
+                String[] columns = Arrays.copyOfRange(saved, 4, saved.length);
+                return CompletableFuture.completedFuture(new TableInfo(columns, readSchema(tablePath, columns.length),
+                        Integer.parseInt(saved[1]), Long.parseLong(saved[2]), Long.parseLong(saved[3]), readTombstones(tablePath)));
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warning("Ignoring the catalog entry for " + tablePath + ": " + e.getMessage());
+            saved = null;
+        }
+        String[] entry = saved;
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return scan(tablePath, entry);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, loader);
+    }
+
+    // Scans only what was appended after the saved entry, or the whole file if that is not possible
+    private static TableInfo scan(Path tablePath, String[] saved) throws IOException {
+        long size = Files.size(tablePath);
+        String[] columns;
+        int maxId = 0;
+        long rowCount = 0;
+        long start;
+        Tombstones tombstones = new Tombstones();
+        if (saved != null && Long.parseLong(saved[3]) < size) {
+            columns = Arrays.copyOfRange(saved, 4, saved.length);
+            maxId = Integer.parseInt(saved[1]) - 1;
+            rowCount = Long.parseLong(saved[2]);
+            start = Long.parseLong(saved[3]);
+            tombstones = readTombstones(tablePath);
+        } else {
+            try (BufferedReader reader = Files.newBufferedReader(tablePath)) {
+                String header = reader.readLine();
+                if (header == null) {
+                    throw new IOException("Table file has no header: " + tablePath);
+                }
+                columns = header.split("\t");
+            }
+            start = 0;
+        }
+        try (TableFileReader reader = new TableFileReader(tablePath, start, size)) {
+            if (start == 0) {
+                reader.readLine();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                rowCount++;
+                if (Tombstones.isTombstone(line)) {
+                    tombstones.add(Tombstones.killedOffset(line));
+                    tombstones.add(reader.getLineOffset());
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                try {
+                    maxId = Math.max(maxId, Integer.parseInt(tab < 0 ? line.trim() : line.substring(0, tab)));
+                } catch (NumberFormatException e) {
+                    LOGGER.severe("Invalid ID format in table " + tablePath + ": " + e.getMessage());
+                }
+            }
+        }
+        LOGGER.info("Scanned " + tablePath + " from byte " + start + " (" + rowCount + " rows)");
+        return new TableInfo(columns, readSchema(tablePath, columns.length), maxId + 1, rowCount, size, tombstones);
+    }
+
+    // The types in the table's schema file, or the default ones if it has none that fits its columns
+    private static ColumnType[] readSchema(Path tablePath, int columnCount) throws IOException {
+        Path path = schemaPath(tablePath);
+        if (Files.exists(path)) {
+            String[] names = Files.readString(path).trim().split("\t");
+            if (names.length == columnCount) {
+                try {
+                    return Arrays.stream(names).map(ColumnType::named).toArray(ColumnType[]::new);
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Ignoring the schema of " + tablePath + ": " + e.getMessage());
+                }
+            } else {
+                LOGGER.warning("Ignoring the schema of " + tablePath + ", which does not match its columns");
+            }
+        }
+        ColumnType[] types = new ColumnType[columnCount];
+        Arrays.fill(types, ColumnType.VARCHAR);
+        types[0] = ColumnType.INT;
+        return types;
+    }
+
+    private static Tombstones readTombstones(Path tablePath) throws IOException {
+        Tombstones tombstones = new Tombstones();
+        Path path = tombstonesPath(tablePath);
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        tombstones.add(Long.parseLong(line));
+                    }
+                }
+            }
+        }
+        return tombstones;
+    }
+
+    private static void writeTombstones(Path tablePath, long[] dead) throws IOException {
+        Path path = tombstonesPath(tablePath);
+        if (dead.length == 0) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath)) {
+            for (long offset : dead) {
+                writer.write(Long.toString(offset));
+                writer.write('\n');
+            }
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path schemaPath(Path tablePath) {
+        return tablePath.resolveSibling(tableName(tablePath) + SCHEMA_SUFFIX);
+    }
+
+    private static Path tombstonesPath(Path tablePath) {
+        return tablePath.resolveSibling(tableName(tablePath) + TOMBSTONES_SUFFIX);
+    }
+
+    private static Map<String, String[]> readCatalogFile(Path dbPath) {
+        Map<String, String[]> saved = new HashMap<>();
+        Path catalogPath = dbPath.resolve(FILE_NAME);
+        if (!Files.exists(catalogPath)) {
+            return saved;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(catalogPath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length >= 5) {
+                    saved.put(parts[0], parts);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Ignoring unreadable catalog " + catalogPath + ": " + e.getMessage());
+        }
+        return saved;
+    }
+
+    private static String tableName(Path tablePath) {
+        String fileName = tablePath.getFileName().toString();
+        return fileName.substring(0, fileName.length() - ".tsv".length());
+    }
+}
@@ -0,0 +1,183 @@
+package edu.uob;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongUnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites a table file without its dead lines once they make up more than deadRatio of it, one table at
+ * a time on the compactor executor. Everything up to the file's size when the compaction starts is copied
+ * without holding the table lock, so reads and inserts carry on; only the lines appended meanwhile are
+ * copied under the write lock, just before the new file replaces the old one. The update lock is held
+ * throughout, so no UPDATE or DELETE can kill a row that has already been copied.
+ */
+public class TableCompactor {
+    private static final Logger LOGGER = Logger.getLogger(TableCompactor.class.getName());
+
+    public interface Listener {
+        /**
+         * Called under the table's write lock once the compacted file is in place. newOffset maps the
+         * offset a row had in the old file to its offset in the new one, or to -1 for a dead row.
+         */
+        void tableCompacted(Path tablePath, LongUnaryOperator newOffset) throws IOException;
+    }
+
+    private final TableLocks tableLocks;
+    private final TableCatalog tableCatalog;
+    private final Executor executor;
+    private final Listener listener;
+    private final double deadRatio;
+    private final long minDeadRows;
+    private final Set<Path> scheduled = ConcurrentHashMap.newKeySet();
+
+    public TableCompactor(TableLocks tableLocks, TableCatalog tableCatalog, Executor executor, Listener listener,
+                          double deadRatio, long minDeadRows) {
+        this.tableLocks = tableLocks;
+        this.tableCatalog = tableCatalog;
+        this.executor = executor;
+        this.listener = listener;
+        this.deadRatio = deadRatio;
+        this.minDeadRows = minDeadRows;
+    }
+
+    // Called each time a row dies; schedules a compaction if the table has crossed the threshold and does not have one queued
+    public void compactIfNeeded(Path tablePath) {
+        TableCatalog.TableInfo info = tableCatalog.getIfLoaded(tablePath);
+        if (info == null) {
+            return;
+        }
+        int dead = info.getTombstones().size();
+        if (dead < minDeadRows || dead < deadRatio * info.getRowCount() || !scheduled.add(tablePath)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                compact(tablePath);
+            } catch (IOException e) {
+                LOGGER.severe("Error compacting " + tablePath + ": " + e.getMessage());
+            } finally {
+                scheduled.remove(tablePath);
+            }
+        });
+    }
+
+    // Returns the number of dead lines that were dropped
+    public long compact(Path tablePath) throws IOException {
+        Lock updateLock = tableLocks.forUpdates(tablePath);
+        updateLock.lock();
+        try {
+            TableCatalog.TableInfo info = tableCatalog.get(tablePath);
+            long copiedEnd;
+            long[] dead;
+            Lock readLock = tableLocks.forTable(tablePath).readLock();
+            readLock.lock();
+            try {
+                copiedEnd = Files.size(tablePath);
+                dead = info.getTombstones().snapshot();
+            } finally {
+                readLock.unlock();
+            }
+            if (dead.length == 0) {
+                return 0;
+            }
+            Path tempPath = tablePath.resolveSibling(tablePath.getFileName() + ".compact");
+            tableCatalog.beginRewrite(tablePath);
+            boolean replaced = false;
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+                OffsetMap offsets = new OffsetMap();
+                copyLiveLines(tablePath, 0, copiedEnd, dead, out, offsets);
+                Lock writeLock = tableLocks.forTable(tablePath).writeLock();
+                writeLock.lock();
+                try {
+                    if (info.getTombstones().snapshot() != dead) {
+                        // Cannot happen while the update lock is held, but copied rows must never come back to life
+                        throw new IOException("Rows were deleted during the compaction");
+                    }
+                    copyLiveLines(tablePath, copiedEnd, Long.MAX_VALUE, dead, out, offsets);
+                    out.flush();
+                    channel.force(false);
+                    Files.move(tempPath, tablePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    replaced = true;
+                    tableCatalog.tableRewritten(tablePath, offsets.size(), offsets.position);
+                    listener.tableCompacted(tablePath, offsets::newOffset);
+                } finally {
+                    writeLock.unlock();
+                }
+            } finally {
+                if (!replaced) {
+                    Files.deleteIfExists(tempPath);
+                }
+                tableCatalog.endRewrite(tablePath);
+            }
+            LOGGER.info("Compacted " + tablePath + ", dropping " + dead.length + " dead lines");
+            return dead.length;
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    // Copies the live lines that start in [start, end), and the header if start is 0, noting where each row moves to
+    private static void copyLiveLines(Path tablePath, long start, long end, long[] dead, OutputStream out, OffsetMap offsets) throws IOException {
+        try (TableFileReader reader = new TableFileReader(tablePath, start, end)) {
+            String line;
+            if (start == 0 && (line = reader.readLine()) != null) {
+                offsets.position += write(out, line);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || Tombstones.isDead(dead, reader.getLineOffset())) {
+                    continue;
+                }
+                offsets.add(reader.getLineOffset());
+                offsets.position += write(out, line);
+            }
+        }
+    }
+
+    private static int write(OutputStream out, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    // Old and new offsets of the copied rows, both ascending
+    private static final class OffsetMap {
+        long[] oldOffsets = new long[1024];
+        long[] newOffsets = new long[1024];
+        int size;
+        long position;
+
+        void add(long oldOffset) {
+            if (size == oldOffsets.length) {
+                oldOffsets = Arrays.copyOf(oldOffsets, size * 2);
+                newOffsets = Arrays.copyOf(newOffsets, size * 2);
+            }
+            oldOffsets[size] = oldOffset;
+            newOffsets[size] = position;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long newOffset(long oldOffset) {
+            int index = Arrays.binarySearch(oldOffsets, 0, size, oldOffset);
+            return index < 0 ? -1 : newOffsets[index];
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package edu.uob;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a .tsv table file line by line while keeping track of the byte offset each line starts at,
+ * which is what the indexes store to find a row again without scanning the file. Reads are positional,
+ * so any number of readers can share one open channel, such as the one a {@link TableSnapshot} holds.
+ */
+public class TableFileReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer wrappedBuffer = ByteBuffer.wrap(buffer);
+    private int bufferPosition;
+    private int bufferLimit;
+    private final long startOffset;
+    private final long endOffset;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    private long position;
+    private long filePosition;
+    private long lineOffset;
+
+    public TableFileReader(Path tablePath) throws IOException {
+        this(tablePath, 0, Long.MAX_VALUE);
+    }
+
+    // Only reads the bytes in [startOffset, endOffset), which lets a reader ignore rows appended after it started
+    public TableFileReader(Path tablePath, long startOffset, long endOffset) throws IOException {
+        this(FileChannel.open(tablePath, StandardOpenOption.READ), true, startOffset, endOffset);
+    }
+
+    // Reads from a channel that stays open after the reader is closed
+    public TableFileReader(FileChannel channel, long startOffset, long endOffset) {
+        this(channel, false, startOffset, endOffset);
+    }
+
+    private TableFileReader(FileChannel channel, boolean ownsChannel, long startOffset, long endOffset) {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.position = startOffset;
+        this.filePosition = startOffset;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+    }
+
+    // Returns the next line without its terminator, or null at the end of the file
+    public String readLine() throws IOException {
+        line.reset();
+        lineOffset = position;
+        while (position < endOffset) {
+            if (bufferPosition == bufferLimit && !fillBuffer()) {
+                break;
+            }
+            int available = (int) Math.min(bufferLimit - bufferPosition, endOffset - position);
+            int start = bufferPosition;
+            int end = start + available;
+            for (int i = start; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    bufferPosition = i + 1;
+                    position += bufferPosition - start;
+                    if (line.size() == 0) {
+                        // The usual case: the whole line is in the buffer and can be decoded in place
+                        return decode(buffer, start, i - start);
+                    }
+                    line.write(buffer, start, i - start);
+                    return decodeLine();
+                }
+            }
+            line.write(buffer, start, available);
+            bufferPosition = end;
+            position += available;
+        }
+        return line.size() > 0 ? decodeLine() : null;
+    }
+
+    private boolean fillBuffer() throws IOException {
+        wrappedBuffer.clear();
+        int read = channel.read(wrappedBuffer, filePosition);
+        if (read <= 0) {
+            return false;
+        }
+        filePosition += read;
+        bufferPosition = 0;
+        bufferLimit = read;
+        return true;
+    }
+
+    // Returns the next non-blank line split into its columns, or null at the end of the file
+    public String[] readRow() throws IOException {
+        String text;
+        while ((text = readLine()) != null) {
+            if (!text.trim().isEmpty()) {
+                return text.split("\t", -1);
+            }
+        }
+        return null;
+    }
+
+    // The byte offset of the line returned by the last readLine/readRow call
+    public long getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * Visits the rows whose lines start in [start, end) and returns the number of bytes read. Splitting a
+     * file into adjacent ranges visits every row exactly once, whatever the ranges cut through, so the
+     * ranges can be read by different threads. The header line and the offsets in dead are skipped.
+     */
+    public static long readRange(FileChannel channel, long start, long end, long[] dead, OffsetRowVisitor visitor) throws IOException {
+        // Starting one byte early, the first line read is either the header or the end of a line that belongs to the previous range
+        try (TableFileReader reader = new TableFileReader(channel, Math.max(0, start - 1), Long.MAX_VALUE)) {
+            reader.readLine();
+            String line;
+            while (!visitor.isDone() && (line = reader.readLine()) != null && reader.getLineOffset() < end) {
+                if (!line.trim().isEmpty() && !Tombstones.isDead(dead, reader.getLineOffset())) {
+                    visitor.visit(line.split("\t", -1), reader.getLineOffset());
+                }
+            }
+            return reader.getBytesRead();
+        }
+    }
+
+    public long getBytesRead() {
+        return position - startOffset;
+    }
+
+    /**
+     * Reads the rows starting at each of the given offsets with positional reads, without scanning the
+     * rest of the file. Returns the number of bytes in the rows that were read.
+     */
+    public static long readRowsAt(FileChannel channel, long[] offsets, OffsetRowVisitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        long bytesRead = 0;
+        for (long offset : offsets) {
+            if (visitor.isDone()) {
+                break;
+            }
+            line.reset();
+            long position = offset;
+            boolean complete = false;
+            while (!complete) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        complete = true;
+                        break;
+                    }
+                    line.write(b);
+                }
+                position += read;
+            }
+            bytesRead += line.size() + 1;
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8).replace("\r", "");
+            if (!text.trim().isEmpty()) {
+                visitor.visit(text.split("\t", -1), offset);
+            }
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsChannel) {
+            channel.close();
+        }
+    }
+
+    private String decodeLine() {
+        return decode(line.toByteArray(), 0, line.size());
+    }
+
+    private static String decode(byte[] bytes, int start, int length) {
+        if (length > 0 && bytes[start + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, start, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,92 @@
+package edu.uob;
+
+import java.util.Arrays;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A secondary index on one column of a table. Indexes map column values to the byte offsets
+ * of the rows holding them in the table's .tsv file.
+ */
+public abstract class TableIndex {
+
+    public enum Kind { HASH, BTREE }
+
+    private final String name;
+    private final String column;
+    private final int columnIndex;
+
+    protected TableIndex(String name, String column, int columnIndex) {
+        this.name = name;
+        this.column = column;
+        this.columnIndex = columnIndex;
+    }
+
+    public static TableIndex create(Kind kind, String name, String column, int columnIndex) {
+        return kind == Kind.HASH ? new HashIndex(name, column, columnIndex) : new OrderedIndex(name, column, columnIndex);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public abstract Kind getKind();
+
+    public void addRow(String[] row, long offset) {
+        if (columnIndex < row.length) {
+            add(row[columnIndex], offset);
+        }
+    }
+
+    protected abstract void add(String value, long offset);
+
+    // Offsets of every row that can match the comparison, or null if this index cannot answer it
+    public abstract long[] lookup(Condition.Comparison comparison);
+
+    // Every list of offsets in the index, for remapping them
+    protected abstract Iterable<OffsetList> offsetLists();
+
+    /**
+     * Moves every offset to where a compaction put its row, dropping the rows it removed (remapped to -1).
+     * Callers hold the table's write lock, so no lookups run at the same time.
+     */
+    public void remap(LongUnaryOperator newOffset) {
+        for (OffsetList offsets : offsetLists()) {
+            offsets.remap(newOffset);
+        }
+    }
+
+    /**
+     * The offsets stored under one key. Rows are only ever appended, so offsets arrive in ascending order,
+     * and a compaction keeps rows in the same order, so remapping keeps them ascending.
+     */
+    protected static final class OffsetList {
+        private long[] offsets = new long[1];
+        private int size;
+
+        synchronized void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        synchronized long[] toArray() {
+            return Arrays.copyOf(offsets, size);
+        }
+
+        synchronized void remap(LongUnaryOperator newOffset) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                long offset = newOffset.applyAsLong(offsets[i]);
+                if (offset >= 0) {
+                    offsets[kept++] = offset;
+                }
+            }
+            size = kept;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package edu.uob;
+
+import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks for table files. Appending rows to a table takes its write lock; anything
+ * that has to see the file without rows being added underneath it (taking a {@link TableSnapshot},
+ * catching a newly cached table up, building an index) takes the read lock, and readers never block
+ * each other. SELECTs only hold it while they take their snapshot, not while they scan.
+ * Tables are hashed onto a fixed number of stripes, so unrelated tables only rarely share a lock.
+ *
+ * <p>A second set of stripes, the update locks, is held by UPDATE and DELETE from finding their rows
+ * until the change is committed, and by a compaction while it moves rows around, so the row offsets an
+ * UPDATE or DELETE found are still the right ones when its tombstones are written. Inserts never take it.
+ */
+public class TableLocks {
+    private final ReadWriteLock[] stripes;
+    private final Lock[] updateStripes;
+
+    public TableLocks(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        stripes = new ReadWriteLock[size];
+        updateStripes = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+            updateStripes[i] = new ReentrantLock();
+        }
+    }
+
+    public ReadWriteLock forTable(Path tablePath) {
+        return stripes[stripeOf(tablePath)];
+    }
+
+    // Always taken before the table's read or write lock, never while holding one
+    public Lock forUpdates(Path tablePath) {
+        return updateStripes[stripeOf(tablePath)];
+    }
+
+    private int stripeOf(Path tablePath) {
+        int hash = tablePath.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+}
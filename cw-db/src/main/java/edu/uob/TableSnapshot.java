@@ -0,0 +1,60 @@
+package edu.uob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What one read sees of a table. It is taken under the table's read lock, which is only held for as long
+ * as that takes, and can then be read without any lock while inserts, UPDATEs and DELETEs carry on.
+ *
+ * <p>Tables are only ever appended to, so a snapshot is just the prefix of the table the storage engine's
+ * reader had when it was opened, together with the table's tombstone snapshot from the same moment.
+ */
+public final class TableSnapshot implements Closeable {
+    private final Path tablePath;
+    private final long[] dead;
+    private final long[] offsets;
+    private final StorageEngine.TableReader reader;
+
+    /**
+     * Must be called under the table's read lock. offsets are the rows an index narrowed a WHERE down to,
+     * or null to read every row.
+     */
+    TableSnapshot(Path tablePath, TableCatalog.TableInfo info, StorageEngine storageEngine, long[] offsets) throws IOException {
+        this.tablePath = tablePath;
+        this.dead = info.getTombstones().snapshot();
+        this.offsets = offsets == null ? null : Tombstones.removeDead(offsets, dead);
+        this.reader = storageEngine.openReader(tablePath, info);
+    }
+
+    public Path getTablePath() {
+        return tablePath;
+    }
+
+    /**
+     * Visits every live row in the snapshot that matches the condition (or every one if it is null), of
+     * those the index pointed at if it did, and returns the bytes read. Only the given columns are sure to
+     * be filled in, or all of them if columns is null; they have to include the condition's.
+     */
+    public long forEachRow(BitSet columns, Condition condition, OffsetRowVisitor visitor) throws IOException {
+        return reader.forEachRow(offsets, dead, columns, condition, visitor);
+    }
+
+    // The rows forEachRow has looked at so far, matching or not
+    public long getRowsScanned() {
+        return reader.getRowsScanned();
+    }
+
+    // Runs the aggregate over every live row in the snapshot; bytesRead is increased by the bytes read
+    public Aggregation.Partial aggregate(Aggregation aggregation, int parallelism, AtomicLong bytesRead) throws IOException {
+        return reader.aggregate(aggregation, dead, parallelism, bytesRead);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,87 @@
+package edu.uob;
+
+import java.util.Arrays;
+
+/**
+ * The lines of one table file that are no longer live. UPDATE and DELETE never rewrite a table file:
+ * they append a tombstone line "-offset" naming the row it kills (after the row's new version, for an
+ * UPDATE), and both the killed row and the tombstone line itself are dead from then on. Readers take a
+ * {@link #snapshot} under the table's read lock and skip every offset in it; a compaction eventually
+ * rewrites the file without the dead lines.
+ */
+public class Tombstones {
+    private static final char MARKER = '-';
+    private static final long[] NONE = new long[0];
+
+    // Published snapshots are never modified; new offsets collect in pending until the next snapshot
+    private long[] sorted = NONE;
+    private long[] pending = new long[16];
+    private int pendingSize;
+
+    public static boolean isTombstone(String line) {
+        return !line.isEmpty() && line.charAt(0) == MARKER;
+    }
+
+    public static String tombstoneFor(long rowOffset) {
+        return MARKER + Long.toString(rowOffset);
+    }
+
+    // The offset of the row a tombstone line kills
+    public static long killedOffset(String line) {
+        return Long.parseLong(line.substring(1).trim());
+    }
+
+    public synchronized void add(long offset) {
+        if (pendingSize == pending.length) {
+            pending = Arrays.copyOf(pending, pendingSize * 2);
+        }
+        pending[pendingSize++] = offset;
+    }
+
+    // Dead lines so far; can overcount slightly, since an offset added twice is only merged by snapshot()
+    public synchronized int size() {
+        return sorted.length + pendingSize;
+    }
+
+    public synchronized void clear() {
+        sorted = NONE;
+        pendingSize = 0;
+    }
+
+    // The dead offsets in ascending order. The array is shared and must not be modified
+    public synchronized long[] snapshot() {
+        if (pendingSize > 0) {
+            long[] merged = Arrays.copyOf(sorted, sorted.length + pendingSize);
+            System.arraycopy(pending, 0, merged, sorted.length, pendingSize);
+            Arrays.sort(merged);
+            int size = 0;
+            for (int i = 0; i < merged.length; i++) {
+                if (size == 0 || merged[size - 1] != merged[i]) {
+                    merged[size++] = merged[i];
+                }
+            }
+            sorted = Arrays.copyOf(merged, size);
+            pendingSize = 0;
+        }
+        return sorted;
+    }
+
+    public static boolean isDead(long[] snapshot, long offset) {
+        return snapshot.length > 0 && Arrays.binarySearch(snapshot, offset) >= 0;
+    }
+
+    // The offsets (ascending) that are not in the snapshot
+    public static long[] removeDead(long[] offsets, long[] snapshot) {
+        if (snapshot.length == 0) {
+            return offsets;
+        }
+        long[] live = new long[offsets.length];
+        int size = 0;
+        for (long offset : offsets) {
+            if (!isDead(snapshot, offset)) {
+                live[size++] = offset;
+            }
+        }
+        return Arrays.copyOf(live, size);
+    }
+}
@@ -0,0 +1,192 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The default engine: rows are read from the .tsv file, and tables small enough are kept parsed in the
+ * {@link TableCache}. A reader of a cached table sees its first rowCount rows; a reader of one that is
+ * not cached keeps the file open and reads no further than the size it had, so it goes on reading the
+ * same file even if a compaction replaces it. Files too big to cache are scanned in byte ranges on
+ * several threads by a {@link ParallelScan}.
+ */
+public class TsvStorageEngine implements StorageEngine {
+    private final TableCache tableCache;
+    private final TableLocks tableLocks;
+    private final TableCatalog tableCatalog;
+    private final ServerMetrics metrics;
+    private final ParallelScan parallelScan;
+
+    public TsvStorageEngine(TableCache tableCache, TableLocks tableLocks, TableCatalog tableCatalog, ServerMetrics metrics, ParallelScan parallelScan) {
+        this.tableCache = tableCache;
+        this.tableLocks = tableLocks;
+        this.tableCatalog = tableCatalog;
+        this.metrics = metrics;
+        this.parallelScan = parallelScan;
+    }
+
+    @Override
+    public TableReader openReader(Path tablePath, TableCatalog.TableInfo info) throws IOException {
+        Table cached = tableCache.getIfPresent(tablePath);
+        metrics.tableCacheLookup(cached != null);
+        return new Reader(tablePath, info, cached);
+    }
+
+    @Override
+    public void tableCreated(Path tablePath, String[] columns, ColumnType[] types) {
+        tableCache.put(tablePath, new Table(columns, types));
+    }
+
+    // Write-through: only tables that are already cached are updated
+    @Override
+    public void rowAppended(Path tablePath, String[] row, long offset, long length) {
+        tableCache.appendRow(tablePath, row, offset);
+    }
+
+    @Override
+    public void tableReplaced(Path tablePath) {
+        tableCache.invalidate(tablePath);
+    }
+
+    @Override
+    public void checkpoint(Path dbPath) {
+    }
+
+    /**
+     * Caches a table parsed by a reader once it has caught up with the rows appended since the reader was
+     * opened, and returns the bytes that took. These are read under the read lock, and rows are only
+     * appended under the write lock, so none can be missed. The table is not cached if a compaction has
+     * replaced the file in the meantime.
+     */
+    private long cacheTable(Reader reader, Table table) throws IOException {
+        Lock readLock = tableLocks.forTable(reader.tablePath).readLock();
+        readLock.lock();
+        try {
+            if (tableCatalog.get(reader.tablePath).getGeneration() != reader.generation || tableCache.getIfPresent(reader.tablePath) != null) {
+                return 0;
+            }
+            long bytesRead = TableCache.readRows(reader.channel, reader.endOffset, Long.MAX_VALUE, table);
+            tableCache.put(reader.tablePath, table);
+            return bytesRead;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private final class Reader implements TableReader {
+        private final Path tablePath;
+        private final long generation;
+        private final ColumnType[] types;
+        private final FileChannel channel;
+        private final long endOffset;
+        private Table table;
+        private int tableRows;
+        private long rowsScanned;
+
+        Reader(Path tablePath, TableCatalog.TableInfo info, Table cached) throws IOException {
+            this.tablePath = tablePath;
+            this.generation = info.getGeneration();
+            this.types = info.getTypes();
+            if (cached != null) {
+                this.table = cached;
+                this.tableRows = cached.getRowCount();
+                this.channel = null;
+                this.endOffset = -1;
+            } else {
+                this.channel = FileChannel.open(tablePath, StandardOpenOption.READ);
+                this.endOffset = channel.size();
+            }
+        }
+
+        /**
+         * The columns are ignored: a .tsv line has to be split in full either way. The condition is checked
+         * on the columns of a cached table, and on the text of each row otherwise.
+         */
+        @Override
+        public long forEachRow(long[] offsets, long[] dead, BitSet columns, Condition condition, OffsetRowVisitor visitor) throws IOException {
+            long bytesRead = 0;
+            if (table == null && offsets == null && endOffset <= tableCache.getMaxBytes() / 2) {
+                // Every row is needed and the table is small enough to cache: parse it once and read it from memory
+                table = TableCache.readTable(channel, endOffset, types);
+                tableRows = table.getRowCount();
+                bytesRead = endOffset + cacheTable(this, table);
+            }
+            OffsetRowVisitor filter = new OffsetRowVisitor() {
+                @Override
+                public void visit(String[] row, long offset) throws IOException {
+                    rowsScanned++;
+                    if (condition == null || condition.matches(row)) {
+                        visitor.visit(row, offset);
+                    }
+                }
+
+                @Override
+                public boolean isDone() {
+                    return visitor.isDone();
+                }
+            };
+            if (offsets != null) {
+                if (table == null) {
+                    return TableFileReader.readRowsAt(channel, offsets, filter);
+                }
+                for (long offset : offsets) {
+                    if (visitor.isDone()) {
+                        break;
+                    }
+                    String[] row = table.getRowAtOffset(offset);
+                    if (row != null) {
+                        filter.visit(row, offset);
+                    }
+                }
+                return bytesRead;
+            }
+            if (table != null) {
+                rowsScanned += table.forEachRow(tableRows, dead, condition, visitor);
+                return bytesRead;
+            }
+            if (parallelScan.isWorthwhile(endOffset)) {
+                AtomicLong scanned = new AtomicLong();
+                try {
+                    return parallelScan.scan(channel, endOffset, dead, condition, visitor, scanned);
+                } finally {
+                    rowsScanned += scanned.get();
+                }
+            }
+            try (TableFileReader reader = new TableFileReader(channel, 0, endOffset)) {
+                reader.readLine();
+                String[] row;
+                while (!visitor.isDone() && (row = reader.readRow()) != null) {
+                    if (!Tombstones.isDead(dead, reader.getLineOffset())) {
+                        filter.visit(row, reader.getLineOffset());
+                    }
+                }
+                return reader.getBytesRead();
+            }
+        }
+
+        @Override
+        public long getRowsScanned() {
+            return rowsScanned;
+        }
+
+        @Override
+        public Aggregation.Partial aggregate(Aggregation aggregation, long[] dead, int parallelism, AtomicLong bytesRead) throws IOException {
+            if (table != null) {
+                return aggregation.aggregateRows(table.getRows(tableRows, dead), parallelism);
+            }
+            return aggregation.aggregateFile(channel, endOffset, dead, parallelism, bytesRead);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
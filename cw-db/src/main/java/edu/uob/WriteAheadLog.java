@@ -0,0 +1,587 @@
+package edu.uob;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of row changes for one database (data/&lt;db&gt;/wal.log).
+ *
+ * <p>Writes are queued and a single committer thread writes everything that is waiting as one
+ * group commit: the records go to the log, the log is synced according to the {@link SyncPolicy},
+ * and then the rows and tombstones are appended to their table files through file handles that stay open.
+ * A record line is "crc \t table \t id \t values..." for a new row or a new version of one, and
+ * "crc \t table \t -id" for a deleted row, so that a torn last line is ignored on replay. Records name
+ * rows by ID rather than by offset, which a compaction changes.
+ *
+ * <p>A write is committed once its records are in the log: replay would apply them after a crash
+ * whatever its writer was told. So a batch whose records could not be written is cut off the log again
+ * before its writers are told it failed, and a batch that is in the log but could not be appended to a
+ * table file is retried until it is, rather than reported as failed.
+ */
+public class WriteAheadLog implements Closeable {
+    public static final String FILE_NAME = "wal.log";
+
+    public enum SyncPolicy {
+        // fsync the log before any insert in the batch is acknowledged
+        COMMIT,
+        // fsync at most once every syncIntervalMs, so up to that much acknowledged data can be lost
+        INTERVAL,
+        // never fsync, leave it to the operating system
+        NONE
+    }
+
+    // A group commit stops taking more queued writes once it holds this many rows
+    private static final int MAX_BATCH_ROWS = 16 * 1024;
+    // Applying a committed batch to its table files is retried after a pause that doubles up to this
+    private static final long APPLY_RETRY_MAX_MS = 5_000;
+    // Queued by close(); interrupting the committer instead would close the channel it is writing to
+    private static final PendingWrite SHUTDOWN = new PendingWrite(null, List.of(), List.of(), new long[0]);
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+
+    private final Path dbPath;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMs;
+    private final long checkpointBytes;
+    private final TableLocks tableLocks;
+    private final RowListener listener;
+    private final Runnable onCheckpoint;
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    // Only the committer opens channels, but a compaction closes the channel of the file it replaces
+    private final Map<Path, FileChannel> tableChannels = new ConcurrentHashMap<>();
+    private final FileChannel logChannel;
+    private final Thread committer;
+    private volatile boolean closed;
+    // Set if a failed batch could not be cut off the log, after which nothing more is written to it
+    private volatile IOException broken;
+    private long lastSyncMillis = System.currentTimeMillis();
+    private boolean unsynced;
+
+    /**
+     * @param tableLocks   a table's write lock is held while rows are appended to it, so anyone holding
+     *                     the read lock sees the file in a consistent state
+     * @param listener     called, under the table's write lock, for every row and tombstone once it is in its table file
+     * @param onCheckpoint called by the committer thread each time the log has been truncated
+     */
+    public WriteAheadLog(Path dbPath, SyncPolicy syncPolicy, long syncIntervalMs, long checkpointBytes,
+                         TableLocks tableLocks, RowListener listener, Runnable onCheckpoint) throws IOException {
+        this.dbPath = dbPath;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMs = syncIntervalMs;
+        this.checkpointBytes = checkpointBytes;
+        this.tableLocks = tableLocks;
+        this.listener = listener;
+        this.onCheckpoint = onCheckpoint;
+        Path logPath = dbPath.resolve(FILE_NAME);
+        replay(logPath);
+        this.logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.logChannel.truncate(0);
+        this.committer = new Thread(this::commitLoop, "wal-" + dbPath.getFileName());
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    public interface RowListener {
+        // offset is where the row starts in the table file and length is the size of its line in bytes
+        void rowApplied(Path tablePath, String[] row, long offset, long length);
+
+        // rowOffset is the row that is no longer live, and tombstoneOffset and length locate the tombstone line saying so
+        void rowDeleted(Path tablePath, long rowOffset, long tombstoneOffset, long length);
+    }
+
+    /**
+     * Queues rows for the next group commit. The returned future completes once the rows are in the log
+     * (synced according to the policy) and in the table file. The rows of one call always end up
+     * in the same commit.
+     */
+    public CompletableFuture<Void> submit(String tableName, List<String[]> rows) {
+        return submit(new PendingWrite(tableName, rows, List.of(), new long[0]));
+    }
+
+    /**
+     * Queues new versions of existing rows, which keep their IDs, along with tombstones for the lines at
+     * replacedOffsets that hold their current versions. Callers must hold the table's update lock until
+     * the write has been committed, so that those offsets stay right.
+     */
+    public CompletableFuture<Void> submitUpdate(String tableName, List<String[]> rows, long[] replacedOffsets) {
+        return submit(new PendingWrite(tableName, rows, List.of(), replacedOffsets));
+    }
+
+    // Queues tombstones for the rows with the given IDs, found at offsets; callers hold the update lock as for submitUpdate
+    public CompletableFuture<Void> submitDelete(String tableName, List<String> ids, long[] offsets) {
+        return submit(new PendingWrite(tableName, List.of(), ids, offsets));
+    }
+
+    private CompletableFuture<Void> submit(PendingWrite write) {
+        if (broken != null) {
+            write.done.completeExceptionally(broken);
+        } else if (closed) {
+            write.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+        } else {
+            queue.add(write);
+        }
+        return write.done;
+    }
+
+    // Blocks until a submitted write has been committed, turning a failed commit back into an IOException
+    public static void await(CompletableFuture<Void> write) throws IOException {
+        try {
+            write.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        queue.add(SHUTDOWN);
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logChannel.force(false);
+        logChannel.close();
+        for (FileChannel channel : tableChannels.values()) {
+            channel.close();
+        }
+    }
+
+    private void commitLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                PendingWrite first = syncPolicy == SyncPolicy.INTERVAL && unsynced
+                        ? queue.poll(syncIntervalMs, TimeUnit.MILLISECONDS)
+                        : queue.take();
+                if (first != null) {
+                    batch.add(first);
+                    int rows = first.size();
+                    PendingWrite more;
+                    while (rows < MAX_BATCH_ROWS && (more = queue.poll()) != null) {
+                        batch.add(more);
+                        rows += more.size();
+                    }
+                }
+                running = !batch.remove(SHUTDOWN);
+                commit(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                LOGGER.severe("Group commit failed in " + dbPath + ": " + e.getMessage());
+                for (PendingWrite write : batch) {
+                    write.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+        List<PendingWrite> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.remove(SHUTDOWN);
+        for (PendingWrite write : remaining) {
+            write.done.completeExceptionally(new IOException("Write-ahead log is closed"));
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) throws IOException {
+        if (broken != null) {
+            throw broken;
+        }
+        if (!batch.isEmpty()) {
+            StringBuilder records = new StringBuilder();
+            for (PendingWrite write : batch) {
+                for (String[] row : write.rows) {
+                    appendRecord(records, write.tableName, String.join("\t", row));
+                }
+                for (String id : write.deletedIds) {
+                    appendRecord(records, write.tableName, "-" + id);
+                }
+            }
+            long logStart = logChannel.position();
+            try {
+                writeFully(logChannel, records);
+                unsynced = true;
+                syncIfDue();
+            } catch (IOException e) {
+                cutOffLog(logStart, e);
+                throw e;
+            }
+        } else {
+            syncIfDue();
+            return;
+        }
+        boolean applied = applyCommitted(batch);
+        for (PendingWrite write : batch) {
+            write.done.complete(null);
+        }
+        // A checkpoint would drop the rows that are left to replay
+        if (applied && logChannel.size() >= checkpointBytes) {
+            checkpoint();
+        }
+    }
+
+    private void syncIfDue() throws IOException {
+        if (!unsynced) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (syncPolicy == SyncPolicy.COMMIT
+                || (syncPolicy == SyncPolicy.INTERVAL && now - lastSyncMillis >= syncIntervalMs)) {
+            logChannel.force(false);
+            lastSyncMillis = now;
+            unsynced = false;
+        } else if (syncPolicy == SyncPolicy.NONE) {
+            unsynced = false;
+        }
+    }
+
+    // Drops the records of a batch that failed, so that replay never applies rows their writers were told had failed
+    private void cutOffLog(long logStart, IOException failure) {
+        try {
+            logChannel.truncate(logStart);
+            logChannel.position(logStart);
+            logChannel.force(false);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            broken = new IOException("Write-ahead log of " + dbPath + " failed and could not be repaired", failure);
+            LOGGER.severe(broken.getMessage() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a batch that is in the log to its table files, retrying the tables that fail with a growing
+     * pause in between. Later batches wait, so they cannot overtake it. If the log is closed meanwhile the
+     * rest is left to replay, which will apply it when the database is next opened, and false is returned.
+     */
+    private boolean applyCommitted(List<PendingWrite> batch) {
+        Map<Path, List<PendingWrite>> writesByTable = new LinkedHashMap<>();
+        for (PendingWrite write : batch) {
+            writesByTable.computeIfAbsent(tablePath(write.tableName), path -> new ArrayList<>()).add(write);
+        }
+        long pauseMs = 10;
+        while (true) {
+            try {
+                applyToTables(writesByTable);
+                return true;
+            } catch (IOException e) {
+                if (closed) {
+                    LOGGER.severe("Leaving committed rows in " + dbPath + " to be replayed: " + e.getMessage());
+                    return false;
+                }
+                LOGGER.severe("Appending committed rows to a table in " + dbPath + " failed, retrying: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(pauseMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            pauseMs = Math.min(pauseMs * 2, APPLY_RETRY_MAX_MS);
+        }
+    }
+
+    // Each table gets its rows, then its tombstone lines, in one write; tables are removed from writesByTable once written
+    private void applyToTables(Map<Path, List<PendingWrite>> writesByTable) throws IOException {
+        for (Iterator<Map.Entry<Path, List<PendingWrite>>> tables = writesByTable.entrySet().iterator(); tables.hasNext(); ) {
+            Map.Entry<Path, List<PendingWrite>> entry = tables.next();
+            List<String[]> rows = new ArrayList<>();
+            int killedCount = 0;
+            for (PendingWrite write : entry.getValue()) {
+                rows.addAll(write.rows);
+                killedCount += write.killedOffsets.length;
+            }
+            long[] killed = new long[killedCount];
+            killedCount = 0;
+            for (PendingWrite write : entry.getValue()) {
+                System.arraycopy(write.killedOffsets, 0, killed, killedCount, write.killedOffsets.length);
+                killedCount += write.killedOffsets.length;
+            }
+            StringBuilder lines = new StringBuilder();
+            long[] relativeOffsets = new long[rows.size() + killed.length + 1];
+            long written = 0;
+            for (int i = 0; i < rows.size() + killed.length; i++) {
+                String line = (i < rows.size() ? String.join("\t", rows.get(i)) : Tombstones.tombstoneFor(killed[i - rows.size()])) + "\n";
+                relativeOffsets[i] = written;
+                written += utf8Length(line);
+                lines.append(line);
+            }
+            relativeOffsets[rows.size() + killed.length] = written;
+            Lock lock = tableLocks.forTable(entry.getKey()).writeLock();
+            lock.lock();
+            try {
+                FileChannel channel = tableChannel(entry.getKey());
+                long start = channel.size();
+                try {
+                    writeFully(channel, lines);
+                } catch (IOException e) {
+                    cutOffTable(entry.getKey(), start, e);
+                    throw e;
+                }
+                tables.remove();
+                for (int i = 0; i < rows.size() + killed.length; i++) {
+                    long offset = start + relativeOffsets[i];
+                    long length = relativeOffsets[i + 1] - relativeOffsets[i];
+                    if (i < rows.size()) {
+                        listener.rowApplied(entry.getKey(), rows.get(i), offset, length);
+                    } else {
+                        listener.rowDeleted(entry.getKey(), killed[i - rows.size()], offset, length);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Drops whatever part of a failed append made it into the table file, so that a retry appends it whole
+    private void cutOffTable(Path tablePath, long start, IOException failure) {
+        try {
+            tableReplaced(tablePath);
+            try (FileChannel channel = FileChannel.open(tablePath, StandardOpenOption.WRITE)) {
+                if (channel.size() > start) {
+                    channel.truncate(start);
+                }
+            }
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Called by a compaction, under the table's write lock, once it has replaced the table file, so that
+     * the next append opens the new file instead of writing to the old one.
+     */
+    public void tableReplaced(Path tablePath) throws IOException {
+        FileChannel channel = tableChannels.remove(tablePath);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Once every table file is on disk the log records are no longer needed
+    private void checkpoint() throws IOException {
+        for (Map.Entry<Path, FileChannel> entry : tableChannels.entrySet()) {
+            // Under the read lock, since a compaction closes the channel of the file it replaces under the write lock
+            Lock readLock = tableLocks.forTable(entry.getKey()).readLock();
+            readLock.lock();
+            try {
+                if (tableChannels.get(entry.getKey()) == entry.getValue()) {
+                    entry.getValue().force(false);
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+        logChannel.truncate(0);
+        logChannel.position(0);
+        logChannel.force(false);
+        onCheckpoint.run();
+    }
+
+    private FileChannel tableChannel(Path tablePath) throws IOException {
+        FileChannel channel = tableChannels.get(tablePath);
+        if (channel == null) {
+            channel = FileChannel.open(tablePath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            tableChannels.put(tablePath, channel);
+        }
+        return channel;
+    }
+
+    private Path tablePath(String tableName) {
+        return dbPath.resolve(tableName + ".tsv");
+    }
+
+    /**
+     * Brings every row named in the log to the state its last record gives it, then syncs the table files.
+     * That state is the logged version being the only live line with the row's ID, or no live line if the
+     * row was deleted, so replaying a record that already reached the table file changes nothing. Rows
+     * that never made it are re-appended, and versions they replace are given tombstones.
+     */
+    private void replay(Path logPath) throws IOException {
+        if (!Files.exists(logPath)) {
+            return;
+        }
+        // Per table, the last logged change to each row ID: its new values, or null if it was deleted
+        Map<Path, Map<String, String>> changes = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(logPath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 3);
+                if (parts.length < 3 || !parts[0].equals(checksum(line.substring(parts[0].length() + 1)))) {
+                    LOGGER.warning("Ignoring damaged write-ahead log record in " + logPath);
+                    continue;
+                }
+                Path tablePath = tablePath(parts[1]);
+                if (Files.exists(tablePath)) {
+                    Map<String, String> tableChanges = changes.computeIfAbsent(tablePath, path -> new LinkedHashMap<>());
+                    if (Tombstones.isTombstone(parts[2])) {
+                        tableChanges.put(parts[2].substring(1), null);
+                    } else {
+                        int tab = parts[2].indexOf('\t');
+                        tableChanges.put(tab < 0 ? parts[2] : parts[2].substring(0, tab), parts[2]);
+                    }
+                }
+            }
+        }
+        int replayed = 0;
+        for (Map.Entry<Path, Map<String, String>> entry : changes.entrySet()) {
+            Path tablePath = entry.getKey();
+            dropTornTail(tablePath);
+            replayed += replayTable(tablePath, entry.getValue());
+        }
+        if (replayed > 0) {
+            LOGGER.info("Replayed " + replayed + " rows from the write-ahead log of " + dbPath);
+        }
+    }
+
+    // Returns how many of the changed rows had to be fixed
+    private static int replayTable(Path tablePath, Map<String, String> changes) throws IOException {
+        Set<Long> dead = new HashSet<>();
+        Map<String, List<Long>> offsetsById = new HashMap<>();
+        Map<Long, String> lines = new HashMap<>();
+        try (TableFileReader reader = new TableFileReader(tablePath)) {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (Tombstones.isTombstone(line)) {
+                    dead.add(Tombstones.killedOffset(line));
+                    dead.add(reader.getLineOffset());
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                String id = tab < 0 ? line.trim() : line.substring(0, tab);
+                if (changes.containsKey(id)) {
+                    offsetsById.computeIfAbsent(id, key -> new ArrayList<>()).add(reader.getLineOffset());
+                    lines.put(reader.getLineOffset(), line);
+                }
+            }
+        }
+        StringBuilder missing = new StringBuilder();
+        int replayed = 0;
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            List<Long> live = new ArrayList<>();
+            for (long offset : offsetsById.getOrDefault(change.getKey(), List.of())) {
+                if (!dead.contains(offset)) {
+                    live.add(offset);
+                }
+            }
+            String wanted = change.getValue();
+            boolean current = wanted != null && !live.isEmpty() && lines.get(live.get(live.size() - 1)).equals(wanted);
+            if (current && live.size() == 1) {
+                continue;
+            }
+            int before = missing.length();
+            for (int i = 0; i < live.size() - (current ? 1 : 0); i++) {
+                missing.append(Tombstones.tombstoneFor(live.get(i))).append('\n');
+            }
+            if (wanted != null && !current) {
+                missing.append(wanted).append('\n');
+            }
+            if (missing.length() > before) {
+                replayed++;
+            }
+        }
+        if (missing.length() > 0) {
+            try (FileChannel channel = FileChannel.open(tablePath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                writeFully(channel, missing);
+                channel.force(false);
+            }
+        }
+        return replayed;
+    }
+
+    // A crash in the middle of an append can leave a row without its newline; cut it off so it is replayed whole
+    private static void dropTornTail(Path tablePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(tablePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = channel.size();
+            ByteBuffer oneByte = ByteBuffer.allocate(1);
+            while (end > 0) {
+                oneByte.clear();
+                channel.read(oneByte, end - 1);
+                if (oneByte.get(0) == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < channel.size()) {
+                channel.truncate(end);
+            }
+        }
+    }
+
+    private static void appendRecord(StringBuilder records, String tableName, String change) {
+        String body = tableName + "\t" + change;
+        records.append(checksum(body)).append('\t').append(body).append('\n');
+    }
+
+    private static String checksum(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeFully(FileChannel channel, CharSequence text) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(text.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static final class PendingWrite {
+        final String tableName;
+        // New rows, or new versions of rows that replace the lines at killedOffsets
+        final List<String[]> rows;
+        final List<String> deletedIds;
+        final long[] killedOffsets;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(String tableName, List<String[]> rows, List<String> deletedIds, long[] killedOffsets) {
+            this.tableName = tableName;
+            this.rows = rows;
+            this.deletedIds = deletedIds;
+            this.killedOffsets = killedOffsets;
+        }
+
+        int size() {
+            return rows.size() + killedOffsets.length;
+        }
+    }
+}
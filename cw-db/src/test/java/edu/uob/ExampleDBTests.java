@@ -4,9 +4,43 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.stream.Stream;
 
 public class ExampleDBTests {
 
@@ -18,6 +52,22 @@ public class ExampleDBTests {
         server = new DBServer();
     }
 
+    // Stop its threads and close its files, so the next test's server can open the same data directory
+    @AfterEach
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    // Closes the server and starts another on the same data, as a restart would
+    private void restartServer(Supplier<DBServer> newServer) {
+        try {
+            server.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        server = newServer.get();
+    }
+
     // Random name generator - useful for testing "bare earth" queries (i.e. where tables don't previously exist)
     private String generateRandomName() {
         String randomName = "";
@@ -82,7 +132,7 @@ public class ExampleDBTests {
         sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
         sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
         // Create a new server object
-        server = new DBServer();
+        restartServer(DBServer::new);
         sendCommandToServer("USE " + randomName + ";");
         String response = sendCommandToServer("SELECT * FROM marks;");
         assertTrue(response.contains("Simon"), "Simon was added to a table and the server restarted - but Simon was not returned by SELECT *");
@@ -101,4 +151,1068 @@ public class ExampleDBTests {
         assertFalse(response.contains("[OK]"), "An attempt was made to access a non-existent table, however an [OK] tag was returned");
     }
 
-}
\ No newline at end of file
+    // Each connection gets its own session, so one client's USE must not change the database seen by another
+    @Test
+    public void testSessionsKeepTheirOwnDatabase() {
+        String firstName = generateRandomName();
+        String secondName = generateRandomName();
+        DBSession firstSession = new DBSession();
+        DBSession secondSession = new DBSession();
+        sendCommandToServer("CREATE DATABASE " + firstName + ";");
+        sendCommandToServer("CREATE DATABASE " + secondName + ";");
+        server.handleCommand(firstSession, "USE " + firstName + ";");
+        server.handleCommand(firstSession, "CREATE TABLE marks (name, mark, pass);");
+        server.handleCommand(secondSession, "USE " + secondName + ";");
+        server.handleCommand(firstSession, "INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        assertTrue(server.handleCommand(secondSession, "SELECT * FROM marks;").contains("[ERROR]"),
+                "The second session selected another database, but could still see a table from the first session's database");
+        assertTrue(server.handleCommand(firstSession, "SELECT * FROM marks;").contains("Simon"),
+                "The first session should still be using its own database after another session ran USE");
+    }
+
+    // Rows inserted after a table has been cached must still show up, even when the cache is too small to hold anything
+    @Test
+    public void testSelectAfterInsertWithTinyTableCache() {
+        restartServer(() -> new DBServer(1));
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("CREATE TABLE fines (name, amount);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("SELECT * FROM marks;");
+        sendCommandToServer("SELECT * FROM fines;");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, FALSE);");
+        String response = sendCommandToServer("SELECT name FROM marks;");
+        assertTrue(response.contains("Simon"), "Simon was inserted before the table was cached, but was not returned by SELECT");
+        assertTrue(response.contains("Chris"), "Chris was inserted after the table was cached, but was not returned by SELECT");
+    }
+
+    // Inserts from several clients at once are group committed - every row should come back exactly once with its own ID
+    @Test
+    public void testConcurrentInsertsGetDistinctIds() throws InterruptedException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        Thread[] clients = new Thread[8];
+        for (int c = 0; c < clients.length; c++) {
+            String clientName = "client" + c;
+            clients[c] = new Thread(() -> {
+                DBSession session = new DBSession();
+                server.handleCommand(session, "USE " + randomName + ";");
+                for (int i = 0; i < 25; i++) {
+                    server.handleCommand(session, "INSERT INTO marks VALUES ('" + clientName + "', " + i + ", TRUE);");
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        restartServer(DBServer::new);
+        sendCommandToServer("USE " + randomName + ";");
+        String[] rows = sendCommandToServer("SELECT id FROM marks;").split("\n");
+        Set<String> ids = new HashSet<>();
+        for (int i = 1; i < rows.length; i++) {
+            ids.add(rows[i].trim());
+        }
+        assertTrue(rows.length == 201 && ids.size() == 200, "200 rows were inserted concurrently, but " + ids.size() + " distinct IDs were read back after a restart");
+    }
+
+    // Long log messages (e.g. a whole multi-row INSERT) are cut short before they reach the log file
+    @Test
+    public void testLongLogMessagesAreTruncated() {
+        List<String> written = new CopyOnWriteArrayList<>();
+        Handler capture = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                written.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        AsyncLogHandler handler = new AsyncLogHandler(16, 10, capture);
+        handler.publish(new LogRecord(Level.INFO, "short"));
+        handler.publish(new LogRecord(Level.INFO, "x".repeat(100)));
+        handler.close();
+        assertTrue(written.size() == 2 && written.get(0).equals("short"), "Both records should have been written, the short one unchanged");
+        assertTrue(written.get(1).startsWith("xxxxxxxxxx...") && written.get(1).contains("90 more"), "The long record should have been truncated, but was: " + written.get(1));
+    }
+
+    // After a restart IDs carry on from the catalog, and rows appended to the file behind its back are still counted
+    @Test
+    public void testIdsContinueAfterRestartFromCatalog() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        restartServer(DBServer::new);
+        assertTrue(Files.exists(Paths.get("data", randomName, TableCatalog.FILE_NAME)), "A catalog file should have been saved for the database");
+        Files.writeString(Paths.get("data", randomName, "marks.tsv"), "7\tRob\t35\n", StandardOpenOption.APPEND);
+        restartServer(DBServer::new);
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20);");
+        String response = sendCommandToServer("SELECT id FROM marks WHERE name == 'Chris';");
+        assertTrue(response.contains("\n8"), "The row after the appended ID 7 should have been given ID 8, but the response was: " + response);
+    }
+
+    // STATS reports latencies per command type and how many rows SELECTs looked at and returned
+    @Test
+    public void testStatsCommand() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        sendCommandToServer("SELECT name FROM marks WHERE mark > 60;");
+        String response = sendCommandToServer("STATS;");
+        assertTrue(response.startsWith("[OK]"), "A valid STATS command should return an [OK] tag");
+        assertTrue(response.contains("command INSERT count=2 "), "STATS should count both INSERTs, but returned: " + response);
+        assertTrue(response.contains("rows scanned=2 returned=1"), "STATS should count the rows the SELECT scanned and returned, but returned: " + response);
+        assertTrue(response.contains("table " + randomName + "/marks bytesRead="), "STATS should list the table that was written to, but returned: " + response);
+        assertFalse(response.endsWith("\n"), "STATS should not end with a blank line");
+        long invalid = Long.parseLong(response.split("command INVALID count=")[1].split("\n")[0]);
+        assertTrue(sendCommandToServer("   ").equals("[ERROR] Invalid command"), "An empty command should be answered with an error");
+        response = sendCommandToServer("STATS;");
+        assertTrue(response.contains("command INVALID count=" + (invalid + 1) + "\n"), "An empty command should be counted as a failed one: " + response);
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.GERMANY);
+            response = sendCommandToServer("STATS;");
+            assertTrue(response.matches("(?s).*cache planCache hits=\\d+ misses=\\d+ hitRate=\\d+\\.\\d\\d\n.*"), "Hit rates should be written with a decimal point in any locale: " + response);
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    // JOIN ... ON matches rows across two tables, and gives the same rows when the join has to spill to disk
+    @Test
+    public void testJoinInMemoryAndSpilled() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE students (name, course);");
+        sendCommandToServer("CREATE TABLE courses (code, title);");
+        sendCommandToServer("INSERT INTO students VALUES ('Simon', 'COMS'), ('Sion', 'MATH'), ('Rob', 'COMS'), ('Chris', 'PHYS');");
+        sendCommandToServer("INSERT INTO courses VALUES ('COMS', 'Computer Science'), ('MATH', 'Mathematics');");
+        String response = sendCommandToServer("SELECT name, title FROM students JOIN courses ON students.course == courses.code WHERE name != 'Rob';");
+        assertTrue(response.contains("Simon\tComputer Science") && response.contains("Sion\tMathematics"), "Matching rows should be joined, but the response was: " + response);
+        assertFalse(response.contains("Rob") || response.contains("Chris"), "Rows filtered by WHERE or without a match should not be returned");
+        response = sendCommandToServer("SELECT * FROM students JOIN courses ON id == courses.id;");
+        assertTrue(response.contains("[ERROR]"), "A bare column that both tables have should be reported as ambiguous");
+
+        List<String[]> left = new ArrayList<>();
+        List<String[]> right = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            left.add(new String[] {Integer.toString(i), Integer.toString(i % 50)});
+            right.add(new String[] {Integer.toString(i % 100), "r" + i});
+        }
+        List<String> inMemory = new ArrayList<>();
+        List<String> spilled = new ArrayList<>();
+        Path spillDirectory = Files.createTempDirectory("join-test");
+        new HashJoin(Long.MAX_VALUE, 4, spillDirectory).join(visitor -> { for (String[] row : left) visitor.visit(row); }, 1,
+                visitor -> { for (String[] row : right) visitor.visit(row); }, 0, true, row -> inMemory.add(String.join(",", row)));
+        new HashJoin(1000, 4, spillDirectory).join(visitor -> { for (String[] row : left) visitor.visit(row); }, 1,
+                visitor -> { for (String[] row : right) visitor.visit(row); }, 0, true, row -> spilled.add(String.join(",", row)));
+        Collections.sort(inMemory);
+        Collections.sort(spilled);
+        assertTrue(inMemory.size() == 2500 && inMemory.equals(spilled), "A spilled join should return the same " + inMemory.size() + " rows as an in-memory one, but returned " + spilled.size());
+        try (Stream<Path> leftover = Files.list(spillDirectory)) {
+            assertTrue(leftover.count() == 0, "Spill files should be deleted once the join has finished");
+        }
+        Files.delete(spillDirectory);
+    }
+
+    // Aggregates with GROUP BY, and a file aggregated in parallel byte ranges giving the same totals as one thread
+    @Test
+    public void testAggregatesAndGroupBy() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, course, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 'COMS', 65), ('Sion', 'COMS', 55), ('Rob', 'MATH', 35), ('Chris', 'MATH', NULL);");
+        String response = sendCommandToServer("SELECT course, COUNT(*), COUNT(mark), SUM(mark), AVG(mark), MIN(name), MAX(mark) FROM marks GROUP BY course;");
+        assertTrue(response.contains("COMS\t2\t2\t120\t60.0\tSimon\t65") && response.contains("MATH\t2\t1\t35\t35.0\tChris\t35"),
+                "Each group should have its own totals, but the response was: " + response);
+        assertTrue(response.indexOf("COMS") < response.indexOf("MATH"), "Groups should be ordered by the GROUP BY column");
+        response = sendCommandToServer("SELECT COUNT(*) FROM marks WHERE name == 'Nobody';");
+        assertTrue(response.equals("[OK]\n0"), "An aggregate without GROUP BY should return one row even when nothing matches, but the response was: " + response);
+        response = sendCommandToServer("SELECT name, COUNT(*) FROM marks GROUP BY course;");
+        assertTrue(response.contains("[ERROR]"), "A plain column that is not in GROUP BY should be an error");
+
+        Path file = Files.createTempFile("aggregate-test", ".tsv");
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write("id\tgroup\tvalue\n");
+            for (int i = 0; i < 200_000; i++) {
+                String[] row = {Integer.toString(i), "g" + (i % 7), Integer.toString(i % 1000)};
+                rows.add(row);
+                writer.write(String.join("\t", row) + "\n");
+            }
+        }
+        List<Statement.Aggregate> items = Arrays.asList(null,
+                new Statement.Aggregate(Statement.Aggregate.Function.COUNT, null), new Statement.Aggregate(Statement.Aggregate.Function.SUM, "value"));
+        Aggregation aggregation = new Aggregation(items, new int[] {1, -1, 2}, new int[] {1}, null);
+        StringWriter parallel = new StringWriter();
+        StringWriter single = new StringWriter();
+        try (FileChannel channel = FileChannel.open(file)) {
+            aggregation.aggregateFile(channel, channel.size(), new long[0], 4, new AtomicLong()).writeTo(parallel);
+        }
+        aggregation.aggregateRows(rows, 1).writeTo(single);
+        Files.delete(file);
+        assertTrue(parallel.toString().equals(single.toString()) && single.toString().contains("g0\t28572\t"),
+                "A file aggregated in parallel ranges should match a single-threaded aggregate, but was: " + parallel);
+    }
+
+    // WHERE clauses should filter rows, both with a full scan and when an index can be used (including after a restart)
+    @Test
+    public void testWhereWithAndWithoutIndexes() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55, TRUE);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35, FALSE);");
+        String response = sendCommandToServer("SELECT name FROM marks WHERE mark > 50 AND name LIKE 'Si%';");
+        assertTrue(response.contains("Simon") && response.contains("Sion") && !response.contains("Rob"), "WHERE with AND/LIKE returned the wrong rows: " + response);
+        assertTrue(sendCommandToServer("CREATE INDEX marksbyname ON marks (name) USING HASH;").contains("[OK]"), "A valid CREATE INDEX was not accepted");
+        assertTrue(sendCommandToServer("CREATE INDEX marksbymark ON marks (mark);").contains("[OK]"), "A valid CREATE INDEX was not accepted");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, FALSE);");
+        restartServer(DBServer::new);
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT name FROM marks WHERE name == 'Chris' OR mark < 40;");
+        assertTrue(response.contains("Chris") && response.contains("Rob") && !response.contains("Simon"), "Indexed WHERE with OR returned the wrong rows: " + response);
+        response = sendCommandToServer("SELECT * FROM marks WHERE name == 'Sion';");
+        assertTrue(response.contains("Sion") && !response.contains("Simon"), "Indexed point lookup returned the wrong rows: " + response);
+    }
+
+    // Tables with the same name in different databases are separate tables, so each numbers its own rows
+    @Test
+    public void testSameTableNameInTwoDatabasesHasSeparateIds() {
+        String firstName = generateRandomName();
+        String secondName = generateRandomName();
+        DBSession first = new DBSession();
+        DBSession second = new DBSession();
+        server.handleCommand(first, "CREATE DATABASE " + firstName + ";");
+        server.handleCommand(second, "CREATE DATABASE " + secondName + ";");
+        server.handleCommand(first, "USE " + firstName + ";");
+        server.handleCommand(second, "USE " + secondName + ";");
+        server.handleCommand(first, "CREATE TABLE marks (name, mark);");
+        server.handleCommand(second, "CREATE TABLE marks (name, mark);");
+        server.handleCommand(first, "INSERT INTO marks VALUES ('Simon', 65);");
+        server.handleCommand(first, "INSERT INTO marks VALUES ('Sion', 55);");
+        server.handleCommand(second, "INSERT INTO marks VALUES ('Rob', 35);");
+        String response = server.handleCommand(second, "SELECT id FROM marks WHERE name == 'Rob';");
+        assertTrue(response.contains("\n1"), "The first row of a new table should get ID 1 even if a table with the same name in another database already has rows");
+    }
+
+    // Values are string literals, so keywords, commas and quotes inside them must not confuse the parser
+    @Test
+    public void testValuesContainingKeywordsAndCommas() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE books (title, author);");
+        assertTrue(sendCommandToServer("INSERT INTO books VALUES ('SELECT * FROM VALUES, INTO', 'O''Brien');").contains("[OK]"),
+                "A valid INSERT with keywords and commas inside a string value was rejected");
+        sendCommandToServer("INSERT INTO books VALUES ('Dune', 'Herbert');");
+        String response = sendCommandToServer("SELECT author FROM books WHERE title == 'SELECT * FROM VALUES, INTO';");
+        assertTrue(response.contains("O'Brien") && !response.contains("Herbert"), "A string value containing keywords was not stored or matched intact: " + response);
+        assertTrue(sendCommandToServer("SELECT FROM books;").contains("[ERROR]"), "An invalid SELECT did not return an [ERROR] tag");
+    }
+
+    // Conditions are parsed and evaluated recursively, so one nested too deeply is rejected rather than overflowing the stack
+    @Test
+    public void testDeeplyNestedConditionIsRejected() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        String response = sendCommandToServer("SELECT name FROM marks WHERE " + "(".repeat(20) + "mark > 60" + ")".repeat(20) + ";");
+        assertTrue(response.contains("Simon"), "A condition nested a little should still be answered: " + response);
+        response = sendCommandToServer("SELECT name FROM marks WHERE " + "(".repeat(100000) + "mark > 60" + ")".repeat(100000) + ";");
+        assertTrue(response.equals("[ERROR] Condition nested too deeply"), "Deeply nested parentheses should be rejected: " + response);
+        response = sendCommandToServer("DELETE FROM marks WHERE mark > 60" + " AND mark > 60".repeat(100000) + ";");
+        assertTrue(response.equals("[ERROR] Condition nested too deeply"), "A very long chain of ANDs should be rejected: " + response);
+    }
+
+    // Multi-row INSERT and LOAD DATA should add every row, each with its own ID
+    @Test
+    public void testMultiRowInsertAndLoadData() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        String response = sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE), ('Sion', 55, TRUE), ('Rob', 35, FALSE);");
+        assertTrue(response.contains("[OK]"), "A valid multi-row INSERT was rejected: " + response);
+        Path importDirectory = Paths.get(DBConfig.IMPORT_DIRECTORY);
+        boolean createdDirectory = !Files.exists(importDirectory);
+        Files.createDirectories(importDirectory);
+        Path csvFile = Files.createTempFile(importDirectory, "marks", ".csv");
+        try {
+            Files.writeString(csvFile, "name,mark,pass\n\"Smith, Chris\",20,FALSE\nDave,70,TRUE\n");
+            response = sendCommandToServer("LOAD DATA INFILE '" + csvFile.toAbsolutePath() + "' INTO TABLE marks HEADER;");
+            assertTrue(response.contains("[ERROR]"), "LOAD DATA should not take an absolute path: " + response);
+            response = sendCommandToServer("LOAD DATA INFILE '../" + importDirectory.toAbsolutePath().getFileName() + "/" + csvFile.getFileName() + "/../../pom.xml' INTO TABLE marks;");
+            assertTrue(response.contains("[ERROR]"), "LOAD DATA should not read a file outside the import directory: " + response);
+            response = sendCommandToServer("LOAD DATA INFILE '" + csvFile.getFileName() + "' INTO TABLE marks HEADER;");
+        } finally {
+            Files.delete(csvFile);
+            if (createdDirectory) {
+                Files.delete(importDirectory);
+            }
+        }
+        assertTrue(response.contains("[OK]") && response.contains("2 rows"), "A valid LOAD DATA was rejected: " + response);
+        response = sendCommandToServer("SELECT id, name FROM marks WHERE mark < 30;");
+        assertTrue(response.contains("4\tSmith, Chris"), "A row loaded from a CSV file was not returned with the next ID: " + response);
+        response = sendCommandToServer("SELECT id FROM marks WHERE name == 'Dave';");
+        assertTrue(response.trim().endsWith("5"), "The last loaded row should have been given ID 5: " + response);
+    }
+
+    // UPDATE and DELETE only append to the table file; enough dead rows should get it compacted in the background
+    @Test
+    public void testUpdateDeleteAndCompaction() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE), ('Sion', 55, TRUE), ('Rob', 35, FALSE);");
+        String response = sendCommandToServer("UPDATE marks SET mark = 40, pass = TRUE WHERE name == 'Rob';");
+        assertTrue(response.contains("[OK]") && response.contains("1 row "), "A valid UPDATE was rejected: " + response);
+        response = sendCommandToServer("SELECT * FROM marks WHERE name == 'Rob';");
+        assertTrue(response.contains("3\tRob\t40\tTRUE") && !response.contains("35"), "UPDATE did not replace the old row: " + response);
+        assertTrue(sendCommandToServer("UPDATE marks SET id = 7 WHERE name == 'Rob';").contains("[ERROR]"), "Updating the id column should be rejected");
+        response = sendCommandToServer("DELETE FROM marks WHERE name == 'Sion';");
+        assertTrue(response.contains("[OK]") && response.contains("1 row "), "A valid DELETE was rejected: " + response);
+        assertFalse(sendCommandToServer("SELECT * FROM marks;").contains("Sion"), "A deleted row was still returned");
+
+        StringBuilder insert = new StringBuilder("INSERT INTO marks VALUES ");
+        for (int i = 0; i < 1500; i++) {
+            insert.append(i == 0 ? "" : ", ").append("('Student").append(i).append("', ").append(i % 100).append(", FALSE)");
+        }
+        sendCommandToServer(insert.append(";").toString());
+        Path tableFile = Paths.get("data", randomName, "marks.tsv");
+        long sizeBeforeDelete = Files.size(tableFile);
+        response = sendCommandToServer("DELETE FROM marks WHERE id > 300;");
+        assertTrue(response.contains("1203 rows"), "DELETE did not remove every matching row: " + response);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.size(tableFile) >= sizeBeforeDelete && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(Files.size(tableFile) < sizeBeforeDelete, "The table file was not compacted after most rows were deleted");
+        response = sendCommandToServer("SELECT name FROM marks WHERE id > 2;");
+        assertTrue(response.contains("Rob") && response.contains("Student296") && !response.contains("Student297"), "Rows were lost or revived by compaction: " + response);
+
+        restartServer(DBServer::new);
+        sendCommandToServer("USE " + randomName + ";");
+        response = sendCommandToServer("SELECT * FROM marks WHERE name == 'Rob';");
+        assertTrue(response.contains("3\tRob\t40\tTRUE"), "An updated row did not survive a restart: " + response);
+        response = sendCommandToServer("SELECT id FROM marks;");
+        assertFalse(response.contains("301") || response.contains("\n2\n"), "Deleted rows came back after a restart: " + response);
+    }
+
+    // A SELECT reads a snapshot: INSERTs are not held up while it streams to a slow client, and it does not see their rows
+    @Test
+    public void testSelectReadsASnapshot() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, TRUE), ('Sion', 55, TRUE), ('Rob', 35, FALSE);");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StringWriter selected = new StringWriter();
+        Writer slowClient = new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) throws IOException {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                selected.write(buffer, offset, length);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        DBSession session = new DBSession();
+        server.handleCommand(session, "USE " + randomName + ";");
+        Thread select = new Thread(() -> {
+            try {
+                server.handleCommand(session, "SELECT * FROM marks;", slowClient);
+            } catch (IOException e) {
+                selected.write("[ERROR] " + e.getMessage());
+            }
+        });
+        select.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS), "The SELECT never started writing its result");
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, FALSE);").contains("[OK]"), "An INSERT was rejected while a SELECT was running");
+        release.countDown();
+        select.join(5000);
+        assertTrue(selected.toString().contains("Rob") && !selected.toString().contains("Chris"), "The SELECT did not read a snapshot: " + selected);
+        assertTrue(sendCommandToServer("SELECT * FROM marks;").contains("Chris"), "A row inserted during a SELECT was lost");
+    }
+
+    // The columnar engine gives the same answers as the table files, follows inserts, UPDATEs and DELETEs, and keeps its columns across a restart
+    @Test
+    public void testColumnarStorageEngine() {
+        restartServer(() -> new DBServer(DBConfig.TABLE_CACHE_MAX_BYTES, "columnar"));
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, course, mark, pass, notes);");
+        StringBuilder insert = new StringBuilder("INSERT INTO marks VALUES ");
+        for (int i = 0; i < 200; i++) {
+            insert.append(i == 0 ? "" : ", ").append("('Student").append(i).append("', '").append(i % 2 == 0 ? "COMS" : "MATH")
+                    .append("', ").append(i % 100).append(", ").append(i % 100 >= 40 ? "TRUE" : "FALSE").append(", 'Note ").append(i).append("')");
+        }
+        sendCommandToServer(insert.append(";").toString());
+        String response = sendCommandToServer("SELECT name FROM marks WHERE mark == 99;");
+        assertTrue(response.contains("Student99") && response.contains("Student199") && !response.contains("MATH"), "A narrow SELECT returned the wrong rows: " + response);
+        assertTrue(Files.exists(Paths.get("data", randomName, "marks.columns", "meta")), "The columns of the table should have been saved");
+
+        sendCommandToServer("UPDATE marks SET mark = 100 WHERE name == 'Student5';");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Student6';");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 'COMS', 'absent', FALSE, 'A mark that is not a number');");
+        response = sendCommandToServer("SELECT name, mark FROM marks WHERE course == 'MATH' AND mark > 90;");
+        assertTrue(response.contains("Student5\t100") && response.contains("Student91\t91") && !response.contains("Student6"), "Changes were not seen by the columns: " + response);
+        response = sendCommandToServer("SELECT course, COUNT(*) FROM marks GROUP BY course;");
+        assertTrue(response.contains("COMS\t100") && response.contains("MATH\t100"), "An aggregate over the columns was wrong: " + response);
+        assertTrue(sendCommandToServer("SELECT mark FROM marks WHERE name == 'Chris';").contains("absent"), "A value that did not fit its column was lost");
+
+        restartServer(() -> new DBServer(DBConfig.TABLE_CACHE_MAX_BYTES, "columnar"));
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 'MATH', 35, FALSE, 'Late');");
+        response = sendCommandToServer("SELECT * FROM marks WHERE pass == FALSE AND course == 'MATH';");
+        assertTrue(response.contains("Rob") && response.contains("Student39\tMATH\t39\tFALSE\tNote 39") && !response.contains("Student41"), "The columns were not right after a restart: " + response);
+    }
+
+    // Typed columns only take values of their type, stored in one form, and the types survive a restart
+    @Test
+    public void testTypedColumns() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        String response = sendCommandToServer("CREATE TABLE marks (name VARCHAR, mark INT, score DOUBLE, pass BOOLEAN, total BIGINT, notes);");
+        assertTrue(response.contains("[OK]"), "A CREATE TABLE with column types was rejected: " + response);
+        assertTrue(sendCommandToServer("CREATE TABLE other (name TEXT);").contains("[ERROR]"), "An unknown column type should be rejected");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, 65, true, 10000000000, 'First');");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', +55, 55.5, FALSE, 7, 'Second'), ('Rob', NULL, 35, FALSE, 8, 35);");
+        response = sendCommandToServer("INSERT INTO marks VALUES ('Chris', 'twenty', 20, FALSE, 9, 'Third');");
+        assertTrue(response.contains("[ERROR]") && response.contains("INT"), "A value that is not an INT should be rejected: " + response);
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, 20, maybe, 9, 'Third');").contains("[ERROR]"), "A value that is not a BOOLEAN should be rejected");
+        assertTrue(sendCommandToServer("UPDATE marks SET total = 1.5 WHERE name == 'Rob';").contains("[ERROR]"), "An UPDATE to a value that is not a BIGINT should be rejected");
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20);").contains("[ERROR]"), "A row with too few values should be rejected");
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20, 20, FALSE, 9, 'Third', 'extra');").contains("[ERROR]"), "A row with too many values should be rejected");
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Ann', 1, 1, TRUE, 1, 'x'), ('Chris', 20);").contains("[ERROR]")
+                && !sendCommandToServer("SELECT name FROM marks;").contains("Ann"), "No row of an INSERT with a short row should be stored");
+
+        response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.contains("1\tSimon\t65\t65.0\tTRUE\t10000000000\tFirst") && response.contains("2\tSion\t55\t55.5\tFALSE"), "Values were not stored in the form of their type: " + response);
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark >= 55 AND mark <= 60 AND score < 60.5;");
+        assertTrue(response.contains("Sion") && !response.contains("Simon") && !response.contains("Rob"), "A condition on typed columns returned the wrong rows: " + response);
+        response = sendCommandToServer("SELECT name FROM marks WHERE pass == true AND score == 65;");
+        assertTrue(response.contains("Simon") && !response.contains("Sion"), "A literal should be compared in the form its column stores it in: " + response);
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE mark < 60.5;").contains("Sion"), "A number should still compare with an INT column");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE pass == maybe;").contains("[ERROR]"), "A literal that is not of its column's type should be rejected");
+        response = sendCommandToServer("SELECT name FROM marks WHERE total > 9 OR mark == NULL;");
+        assertTrue(response.contains("Simon") && response.contains("Rob") && !response.contains("Sion"), "A condition on a BIGINT or a NULL returned the wrong rows: " + response);
+        sendCommandToServer("UPDATE marks SET score = 70 WHERE name == 'Rob';");
+        assertTrue(sendCommandToServer("SELECT score FROM marks WHERE name == 'Rob';").contains("70.0"), "An updated DOUBLE was not stored as one");
+
+        restartServer(DBServer::new);
+        sendCommandToServer("USE " + randomName + ";");
+        assertTrue(Files.exists(Paths.get("data", randomName, "marks" + TableCatalog.SCHEMA_SUFFIX)), "The schema should have been saved");
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Chris', 'twenty', 20, FALSE, 9, 'Third');").contains("[ERROR]"), "Column types were lost on restart");
+        response = sendCommandToServer("SELECT name FROM marks WHERE pass == FALSE AND score > 50;");
+        assertTrue(response.contains("Sion") && response.contains("Rob") && !response.contains("Simon"), "A condition on a BOOLEAN returned the wrong rows after a restart: " + response);
+    }
+
+    // Commands pipelined on one connection are answered in order, while many other connections sit idle
+    @Test
+    public void testPipelinedCommandsOverTheNetwork() throws Exception {
+        String randomName = generateRandomName();
+        try (SelectorServer network = server.listen(0)) {
+            List<Socket> idle = new ArrayList<>();
+            try (DBClient client = new DBClient("localhost", network.getPort())) {
+                for (int i = 0; i < 200; i++) {
+                    idle.add(new Socket("localhost", network.getPort()));
+                }
+                List<CompletableFuture<String>> responses = new ArrayList<>();
+                responses.add(client.submit("CREATE DATABASE " + randomName + ";"));
+                responses.add(client.submit("USE " + randomName + ";"));
+                responses.add(client.submit("CREATE TABLE marks (name, mark INT);"));
+                for (int i = 0; i < 500; i++) {
+                    responses.add(client.submit("INSERT INTO marks VALUES ('Student" + i + "', " + i + ");"));
+                }
+                responses.add(client.submit("SELECT name FROM marks WHERE mark >= 498;"));
+                responses.add(client.submit("SELECT COUNT(*) FROM marks;"));
+                for (int i = 0; i < responses.size() - 2; i++) {
+                    String response = responses.get(i).get(10, TimeUnit.SECONDS);
+                    assertTrue(response.startsWith("[OK]"), "Pipelined command " + i + " failed: " + response);
+                }
+                String selected = responses.get(responses.size() - 2).get(10, TimeUnit.SECONDS);
+                assertTrue(selected.equals("[OK]\nStudent498\nStudent499"), "A pipelined SELECT did not see the INSERTs sent before it: " + selected);
+                assertTrue(responses.get(responses.size() - 1).get(10, TimeUnit.SECONDS).equals("[OK]\n500"), "Responses came back out of order");
+                assertTrue(client.send("SELECT name FROM marks WHERE name == 'Student7';").contains("Student7"), "The connection stopped working after a pipelined batch");
+            } finally {
+                for (Socket socket : idle) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    // A command that throws something other than an IOException closes its connection, so later pipelined commands are not left waiting
+    @Test
+    public void testFailedCommandClosesItsConnection() throws Exception {
+        String randomName = generateRandomName();
+        try (SelectorServer network = server.listen(0); DBClient client = new DBClient("localhost", network.getPort())) {
+            client.send("CREATE DATABASE " + randomName + ";");
+            client.send("USE " + randomName + ";");
+            client.send("CREATE TABLE marks (name, mark);");
+            String response = client.send("SELECT name FROM marks WHERE " + "(".repeat(100000) + "mark > 60" + ")".repeat(100000) + ";");
+            assertTrue(response.startsWith("[ERROR]"), "A deeply nested WHERE should be answered with an error: " + response);
+        }
+        SelectorServer.CommandHandler handler = (session, command, out) -> {
+            if (command.startsWith("OVERFLOW")) {
+                throw new StackOverflowError();
+            }
+            out.write("[OK]");
+        };
+        try (SelectorServer network = new SelectorServer(handler, new ServerMetrics(), Executors.newFixedThreadPool(2), 0)) {
+            network.start();
+            try (DBClient client = new DBClient("localhost", network.getPort())) {
+                CompletableFuture<String> failed = client.submit("OVERFLOW;");
+                CompletableFuture<String> next = client.submit("STATS;");
+                for (CompletableFuture<String> response : List.of(failed, next)) {
+                    try {
+                        response.get(10, TimeUnit.SECONDS);
+                        fail("A connection whose command failed should have been closed");
+                    } catch (ExecutionException e) {
+                        // closed, as expected
+                    }
+                }
+            }
+            try (DBClient client = new DBClient("localhost", network.getPort())) {
+                assertTrue(client.send("STATS;").equals("[OK]"), "Other connections should still be served after a command failed");
+            }
+        }
+    }
+
+    // A stored value of EOT comes back as itself, over several chunks of a response, without ending the response early
+    @Test
+    public void testPipelinedValuesThatReadAsEndOfResponse() throws Exception {
+        String randomName = generateRandomName();
+        try (SelectorServer network = server.listen(0); DBClient client = new DBClient("localhost", network.getPort())) {
+            StringBuilder insert = new StringBuilder("INSERT INTO words VALUES ('EOT'), ('\\EOT'), ('EOTS')");
+            for (int i = 0; i < 5000; i++) {
+                insert.append(", ('EOT')");
+            }
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            responses.add(client.submit("CREATE DATABASE " + randomName + ";"));
+            responses.add(client.submit("USE " + randomName + ";"));
+            responses.add(client.submit("CREATE TABLE words (word);"));
+            responses.add(client.submit(insert + ";"));
+            responses.add(client.submit("SELECT word FROM words WHERE id <= 3;"));
+            responses.add(client.submit("SELECT word FROM words;"));
+            responses.add(client.submit("SELECT COUNT(*) FROM words;"));
+            for (int i = 0; i < 4; i++) {
+                String response = responses.get(i).get(10, TimeUnit.SECONDS);
+                assertTrue(response.startsWith("[OK]"), "Pipelined command " + i + " failed: " + response);
+            }
+            String selected = responses.get(4).get(10, TimeUnit.SECONDS);
+            assertTrue(selected.equals("[OK]\nEOT\n\\EOT\nEOTS"), "Values that read as EOT came back wrongly: " + selected);
+            String[] lines = responses.get(5).get(10, TimeUnit.SECONDS).split("\n");
+            assertTrue(lines.length == 5004 && lines[5003].equals("EOT"), "A long result of EOT values was cut short: " + lines.length + " lines");
+            assertTrue(responses.get(6).get(10, TimeUnit.SECONDS).equals("[OK]\n5003"), "A value of EOT shifted the responses that followed it");
+        }
+    }
+
+    // A repeated SELECT is answered from the result cache without reading the table, until the table changes
+    @Test
+    public void testResultCacheFollowsTableVersions() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark INT);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65), ('Sion', 55), ('Rob', 35);");
+        String first = sendCommandToServer("SELECT name FROM marks WHERE mark > 50;");
+        String tableStats = "table " + randomName + "/marks ";
+        String before = sendCommandToServer("STATS;");
+        String second = sendCommandToServer("SELECT  name FROM marks  WHERE mark>50 ;");
+        String after = sendCommandToServer("STATS;");
+        assertTrue(second.equals(first), "A cached response differed from the original: " + second);
+        assertTrue(after.contains("cache resultCache hits=1 "), "The repeated SELECT should have been a result cache hit: " + after);
+        String readBefore = before.substring(before.indexOf(tableStats)).split("\n")[0];
+        String readAfter = after.substring(after.indexOf(tableStats)).split("\n")[0];
+        assertTrue(readBefore.equals(readAfter), "A result cache hit still read the table: " + readBefore + " then " + readAfter);
+
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 75);");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE mark > 50;").contains("Chris"), "An INSERT did not invalidate the cached result");
+        sendCommandToServer("UPDATE marks SET mark = 20 WHERE name == 'Simon';");
+        assertFalse(sendCommandToServer("SELECT name FROM marks WHERE mark > 50;").contains("Simon"), "An UPDATE did not invalidate the cached result");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Sion';");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE mark > 50;").equals("[OK]\nChris"), "A DELETE did not invalidate the cached result");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE mark > 90;").contains("[ERROR]"), "An empty result should still be an error");
+        sendCommandToServer("INSERT INTO marks VALUES ('Dan', 95);");
+        assertTrue(sendCommandToServer("SELECT name FROM marks WHERE mark > 90;").contains("Dan"), "A cached empty result was not invalidated");
+    }
+
+    // ORDER BY and LIMIT, a LIMIT without ORDER BY stopping the scan early, and a spilled sort giving the same rows as one in memory
+    @Test
+    public void testOrderByAndLimit() throws IOException {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark INT);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65), ('Sion', 55), ('Rob', 35), ('Chris', 65), ('Dan', NULL);");
+        String response = sendCommandToServer("SELECT name, mark FROM marks ORDER BY mark DESC, name;");
+        assertTrue(response.equals("[OK]\nDan\tNULL\nChris\t65\nSimon\t65\nSion\t55\nRob\t35"), "Rows should be sorted by mark then name, but were: " + response);
+        response = sendCommandToServer("SELECT name FROM marks ORDER BY mark LIMIT 2 OFFSET 1;");
+        assertTrue(response.equals("[OK]\nSion\nSimon"), "A page of a sorted table should keep rows with equal marks in table order, but was: " + response);
+        response = sendCommandToServer("SELECT name FROM marks WHERE mark > 40 LIMIT 2;");
+        assertTrue(response.equals("[OK]\nSimon\nSion"), "LIMIT without ORDER BY should return the first matching rows, but returned: " + response);
+        assertTrue(sendCommandToServer("SELECT name FROM marks LIMIT 2 OFFSET 5;").contains("[ERROR]"), "A page past the last row should be empty");
+        assertTrue(sendCommandToServer("SELECT name FROM marks LIMIT -1;").contains("[ERROR]"), "A negative LIMIT should be rejected");
+        assertTrue(sendCommandToServer("SELECT COUNT(*) FROM marks ORDER BY name;").contains("[ERROR]"), "ORDER BY should be rejected with an aggregate");
+
+        StringBuilder insert = new StringBuilder("INSERT INTO marks VALUES ('x', 0)");
+        for (int i = 1; i < 3000; i++) {
+            insert.append(", ('x', ").append(i).append(')');
+        }
+        sendCommandToServer(insert.append(';').toString());
+        String before = sendCommandToServer("STATS;");
+        assertTrue(sendCommandToServer("SELECT mark FROM marks WHERE mark >= 0 LIMIT 3;").equals("[OK]\n65\n55\n35"), "LIMIT should return the first rows of a large table");
+        String after = sendCommandToServer("STATS;");
+        long scanned = Long.parseLong(after.split("rows scanned=")[1].split(" ")[0]) - Long.parseLong(before.split("rows scanned=")[1].split(" ")[0]);
+        assertTrue(scanned > 0 && scanned < 3000, "A LIMIT without ORDER BY should stop scanning early, but scanned " + scanned + " rows");
+        sendCommandToServer("CREATE TABLE labels (label);");
+        sendCommandToServer("INSERT INTO labels VALUES ('x');");
+        before = sendCommandToServer("STATS;");
+        String joined = sendCommandToServer("SELECT mark FROM marks JOIN labels ON marks.name == labels.label LIMIT 3;");
+        assertTrue(joined.equals("[OK]\n0\n1\n2"), "A JOIN with a LIMIT should return the first joined rows, but returned: " + joined);
+        after = sendCommandToServer("STATS;");
+        scanned = Long.parseLong(after.split("rows scanned=")[1].split(" ")[0]) - Long.parseLong(before.split("rows scanned=")[1].split(" ")[0]);
+        assertTrue(scanned > 0 && scanned < 3000, "A JOIN with a LIMIT and no ORDER BY should stop joining early, but joined " + scanned + " rows");
+
+        Random random = new Random(42);
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(new String[] {Integer.toString(i), Integer.toString(random.nextInt(100)), random.nextInt(10) == 0 ? "" : "v" + random.nextInt(50)});
+        }
+        Path spillDirectory = Files.createTempDirectory("sort-test");
+        for (long limit : new long[] {-1, 25}) {
+            List<String> inMemory = new ArrayList<>();
+            List<String> spilled = new ArrayList<>();
+            try (RowSorter sorter = new RowSorter(new int[] {1, 2}, new boolean[] {false, true}, 10, limit, Long.MAX_VALUE, 64, spillDirectory)) {
+                for (String[] row : rows) sorter.visit(row);
+                sorter.writeTo(row -> inMemory.add(String.join(",", row)));
+            }
+            try (RowSorter sorter = new RowSorter(new int[] {1, 2}, new boolean[] {false, true}, 10, limit, 2000, 64, spillDirectory)) {
+                for (String[] row : rows) sorter.visit(row);
+                sorter.writeTo(row -> spilled.add(String.join(",", row)));
+            }
+            assertTrue(inMemory.size() == (limit < 0 ? 990 : limit) && inMemory.equals(spilled), "A spilled sort should return the same rows as an in-memory one, but returned " + spilled.size());
+            // A fan-in of 2 merges the many runs in several passes
+            List<String> multiPass = new ArrayList<>();
+            try (RowSorter sorter = new RowSorter(new int[] {1, 2}, new boolean[] {false, true}, 10, limit, 2000, 2, spillDirectory)) {
+                for (String[] row : rows) sorter.visit(row);
+                sorter.writeTo(row -> multiPass.add(String.join(",", row)));
+            }
+            assertTrue(inMemory.equals(multiPass), "A sort merged in several passes should return the same rows, but returned " + multiPass.size());
+        }
+        try (Stream<Path> leftover = Files.list(spillDirectory)) {
+            assertTrue(leftover.count() == 0, "Sort runs should be deleted once the sort has finished");
+        }
+        Files.delete(spillDirectory);
+    }
+
+    // A table file scanned in byte ranges on several threads gives the same rows, in the same order, as one read line by line
+    @Test
+    public void testParallelScanKeepsFileOrder() throws Exception {
+        Path file = Files.createTempFile("scan-test", ".tsv");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            StringBuilder text = new StringBuilder("id\tname\tmark\n");
+            for (int i = 1; i <= 5000; i++) {
+                text.append(i).append("\tname").append(i % 97).append('\t').append(i % 100).append('\n');
+            }
+            Files.writeString(file, text);
+            List<String> sequential = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            try (TableFileReader reader = new TableFileReader(file)) {
+                reader.readLine();
+                String[] row;
+                while ((row = reader.readRow()) != null) {
+                    sequential.add(reader.getLineOffset() + ":" + String.join(",", row));
+                    offsets.add(reader.getLineOffset());
+                }
+            }
+            long[] dead = {offsets.get(0), offsets.get(2500), offsets.get(4999)};
+            sequential.remove(4999);
+            sequential.remove(2500);
+            sequential.remove(0);
+
+            ParallelScan parallelScan = new ParallelScan(executor, 4, 1000);
+            List<String> parallel = new ArrayList<>();
+            AtomicLong scanned = new AtomicLong();
+            try (FileChannel channel = FileChannel.open(file)) {
+                assertTrue(parallelScan.isWorthwhile(channel.size()), "A file bigger than one range should be split");
+                long bytesRead = parallelScan.scan(channel, channel.size(), dead, null, (row, offset) -> parallel.add(offset + ":" + String.join(",", row)), scanned);
+                assertTrue(bytesRead >= channel.size(), "Every byte of the file should have been read, but only " + bytesRead + " were");
+                assertTrue(parallel.equals(sequential) && scanned.get() == 4997, "A parallel scan should return every live row in file order, but returned " + parallel.size());
+
+                List<String[]> firstRows = new ArrayList<>();
+                parallelScan.scan(channel, channel.size(), new long[0], null, new OffsetRowVisitor() {
+                    @Override
+                    public void visit(String[] row, long offset) {
+                        firstRows.add(row);
+                    }
+
+                    @Override
+                    public boolean isDone() {
+                        return firstRows.size() == 7;
+                    }
+                }, new AtomicLong());
+                assertTrue(firstRows.size() == 7 && firstRows.get(6)[0].equals("7"), "A scan should stop as soon as its visitor is done");
+            }
+        } finally {
+            executor.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    // The load generator sends its mix at the requested rate over several connections and reports every response
+    @Test
+    public void testLoadGeneratorReportsLatencies() throws Exception {
+        String randomName = generateRandomName();
+        try (SelectorServer network = server.listen(0)) {
+            LoadGenerator generator = new LoadGenerator("localhost", network.getPort(), 4, 400, 1000,
+                    LoadGenerator.parseMix("select=60,insert=35,use=4,create=1"), randomName);
+            LoadGenerator.Report report = generator.run();
+            assertTrue(report.getSent() == 400 && report.getCompleted() == 400 && report.getFailed() == 0, "Every command sent should have been answered: " + report.format());
+            assertTrue(report.getErrors() == 0, "No command in the mix should have failed: " + report.format());
+            assertTrue(report.getLatencies(LoadGenerator.Operation.SELECT).getCount() > 0 && report.getLatencies(LoadGenerator.Operation.INSERT).getCount() > 0,
+                    "Both SELECTs and INSERTs should have been sent: " + report.format());
+            assertTrue(report.format().contains("latency ALL count=400 p50="), "The report should list latency percentiles: " + report.format());
+        }
+        sendCommandToServer("USE " + randomName + ";");
+        String count = sendCommandToServer("SELECT COUNT(*) FROM load;");
+        assertTrue(Long.parseLong(count.substring("[OK]\n".length())) > 100, "The INSERTs should have reached the table beside the 100 seeded rows: " + count);
+    }
+
+    // The load generator counts a SELECT whose result an error cut short as an error, not a success
+    @Test
+    public void testLoadGeneratorCountsCutShortResultsAsErrors() throws Exception {
+        SelectorServer.CommandHandler handler = (session, command, out) -> {
+            if (command.startsWith("SELECT")) {
+                out.write("[OK]\nid\tname\n1\tload\n[ERROR] Result cut short");
+            } else {
+                out.write("[OK]");
+            }
+        };
+        try (SelectorServer network = new SelectorServer(handler, new ServerMetrics(), Executors.newFixedThreadPool(2), 0)) {
+            network.start();
+            LoadGenerator generator = new LoadGenerator("localhost", network.getPort(), 2, 200, 500,
+                    LoadGenerator.parseMix("select=1"), generateRandomName());
+            LoadGenerator.Report report = generator.run();
+            assertTrue(report.getCompleted() > 0 && report.getFailed() == 0, "Every command sent should have been answered: " + report.format());
+            assertTrue(report.getErrors() == report.getCompleted(), "Every cut-short SELECT should have counted as an error: " + report.format());
+        }
+    }
+
+    // A binary connection returns the same text as a text one, with typed SELECT rows, in fewer bytes
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name VARCHAR, mark INT, score DOUBLE, pass BOOLEAN, notes);");
+        for (int batch = 0; batch < 10; batch++) {
+            StringBuilder insert = new StringBuilder("INSERT INTO marks VALUES ");
+            for (int i = 0; i < 300; i++) {
+                int row = batch * 300 + i;
+                insert.append(i == 0 ? "" : ", ").append("('student").append(row).append("', ").append(row % 100).append(", ")
+                        .append(row % 7 == 0 ? "NULL" : (row % 100) + ".5").append(", ").append(row % 2 == 0 ? "TRUE" : "FALSE").append(", 'note ").append(row).append("')");
+            }
+            sendCommandToServer(insert.append(';').toString());
+        }
+        String[] commands = {"USE " + randomName + ";", "SELECT * FROM marks;", "SELECT name, score FROM marks WHERE mark == 42;",
+                "SELECT * FROM marks WHERE mark > 1000;", "SELECT * FROM missing;", "INSERT INTO marks VALUES ('Sion', 55, 55.5, FALSE, 'x');", "STATS;"};
+        try (SelectorServer network = server.listen(0);
+             DBClient text = new DBClient("localhost", network.getPort());
+             DBClient binary = new DBClient("localhost", network.getPort(), DBClient.Protocol.BINARY);
+             DBClient compressed = new DBClient("localhost", network.getPort(), DBClient.Protocol.BINARY_COMPRESSED)) {
+            for (String command : commands) {
+                String expected = text.send(command);
+                if (command.startsWith("STATS")) {
+                    continue;
+                }
+                assertTrue(binary.send(command).equals(expected), "A binary response should read the same as a text one for " + command);
+                assertTrue(compressed.send(command).equals(expected), "A compressed response should read the same as a text one for " + command);
+            }
+            assertTrue(binary.send("STATS;").startsWith("[OK]\n") && binary.send("CREATE TABLE marks (a);").startsWith("[ERROR]"), "Other responses should come through a binary connection too");
+
+            DBClient.Response response = binary.query("SELECT name, mark, score, pass FROM marks WHERE mark == 7;").join();
+            List<Object[]> rows = response.getRows();
+            assertTrue(response.isOk() && rows.size() == 30, "A SELECT should come back as its rows: " + response.getText());
+            assertTrue(Arrays.asList(rows.get(0)).equals(Arrays.asList("student7", 7L, null, Boolean.FALSE))
+                    && Arrays.asList(rows.get(1)).equals(Arrays.asList("student107", 7L, 7.5, Boolean.FALSE)), "Values should arrive typed");
+            response = binary.query("SELECT * FROM missing;").join();
+            assertTrue(!response.isOk() && response.getRows().isEmpty() && response.getText().startsWith("[ERROR]"), "An error should stay text");
+            response = binary.query("STATS;").join();
+            assertTrue(response.isOk() && response.getRows().isEmpty() && response.getText().startsWith("[OK]\n"), "Only a SELECT result should come back as rows");
+            // Values are typed by their column, not by what their text looks like
+            binary.send("INSERT INTO marks VALUES ('12', 12, 12.5, TRUE, '3.5');");
+            for (int i = 0; i < 2; i++) {
+                response = binary.query("SELECT name, mark, notes FROM marks WHERE name == '12';").join();
+                assertTrue(response.getRows().size() == 1 && Arrays.asList(response.getRows().get(0)).equals(Arrays.asList("12", 12L, "3.5")),
+                        "A VARCHAR that looks like a number should stay a string, cached or not: " + response.getText());
+                response = binary.query("SELECT COUNT(*), AVG(mark), MAX(pass) FROM marks WHERE mark == 7;").join();
+                assertTrue(response.getRows().size() == 1 && Arrays.asList(response.getRows().get(0)).equals(Arrays.asList(30L, 7.0, Boolean.FALSE)),
+                        "Aggregates should be typed too, cached or not: " + response.getText());
+            }
+
+            long[] bytes = new long[3];
+            DBClient[] clients = {text, binary, compressed};
+            for (int i = 0; i < clients.length; i++) {
+                long before = clients[i].getBytesReceived();
+                clients[i].send("SELECT * FROM marks;");
+                bytes[i] = clients[i].getBytesReceived() - before;
+            }
+            assertTrue(bytes[1] < bytes[0] && bytes[2] < bytes[1], "Binary and compressed results should be smaller than text: " + Arrays.toString(bytes));
+        }
+    }
+
+    // A NULL only equals NULL, so range conditions leave NULL rows out as aggregates do, cached or not
+    @Test
+    public void testComparisonsWithNull() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark INT, grade);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65, 'A'), ('Sion', NULL, NULL), ('Rob', 35, 'C');");
+        for (long cacheBytes : new long[] {DBConfig.TABLE_CACHE_MAX_BYTES, 0}) {
+            restartServer(() -> new DBServer(cacheBytes));
+            sendCommandToServer("USE " + randomName + ";");
+            String response = sendCommandToServer("SELECT name FROM marks WHERE mark > 1;");
+            assertTrue(response.contains("Simon") && response.contains("Rob") && !response.contains("Sion"), "A NULL should not be greater than a number: " + response);
+            response = sendCommandToServer("SELECT name FROM marks WHERE grade >= 'A' OR mark <= 100 OR grade LIKE '%';");
+            assertTrue(!response.contains("Sion"), "No ordering comparison should hold for a NULL: " + response);
+            response = sendCommandToServer("SELECT name FROM marks WHERE mark != 65;");
+            assertTrue(response.contains("Sion") && response.contains("Rob") && !response.contains("Simon"), "A NULL should not equal a number: " + response);
+            response = sendCommandToServer("SELECT name FROM marks WHERE mark == NULL AND grade == NULL;");
+            assertTrue(response.contains("Sion") && !response.contains("Rob"), "A NULL should equal NULL: " + response);
+            assertTrue(sendCommandToServer("SELECT COUNT(*) FROM marks WHERE mark > 1;").contains("[OK]\n2"), "Filters and aggregates should agree about NULL");
+        }
+    }
+
+    // The string 'NULL' is text, not NULL: it is counted, ordered and matched like any other value, cached or not
+    @Test
+    public void testNullStringIsNotNull() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, grade);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 'NULL'), ('Sion', NULL), ('Rob', 'C');");
+        for (long cacheBytes : new long[] {DBConfig.TABLE_CACHE_MAX_BYTES, 0}) {
+            restartServer(() -> new DBServer(cacheBytes));
+            sendCommandToServer("USE " + randomName + ";");
+            assertTrue(sendCommandToServer("SELECT COUNT(grade) FROM marks;").equals("[OK]\n2"), "COUNT should count the string 'NULL' but not NULL");
+            String response = sendCommandToServer("SELECT name FROM marks WHERE grade == 'NULL';");
+            assertTrue(response.contains("Simon") && !response.contains("Sion"), "Only the string 'NULL' should equal 'NULL': " + response);
+            response = sendCommandToServer("SELECT name FROM marks WHERE grade == NULL;");
+            assertTrue(response.contains("Sion") && !response.contains("Simon"), "Only NULL should equal NULL: " + response);
+            response = sendCommandToServer("SELECT name FROM marks WHERE grade > 'D';");
+            assertTrue(response.contains("Simon") && !response.contains("Sion"), "The string 'NULL' should be ordered as text: " + response);
+            response = sendCommandToServer("SELECT name, grade FROM marks WHERE name == 'Sion';");
+            assertTrue(response.equals("[OK]\nSion\tNULL"), "NULL should still be shown as NULL: " + response);
+        }
+        assertTrue(sendCommandToServer("INSERT INTO marks VALUES ('Chris', 'a\0b');").contains("[ERROR]"), "A value with a NUL character should be rejected");
+    }
+
+    // BIGINTs above 2^53 that are the same double still compare by their exact values, cached or not and through an index
+    @Test
+    public void testBigintsBeyondDoublePrecision() {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE totals (name, total BIGINT);");
+        sendCommandToServer("INSERT INTO totals VALUES ('Simon', 9007199254740993), ('Sion', 9007199254740992);");
+        for (long cacheBytes : new long[] {DBConfig.TABLE_CACHE_MAX_BYTES, 0}) {
+            restartServer(() -> new DBServer(cacheBytes));
+            sendCommandToServer("USE " + randomName + ";");
+            String response = sendCommandToServer("SELECT name FROM totals WHERE total == 9007199254740993;");
+            assertTrue(response.contains("Simon") && !response.contains("Sion"), "Neighbouring BIGINTs should not be equal: " + response);
+            response = sendCommandToServer("SELECT name FROM totals WHERE total < 9007199254740993;");
+            assertTrue(response.contains("Sion") && !response.contains("Simon"), "Neighbouring BIGINTs were ordered wrongly: " + response);
+            response = sendCommandToServer("SELECT name FROM totals ORDER BY total DESC;");
+            assertTrue(response.indexOf("Simon") < response.indexOf("Sion"), "ORDER BY put neighbouring BIGINTs the wrong way round: " + response);
+            assertTrue(sendCommandToServer("SELECT MAX(total) FROM totals;").contains("9007199254740993"), "MAX should pick the larger BIGINT");
+        }
+        sendCommandToServer("CREATE INDEX totalsbytotal ON totals (total) USING HASH;");
+        String response = sendCommandToServer("SELECT name FROM totals WHERE total == 9007199254740992;");
+        assertTrue(response.contains("Sion") && !response.contains("Simon"), "A hash index should keep neighbouring BIGINTs apart: " + response);
+    }
+
+    // Closing a server commits what its logs hold and stops every thread it started
+    @Test
+    public void testCloseStopsBackgroundThreads() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        server.close();
+        List<String> prefixes = List.of("wal-", "table-loader-", "table-scanner-", "table-compactor-", "stats-dump-");
+        List<String> running = new ArrayList<>();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            running.clear();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.isAlive() && prefixes.stream().anyMatch(thread.getName()::startsWith)) {
+                    running.add(thread.getName());
+                }
+            }
+            if (running.isEmpty()) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertTrue(running.isEmpty(), "Threads were still running after the server was closed: " + running);
+        server = new DBServer();
+        sendCommandToServer("USE " + randomName + ";");
+        assertTrue(sendCommandToServer("SELECT * FROM marks;").contains("Simon"), "A row was lost when the server was closed");
+    }
+
+    // A row that is in the log is committed, so failing to append it to its table is retried rather than reported
+    @Test
+    public void testLoggedRowsAreAppliedAfterATableWriteFails() throws Exception {
+        Path dbPath = Files.createTempDirectory("wal-test");
+        Path tablePath = dbPath.resolve("marks.tsv");
+        // A directory cannot be appended to, so every attempt fails until it is replaced by the table
+        Files.createDirectory(tablePath);
+        WriteAheadLog.RowListener ignore = new WriteAheadLog.RowListener() {
+            @Override
+            public void rowApplied(Path table, String[] row, long offset, long length) {
+            }
+
+            @Override
+            public void rowDeleted(Path table, long rowOffset, long tombstoneOffset, long length) {
+            }
+        };
+        try (WriteAheadLog log = new WriteAheadLog(dbPath, WriteAheadLog.SyncPolicy.COMMIT, 0, Long.MAX_VALUE,
+                new TableLocks(4), ignore, () -> { })) {
+            CompletableFuture<Void> write = log.submit("marks", List.<String[]>of(new String[] {"1", "Simon", "65"}));
+            Thread.sleep(200);
+            assertTrue(!write.isDone(), "A row that is in the log should not be reported as failed");
+            Files.delete(tablePath);
+            Files.writeString(tablePath, "id\tname\tmark\n");
+            write.get(10, TimeUnit.SECONDS);
+        }
+        List<String> lines = Files.readAllLines(tablePath);
+        assertTrue(lines.equals(List.of("id\tname\tmark", "1\tSimon\t65")), "The row should have been appended once: " + lines);
+    }
+
+    // A large SELECT result streams through in full, and reads the same over the text and binary protocols
+    @Test
+    public void testLargeResultIsStreamed() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark INT);");
+        for (int batch = 0; batch < 20; batch++) {
+            StringBuilder insert = new StringBuilder("INSERT INTO marks VALUES ");
+            for (int i = 0; i < 1000; i++) {
+                insert.append(i == 0 ? "" : ", ").append("('student").append(batch * 1000 + i).append("', ").append(i % 100).append(")");
+            }
+            sendCommandToServer(insert.append(';').toString());
+        }
+        try (SelectorServer network = server.listen(0);
+             DBClient text = new DBClient("localhost", network.getPort());
+             DBClient binary = new DBClient("localhost", network.getPort(), DBClient.Protocol.BINARY)) {
+            text.send("USE " + randomName + ";");
+            binary.send("USE " + randomName + ";");
+            DBClient.Response response = text.query("SELECT * FROM marks;").join();
+            assertTrue(response.isOk() && response.getRows().size() == 20_000, "Every row of a large result should arrive, but " + response.getRows().size() + " did");
+            assertTrue(response.getText().endsWith("\n20000\tstudent19999\t99"), "The last row should arrive whole");
+            DBClient.Response rows = binary.query("SELECT * FROM marks;").join();
+            assertTrue(rows.isOk() && rows.getRows().size() == 20_000 && rows.getText().equals(response.getText()), "A large binary result should match the text one");
+        }
+    }
+
+    // A SELECT that fails once some rows are sent ends with an error line after them, which the client reports as a failure
+    @Test
+    public void testErrorPartwayThroughResult() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE marks (name, mark INT);");
+        StringBuilder insert = new StringBuilder("INSERT INTO marks VALUES ");
+        for (int i = 0; i < 5000; i++) {
+            insert.append(i == 0 ? "" : ", ").append("('student").append(i).append("', ").append(i % 100).append(")");
+        }
+        sendCommandToServer(insert.append(';').toString());
+        DBSession session = new DBSession();
+        session.setCurrentDatabase(randomName);
+        // Stands in for a scan that fails partway: the start of the 1000th row cannot be written, but the error after it can
+        StringWriter out = new StringWriter() {
+            private int rowsStarted;
+
+            @Override
+            public void write(int c) {
+                if (c == '\n' && ++rowsStarted == 1000) {
+                    throw new IllegalStateException("Table file went away");
+                }
+                super.write(c);
+            }
+        };
+        server.handleCommand(session, "SELECT * FROM marks;", out);
+        DBClient.Response response = DBClient.Response.ofText(out.toString());
+        assertTrue(out.toString().startsWith("[OK]\n") && out.toString().endsWith("\n[ERROR] Table file went away"), "The error should follow the rows on a line of its own");
+        assertTrue(!response.isOk() && response.getRows().size() == 999, "The client should see the rows that were sent and a failure, but saw " + response.getRows().size() + " rows");
+        String full = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(!full.contains("[ERROR]") && full.split("\n").length == 5001, "A result cut short should not be cached");
+    }
+
+    // A stored value that starts with [ERROR] is a row like any other, over both protocols, and not the end of a result cut short
+    @Test
+    public void testRowThatStartsLikeAnError() throws Exception {
+        String randomName = generateRandomName();
+        sendCommandToServer("CREATE DATABASE " + randomName + ";");
+        sendCommandToServer("USE " + randomName + ";");
+        sendCommandToServer("CREATE TABLE notes (note);");
+        sendCommandToServer("INSERT INTO notes VALUES ('fine'), ('\\[ERROR] escaped'), ('[ERROR] not really');");
+        try (SelectorServer network = server.listen(0);
+             DBClient text = new DBClient("localhost", network.getPort());
+             DBClient binary = new DBClient("localhost", network.getPort(), DBClient.Protocol.BINARY)) {
+            for (DBClient client : List.of(text, binary)) {
+                client.send("USE " + randomName + ";");
+                DBClient.Response response = client.query("SELECT note FROM notes;").get(10, TimeUnit.SECONDS);
+                List<Object[]> rows = response.getRows();
+                assertTrue(response.isOk() && rows.size() == 3, "A row starting with [ERROR] was taken for an error: " + response.getText());
+                assertTrue(rows.get(1)[0].equals("\\[ERROR] escaped") && rows.get(2)[0].equals("[ERROR] not really"), "Rows starting with [ERROR] came back changed: " + response.getText());
+            }
+            assertTrue(text.send("SELECT note FROM notes;").equals(binary.send("SELECT note FROM notes;")), "Both protocols should give the same text");
+        }
+    }
+}
@@ -5,11 +5,21 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.file.Paths;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Each connection is served on a thread of its own, so many players can play at once. The locations
+ * are all loaded before the server starts and never added to, so the map of them is only read; what
+ * changes in a location is guarded by that location's lock, and a player's commands run one at a time
+ * under the player's lock. An action that changes more than one location locks them all in order of
+ * name, so two of them can never wait on each other, and there is no lock over the whole world.
+ */
 public final class GameServer {
     private static final char END_OF_TRANSMISSION = 4;
-    private HashMap<String, Location> locations;
-    private HashMap<String, Player> players;
+    private final HashMap<String, Location> locations;
+    private final ConcurrentHashMap<String, Player> players;
     private HashMap<String, HashSet<GameAction>> actions;
 
     public static void main(String[] args) {
@@ -25,7 +35,7 @@ public final class GameServer {
 
     public GameServer(File entitiesFile, File actionsFile) {
         locations = new HashMap<>();
-        players = new HashMap<>();
+        players = new ConcurrentHashMap<>();
         actions = new HashMap<>();
         try {
             loadEntities(entitiesFile);
@@ -61,11 +71,46 @@ public final class GameServer {
     }
 
     private String handleCommandInternal(String playerName, String command) {
-        if (!players.containsKey(playerName)) {
-            players.put(playerName, new Player(playerName, locations.get("cabin"))); // Default starting location
+        Player player = players.computeIfAbsent(playerName, this::newPlayer);
+        // One command at a time per player, even if they send commands over several connections at once
+        player.getLock().lock();
+        try {
+            return processCommand(player, command);
+        } finally {
+            player.getLock().unlock();
+        }
+    }
+
+    private Player newPlayer(String playerName) {
+        Location start = locations.get("cabin"); // Default starting location
+        start.getLock().lock();
+        try {
+            start.addPlayer(playerName);
+        } finally {
+            start.getLock().unlock();
+        }
+        return new Player(playerName, start);
+    }
+
+    // Locks the locations in order of name, so that actions locking more than one cannot deadlock
+    private static List<Location> lockInOrder(Location... toLock) {
+        List<Location> ordered = new ArrayList<>();
+        for (Location location : toLock) {
+            if (!ordered.contains(location)) {
+                ordered.add(location);
+            }
+        }
+        ordered.sort(Comparator.comparing(location -> location.getName().toLowerCase()));
+        for (Location location : ordered) {
+            location.getLock().lock();
+        }
+        return ordered;
+    }
+
+    private static void unlockAll(List<Location> locked) {
+        for (int i = locked.size() - 1; i >= 0; i--) {
+            locked.get(i).getLock().unlock();
         }
-        Player player = players.get(playerName);
-        return processCommand(player, command);
     }
 
     private String processCommand(Player player, String command) {
@@ -87,6 +132,15 @@ public final class GameServer {
 
     private String look(Player player) {
         Location location = player.getCurrentLocation();
+        location.getLock().lock();
+        try {
+            return describe(location, player);
+        } finally {
+            location.getLock().unlock();
+        }
+    }
+
+    private String describe(Location location, Player player) {
         StringBuilder sb = new StringBuilder();
         sb.append(location.getName()).append("\n");
         sb.append(location.getDescription()).append("\n");
@@ -99,6 +153,12 @@ public final class GameServer {
             sb.append(furniture.getName()).append(": ").append(furniture.getDescription()).append("\n");
         }
 
+        for (String otherPlayer : location.getPlayers()) {
+            if (!otherPlayer.equals(player.getName())) {
+                sb.append("Player: ").append(otherPlayer).append("\n");
+            }
+        }
+
         for (String path : locations.keySet()) {
             sb.append("Path: ").append(path).append("\n");
         }
@@ -108,12 +168,19 @@ public final class GameServer {
 
     private String get(Player player, String itemName) {
         Location location = player.getCurrentLocation();
-        Item item = location.getItems().get(itemName.toLowerCase());
-        if (item == null) {
-            return "Item not found";
+        Item item;
+        // Found and removed under one lock, so two players cannot both pick the item up
+        location.getLock().lock();
+        try {
+            item = location.getItems().get(itemName.toLowerCase());
+            if (item == null) {
+                return "Item not found";
+            }
+            location.removeItem(itemName.toLowerCase());
+        } finally {
+            location.getLock().unlock();
         }
         player.addItem(item);
-        location.removeItem(itemName.toLowerCase());
         return "You picked up " + item.getName();
     }
 
@@ -122,7 +189,15 @@ public final class GameServer {
         if (newLocation == null) {
             return "Location not found";
         }
-        player.setCurrentLocation(newLocation);
+        Location oldLocation = player.getCurrentLocation();
+        List<Location> locked = lockInOrder(oldLocation, newLocation);
+        try {
+            oldLocation.removePlayer(player.getName());
+            newLocation.addPlayer(player.getName());
+            player.setCurrentLocation(newLocation);
+        } finally {
+            unlockAll(locked);
+        }
         return "You moved to " + newLocation.getName();
     }
 
@@ -136,25 +211,34 @@ public final class GameServer {
     }
 
     public void blockingListenOn(int portNumber) throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool();
         try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
             System.out.println("Server listening on port " + portNumber);
             while (!Thread.interrupted()) {
-                try (Socket clientSocket = serverSocket.accept();
-                     BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                     BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))) {
-                    System.out.println("Connection established");
-                    String fullCommand = reader.readLine();
-                    if (fullCommand != null) {
-                        System.out.println("Received command: " + fullCommand);
-                        String result = handleCommand(fullCommand);
-                        writer.write(result);
-                        writer.write("\n" + END_OF_TRANSMISSION + "\n");
-                        writer.flush();
-                    }
-                } catch (IOException e) {
-                    System.out.println("Connection closed");
-                }
+                Socket clientSocket = serverSocket.accept();
+                connections.execute(() -> serveConnection(clientSocket));
             }
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    // Answers each command sent on the connection, until the client closes it
+    private void serveConnection(Socket clientSocket) {
+        try (clientSocket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))) {
+            System.out.println("Connection established");
+            String fullCommand;
+            while ((fullCommand = reader.readLine()) != null) {
+                System.out.println("Received command: " + fullCommand);
+                String result = handleCommand(fullCommand);
+                writer.write(result);
+                writer.write("\n" + END_OF_TRANSMISSION + "\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Connection closed");
         }
     }
 }
@@ -1,19 +1,29 @@
 package edu.uob;
 
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A place in the world. Its items, furniture and players change while the game is played, so they
+ * may only be read or changed while holding {@link #getLock()}.
+ */
 public class Location {
     private String name;
     private String description;
     private Map<String, Item> items;
     private Map<String, Item> furniture;
+    private Set<String> players;
+    private final ReentrantLock lock = new ReentrantLock();
 
     public Location(String name, String description) {
         this.name = name;
         this.description = description;
         this.items = new HashMap<>();
         this.furniture = new HashMap<>();
+        this.players = new LinkedHashSet<>();
     }
 
     public String getName() {
@@ -47,4 +57,20 @@ public class Location {
     public void removeFurniture(String furnitureName) {
         furniture.remove(furnitureName.toLowerCase());
     }
+
+    public Set<String> getPlayers() {
+        return players;
+    }
+
+    public void addPlayer(String playerName) {
+        players.add(playerName);
+    }
+
+    public void removePlayer(String playerName) {
+        players.remove(playerName);
+    }
+
+    public ReentrantLock getLock() {
+        return lock;
+    }
 }
@@ -2,11 +2,17 @@ package edu.uob;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A player's location and inventory only change while one of their commands runs, and the server
+ * runs a player's commands one at a time by holding {@link #getLock()}.
+ */
 public class Player {
     private String name;
     private Location currentLocation;
     private List<Item> inventory;
+    private final ReentrantLock lock = new ReentrantLock();
 
     public Player(String name, Location startingLocation) {
         this.name = name;
@@ -37,4 +43,8 @@ public class Player {
     public void removeItem(Item item) {
         inventory.remove(item);
     }
+
+    public ReentrantLock getLock() {
+        return lock;
+    }
 }
@@ -1,6 +1,7 @@
 package edu.uob;
 
 import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
@@ -9,6 +10,13 @@ import java.io.File;
 import java.nio.file.Paths;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 class ExampleSTAGTests {
 
@@ -64,6 +72,43 @@ class ExampleSTAGTests {
       assertTrue(response.contains("key"), "Failed attempt to use 'goto' command to move to the forest - there is no key in the current location");
   }
 
+  // Many players moving and picking things up at once never deadlock, and only one of them gets the potion
+  @Test
+  void testConcurrentPlayers() throws Exception
+  {
+      ExecutorService executor = Executors.newFixedThreadPool(16);
+      try {
+          List<Future<String>> pickups = new ArrayList<>();
+          CountDownLatch start = new CountDownLatch(1);
+          for (int i = 0; i < 200; i++) {
+              String player = "player" + i;
+              pickups.add(executor.submit(() -> {
+                  start.await();
+                  String got = server.handleCommand(player + ": get potion");
+                  for (int move = 0; move < 50; move++) {
+                      server.handleCommand(player + ": goto " + (move % 2 == 0 ? "forest" : "cabin"));
+                      server.handleCommand(player + ": look");
+                  }
+                  return got;
+              }));
+          }
+          start.countDown();
+          long pickedUp = 0;
+          for (Future<String> pickup : pickups) {
+              if (pickup.get(30, TimeUnit.SECONDS).contains("You picked up")) {
+                  pickedUp++;
+              }
+          }
+          assertEquals(1, pickedUp, "The potion was picked up " + pickedUp + " times");
+      } finally {
+          executor.shutdownNow();
+      }
+      // Every player made an even number of moves, so all of them are back in the cabin
+      String response = sendCommandToServer("simon: look").toLowerCase();
+      assertTrue(response.contains("player0") && response.contains("player199"), "Did not see the other players in the cabin");
+      assertFalse(response.contains("magic potion"), "Potion is still present in the room after it was picked up");
+  }
+
   // Add more unit tests or integration tests here.
 
 }